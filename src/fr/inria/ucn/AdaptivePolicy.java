@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+/**
+ * Adaptive sampling interval. The interval doubles (up to the max) after
+ * successive quiet rounds, halves when the device is moderately active, and
+ * drops to the min on high activity or on user and system events.
+ *
+ * The activity signals are the ones already collected: cpu utilization since
+ * the previous round (system_state cpu.total), number of active socket flows
+ * (socket_flows active) and the cumulative /proc/net/dev rx+tx bytes. The
+ * policy only depends on its inputs, so it can be evaluated offline against
+ * recorded traces (see {@link #evaluate}).
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class AdaptivePolicy {
+
+	/** Cpu utilization (%) below which the device is idle. */
+	public static final double CPU_IDLE = 10;
+	/** Cpu utilization (%) of a busy device. */
+	public static final double CPU_BUSY = 50;
+
+	/** Change in the number of sockets between rounds of an idle device. */
+	public static final int SOCKETS_IDLE = 2;
+	/** Change in the number of sockets between rounds of a busy device. */
+	public static final int SOCKETS_BUSY = 10;
+
+	/** Network traffic (bytes/s) below which the device is idle. */
+	public static final long BYTES_IDLE = 1024;
+	/** Network traffic (bytes/s) of a busy device. */
+	public static final long BYTES_BUSY = 64*1024;
+
+	/** Number of successive idle rounds before the interval is stretched. */
+	public static final int QUIET_ROUNDS = 2;
+
+	/** Activity levels. */
+	public static final int IDLE = -1;
+	public static final int ACTIVE = 0;
+	public static final int BUSY = 1;
+
+	private final long min;
+	private final long max;
+
+	private long interval;
+	private int quiet = 0;
+
+	/* Previous observation (-1 if not known). */
+	private long lastTs = -1;
+	private int lastSockets = -1;
+	private long lastBytes = -1;
+
+	/**
+	 * @param min shortest interval (ms)
+	 * @param max longest interval (ms), the interval is fixed if not above min
+	 */
+	public AdaptivePolicy(long min, long max) {
+		this.min = min;
+		this.max = Math.max(min, max);
+		this.interval = min;
+	}
+
+	/**
+	 * @return Current sampling interval (ms).
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Update the interval with the signals of a round.
+	 * @param now round time (ms)
+	 * @param cpu cpu utilization (%) since the previous round, or -1
+	 * @param sockets number of active sockets, or -1
+	 * @param bytes cumulative network rx+tx bytes, or -1
+	 * @return The new interval (ms).
+	 */
+	public long observe(long now, double cpu, int sockets, long bytes) {
+		int level = getLevel(now, cpu, sockets, bytes);
+		if (level == BUSY) {
+			quiet = 0;
+			interval = min;
+		} else if (level == ACTIVE) {
+			quiet = 0;
+			interval = Math.max(min, interval/2);
+		} else {
+			quiet += 1;
+			if (quiet >= QUIET_ROUNDS)
+				interval = Math.min(max, interval*2);
+		}
+		lastTs = now;
+		lastSockets = sockets;
+		lastBytes = bytes;
+		return interval;
+	}
+
+	/**
+	 * User or system event (screen unlocked, connectivity change), back to the
+	 * shortest interval.
+	 * @return The new interval (ms).
+	 */
+	public long onEvent() {
+		quiet = 0;
+		interval = min;
+		return interval;
+	}
+
+	/**
+	 * @param now
+	 * @param cpu
+	 * @param sockets
+	 * @param bytes
+	 * @return Activity level of a round compared to the previous one (IDLE if no signal is known).
+	 */
+	public int getLevel(long now, double cpu, int sockets, long bytes) {
+		long rate = -1;
+		if (bytes >= 0 && lastBytes >= 0 && bytes >= lastBytes && now > lastTs)
+			rate = (bytes - lastBytes)*1000/(now - lastTs);
+		int dsockets = -1;
+		if (sockets >= 0 && lastSockets >= 0)
+			dsockets = Math.abs(sockets - lastSockets);
+
+		if (cpu >= CPU_BUSY || rate >= BYTES_BUSY || dsockets >= SOCKETS_BUSY)
+			return BUSY;
+		if (cpu >= CPU_IDLE || rate >= BYTES_IDLE || dsockets > SOCKETS_IDLE)
+			return ACTIVE;
+		return IDLE;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return interval + "," + quiet + "," + lastTs + "," + lastSockets + "," + lastBytes;
+	}
+
+	/**
+	 * @param s state from {@link #toString()} (or null)
+	 * @param min
+	 * @param max
+	 * @return The policy, a new one if the state is missing or invalid.
+	 */
+	public static AdaptivePolicy parse(String s, long min, long max) {
+		AdaptivePolicy p = new AdaptivePolicy(min, max);
+		if (s == null)
+			return p;
+		String[] tmp = s.split(",");
+		if (tmp.length != 5)
+			return p;
+		try {
+			p.interval = Math.min(p.max, Math.max(min, Long.parseLong(tmp[0])));
+			p.quiet = Integer.parseInt(tmp[1]);
+			p.lastTs = Long.parseLong(tmp[2]);
+			p.lastSockets = Integer.parseInt(tmp[3]);
+			p.lastBytes = Long.parseLong(tmp[4]);
+		} catch (NumberFormatException e) {
+			return new AdaptivePolicy(min, max);
+		}
+		return p;
+	}
+
+	/**
+	 * Result of an offline evaluation.
+	 */
+	public static final class Evaluation {
+		/** Number of samples in the trace. */
+		public int samples = 0;
+		/** Number of rounds the policy would have run. */
+		public int rounds = 0;
+		/** Busy samples of the trace, and the ones the policy ran a round at. */
+		public int busy = 0;
+		public int busySeen = 0;
+		/** Interval after each sample, or -1 if the policy would not run a round at it. */
+		public long[] intervals;
+
+		@Override
+		public String toString() {
+			return "samples=" + samples + " rounds=" + rounds + " busy=" + busy + " busy_seen=" + busySeen;
+		}
+	}
+
+	/**
+	 * Replay a trace recorded at a fixed interval (at most min): the policy runs
+	 * a round at the first sample after its current interval has elapsed (within
+	 * half of the min, as the scheduler does), and only sees the signals of those
+	 * samples. The busy samples are found with the same levels, comparing each
+	 * sample to the previous one in the trace.
+	 * @param min
+	 * @param max
+	 * @param ts sample times (ms)
+	 * @param cpu cpu utilization (%), or -1
+	 * @param sockets active sockets, or -1
+	 * @param bytes cumulative network bytes, or -1
+	 * @return
+	 */
+	public static Evaluation evaluate(long min, long max, long[] ts, double[] cpu, int[] sockets, long[] bytes) {
+		Evaluation e = new Evaluation();
+		e.samples = ts.length;
+		e.intervals = new long[ts.length];
+
+		AdaptivePolicy p = new AdaptivePolicy(min, max);
+		AdaptivePolicy trace = new AdaptivePolicy(min, max); // sees every sample
+		long next = Long.MIN_VALUE;
+		for (int i = 0; i < ts.length; i++) {
+			boolean isBusy = (trace.getLevel(ts[i], cpu[i], sockets[i], bytes[i]) == BUSY);
+			trace.observe(ts[i], cpu[i], sockets[i], bytes[i]);
+			if (isBusy)
+				e.busy += 1;
+
+			if (next == Long.MIN_VALUE || ts[i] >= next - min/2) {
+				e.rounds += 1;
+				if (isBusy)
+					e.busySeen += 1;
+				e.intervals[i] = p.observe(ts[i], cpu[i], sockets[i], bytes[i]);
+				next = ts[i] + e.intervals[i];
+			} else {
+				e.intervals[i] = -1;
+			}
+		}
+		return e;
+	}
+}
@@ -0,0 +1,418 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compact binary record encoding. Numbers are zigzag varints, object keys are
+ * references to a static dictionary of the known record keys (or to keys already
+ * seen in the same record), so the structure of the JSON records is preserved and
+ * they can be transcoded back to JSON for the servers without loss.
+ *
+ * Format: MAGIC, schema (varint), value. A value is a one byte tag followed by:
+ * <ul>
+ * <li>T_NULL, T_FALSE, T_TRUE: nothing</li>
+ * <li>T_INT: zigzag varint</li>
+ * <li>T_DOUBLE: 8 bytes IEEE 754, big endian</li>
+ * <li>T_STRING: varint length + UTF-8 bytes</li>
+ * <li>T_OBJECT: varint count + count * (key, value)</li>
+ * <li>T_ARRAY: varint count + count * value</li>
+ * </ul>
+ * A key is a varint k: 0 = new key as varint length + UTF-8 bytes (added to the record
+ * key table), 1..LOCAL_KEYS-1 = KEYS[k-1], LOCAL_KEYS.. = record key table[k-LOCAL_KEYS].
+ * In schema 1 the record key references followed the dictionary: N+1.. = record key
+ * table[k-N-1] with N = SCHEMA_1_KEYS.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class BinaryRecordCodec implements RecordCodec {
+
+	/** Codec name. */
+	public static final String NAME = "binary";
+
+	/** First byte of an encoded record (never the first byte of a JSON text). */
+	public static final int MAGIC = 0xB1;
+
+	/** Current record format version. */
+	public static final int SCHEMA = 2;
+
+	/* First reference to the record key table, the dictionary can grow up to here. */
+	static final int LOCAL_KEYS = 1024;
+
+	/* Size of the dictionary in schema 1 records. */
+	static final int SCHEMA_1_KEYS = 198;
+
+	private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+
+	static final int T_NULL = 0;
+	static final int T_FALSE = 1;
+	static final int T_TRUE = 2;
+	static final int T_INT = 3;
+	static final int T_DOUBLE = 4;
+	static final int T_STRING = 5;
+	static final int T_OBJECT = 6;
+	static final int T_ARRAY = 7;
+
+	/*
+	 * Known record keys. Append only - changing or removing keys requires a new
+	 * schema version. The decoders of the servers must know the appended keys.
+	 */
+	static final String[] KEYS = {
+		// envelope
+		"collection", "uid", "app_version_name", "app_version_code", "ts_event", "ts", "tz", "tz_offset", "data",
+		// packages
+		"packages", "package", "app_label",
+		// running_apps
+		"runningTasks", "task_id", "task_num_activities", "task_num_running", "task_foreground", "task_top_class_name",
+		"task_top_package_name", "task_app_label", "runningAppProcesses", "proc_uid", "proc_name", "proc_packages",
+		// device_info
+		"build", "brand", "board", "cpu_api", "device", "display", "manufacturer", "model", "product", "version_sdk",
+		"version_release", "dpi", "height", "width", "density",
+		// llama_location
+		"source_file", "locations", "wifi_networks", "cells",
+		// network_state + wifi_neigh + cell_location + data_conn_state
+		"on_network_state_change", "is_connected", "is_roaming", "is_airplane_mode", "type", "subtype", "type_name",
+		"subtype_name", "state", "detailed_state", "is_wifi", "active_network", "wifi_network", "mobile_network",
+		"netstat", "ifconfig", "ip_addr_show", "frequency", "level", "timestamp", "bssid", "ssid", "list", "call_state",
+		"data_activity", "network_type", "network_type_str", "phone_type", "phone_type_str", "sim_state",
+		"network_country", "network_operator", "network_operator_name", "cid", "lac", "psc", "gsm", "bs_id", "bs_lat",
+		"bs_lon", "net_id", "sys_id", "cdma", "cell_location", "rssi", "neigh_cells", "is_registered", "mcc", "mnc",
+		"asu_level", "dbm", "cdma_dbm", "cdma_ecio", "cdma_level", "evdo_dbm", "evdo_ecio", "evdo_level", "evdo_snr",
+		"ci", "pci", "tac", "timing_adv", "all_cells", "link_speed", "link_speed_units", "signal_level", "mac", "ip",
+		"rx_bytes", "rx_packets", "rx_errors", "rx_drop", "tx_bytes", "tx_packets", "tx_errors", "tx_drop", "name",
+		"stats", "flags", "mtu", "qdisc", "mask", "scope", "ipv6", "ipv4", "display_name", "is_virtual", "is_loopback",
+		"is_ptop", "is_up", "addresses",
+		// app_data_usage
+		"process_list", "send", "recv", "proc_uid_stat_tcp", "uid_rx_bytes", "uid_tx_bytes", "uid_rx_pkts",
+		"uid_tx_pkts", "uid_tcp_rx_pkts", "uid_tcp_tx_pkts", "uid_udp_rx_pkts", "uid_udp_tx_pkts", "uid_udp_rx_bytes",
+		"uid_udp_tx_bytes", "uid_tcp_rx_bytes", "uid_tcp_tx_bytes", "android_traffic_stats",
+		// sockets
+		"sockets", "tcp", "udp", "tcp6", "udp6", "port", "raw_ip", "idx", "local_addr", "remote_addr", "status_code",
+		"status_text", "tx_queue", "rx_queue",
+		// system_state
+		"on_screen_state_change", "hostname", "current_timezone", "available", "total", "is_low", "memory",
+		"screen_on", "scale", "pct", "is_charging", "usb_charge", "ac_charge", "battery", "cpu", "loadavg", "uptime",
+		"audio", "1_min_average", "5_min_average", "15_min_average", "active_tasks", "total_tasks", "idle_time",
+		"user", "system", "is_bluetooth_a2dp_on", "is_microphone_mute", "is_music_active", "is_speaker_phone_on",
+		"is_wired_headset_on", "mode", "ringer_mode",
+		// counter deltas
+		"counters", "keyframe_ts", "reason",
+		// app_data_usage
+		"changed_only",
+		// packages
+		"signature", "uids",
+		// socket_flows
+		"events", "event", "proto", "inode", "first_seen", "last_seen", "max_tx_queue", "max_rx_queue", "active",
+		// system_state cpu
+		"cores", "interval", "iowait", "steal", "idle", "window",
+		// cpu_freq
+		"online", "cur_freq", "time_in_state", "time_in_state_delta",
+		// ip_addr_show
+		"brd",
+		// socket_flows
+		"restarted",
+	};
+
+	static final Map<String,Integer> KEY_INDEX = new HashMap<String,Integer>();
+	static {
+		for (int i = 0; i < KEYS.length; i++)
+			KEY_INDEX.put(KEYS[i], i+1);
+	}
+
+	/* Growable output buffer. */
+	private static class Output {
+		byte[] buf = new byte[1024];
+		int len = 0;
+
+		void ensure(int n) {
+			if (len + n > buf.length) {
+				byte[] nbuf = new byte[Math.max(buf.length*2, len+n)];
+				System.arraycopy(buf, 0, nbuf, 0, len);
+				buf = nbuf;
+			}
+		}
+		void write(int b) {
+			ensure(1);
+			buf[len++] = (byte)b;
+		}
+		void write(byte[] b) {
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, len, b.length);
+			len += b.length;
+		}
+		void varint(long v) {
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				buf[len++] = (byte)((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[len++] = (byte)v;
+		}
+	}
+
+	/* Input cursor. */
+	private static class Input {
+		final byte[] buf;
+		int pos = 0;
+
+		Input(byte[] buf) {
+			this.buf = buf;
+		}
+		int read() throws JSONException {
+			if (pos >= buf.length)
+				throw new JSONException("truncated binary record");
+			return buf[pos++] & 0xFF;
+		}
+		long varint() throws JSONException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				v |= (long)(b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return v;
+			}
+			throw new JSONException("malformed varint");
+		}
+		String string() throws JSONException {
+			int n = (int)varint();
+			if (n < 0 || pos + n > buf.length)
+				throw new JSONException("truncated binary record");
+			String s = utf8(buf, pos, n);
+			pos += n;
+			return s;
+		}
+	}
+
+	/**
+	 * @param data
+	 * @return <code>true</code> if the data looks like a binary encoded record.
+	 */
+	public static boolean isBinary(byte[] data) {
+		return (data!=null && data.length>1 && (data[0] & 0xFF)==MAGIC);
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.inria.ucn.RecordCodec#getName()
+	 */
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.inria.ucn.RecordCodec#getContentType()
+	 */
+	@Override
+	public String getContentType() {
+		return "application/x-ucn-record";
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.inria.ucn.RecordCodec#encode(org.json.JSONObject)
+	 */
+	@Override
+	public byte[] encode(JSONObject record) throws JSONException {
+		Output out = new Output();
+		out.write(MAGIC);
+		out.varint(SCHEMA);
+		writeValue(out, record, new HashMap<String,Integer>());
+		byte[] res = new byte[out.len];
+		System.arraycopy(out.buf, 0, res, 0, out.len);
+		return res;
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.inria.ucn.RecordCodec#decode(byte[])
+	 */
+	@Override
+	public JSONObject decode(byte[] data) throws JSONException {
+		if (!isBinary(data))
+			throw new JSONException("not a binary record");
+		Input in = new Input(data);
+		in.read();
+		long schema = in.varint();
+		int local;
+		if (schema == SCHEMA)
+			local = LOCAL_KEYS;
+		else if (schema == 1)
+			local = SCHEMA_1_KEYS + 1;
+		else
+			throw new JSONException("unknown record schema " + schema);
+		Object o = readValue(in, new ArrayList<String>(), local);
+		if (!(o instanceof JSONObject))
+			throw new JSONException("binary record is not an object");
+		return (JSONObject)o;
+	}
+
+	private static void writeValue(Output out, Object v, Map<String,Integer> keys) throws JSONException {
+		if (v == null || v == JSONObject.NULL) {
+			out.write(T_NULL);
+		} else if (v instanceof Boolean) {
+			out.write(((Boolean)v).booleanValue() ? T_TRUE : T_FALSE);
+		} else if (v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte) {
+			long l = ((Number)v).longValue();
+			out.write(T_INT);
+			out.varint((l << 1) ^ (l >> 63)); // zigzag
+		} else if (v instanceof Number) {
+			double d = ((Number)v).doubleValue();
+			if (isIntegral(d)) {
+				// integral floats encode as ints (same JSON text)
+				long l = (long)d;
+				out.write(T_INT);
+				out.varint((l << 1) ^ (l >> 63));
+			} else {
+				long bits = Double.doubleToLongBits(d);
+				out.write(T_DOUBLE);
+				out.ensure(8);
+				for (int i = 56; i >= 0; i -= 8)
+					out.buf[out.len++] = (byte)(bits >>> i);
+			}
+		} else if (v instanceof JSONObject) {
+			JSONObject o = (JSONObject)v;
+			out.write(T_OBJECT);
+			out.varint(o.length());
+			Iterator<?> it = o.keys();
+			while (it.hasNext()) {
+				String k = (String)it.next();
+				writeKey(out, k, keys);
+				writeValue(out, o.opt(k), keys);
+			}
+		} else if (v instanceof JSONArray) {
+			JSONArray a = (JSONArray)v;
+			out.write(T_ARRAY);
+			out.varint(a.length());
+			for (int i = 0; i < a.length(); i++)
+				writeValue(out, a.opt(i), keys);
+		} else {
+			out.write(T_STRING);
+			writeString(out, v.toString());
+		}
+	}
+
+	private static void writeKey(Output out, String k, Map<String,Integer> keys) {
+		Integer idx = KEY_INDEX.get(k);
+		if (idx == null)
+			idx = keys.get(k);
+		if (idx != null) {
+			out.varint(idx);
+		} else {
+			out.varint(0);
+			writeString(out, k);
+			keys.put(k, LOCAL_KEYS + keys.size());
+		}
+	}
+
+	/**
+	 * @param d
+	 * @return <code>true</code> if the double is written as an int (same JSON text).
+	 */
+	static boolean isIntegral(double d) {
+		return d == Math.rint(d) && Math.abs(d) < (1L << 53) &&
+				Double.doubleToRawLongBits(d) != NEGATIVE_ZERO; // -0.0 == 0 but prints as -0.0
+	}
+
+	private static void writeString(Output out, String s) {
+		try {
+			byte[] b = s.getBytes("UTF-8");
+			out.varint(b.length);
+			out.write(b);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Object readValue(Input in, List<String> keys, int local) throws JSONException {
+		int tag = in.read();
+		switch (tag) {
+		case T_NULL:
+			return JSONObject.NULL;
+		case T_FALSE:
+			return Boolean.FALSE;
+		case T_TRUE:
+			return Boolean.TRUE;
+		case T_INT:
+			long z = in.varint();
+			return Long.valueOf((z >>> 1) ^ -(z & 1));
+		case T_DOUBLE:
+			long bits = 0;
+			for (int i = 0; i < 8; i++)
+				bits = (bits << 8) | in.read();
+			return Double.valueOf(Double.longBitsToDouble(bits));
+		case T_STRING:
+			return in.string();
+		case T_OBJECT:
+			int n = (int)in.varint();
+			JSONObject o = new JSONObject();
+			for (int i = 0; i < n; i++) {
+				String k = readKey(in, keys, local);
+				o.put(k, readValue(in, keys, local));
+			}
+			return o;
+		case T_ARRAY:
+			int m = (int)in.varint();
+			JSONArray a = new JSONArray();
+			for (int i = 0; i < m; i++)
+				a.put(readValue(in, keys, local));
+			return a;
+		default:
+			throw new JSONException("unknown value tag " + tag);
+		}
+	}
+
+	private static String readKey(Input in, List<String> keys, int local) throws JSONException {
+		int k = (int)in.varint();
+		if (k == 0) {
+			String s = in.string();
+			keys.add(s);
+			return s;
+		} else if (k > 0 && k <= KEYS.length && k < local) {
+			return KEYS[k-1];
+		} else if (k >= local && k - local < keys.size()) {
+			return keys.get(k - local);
+		}
+		throw new JSONException("unknown key reference " + k);
+	}
+
+	private static String utf8(byte[] b, int off, int len) {
+		try {
+			return new String(b, off, len, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.inria.ucn.RecordCodec#newWriter()
+	 */
+	@Override
+	public RecordWriter newWriter() {
+		return new BinaryRecordWriter();
+	}
+}
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link RecordWriter} of the {@link BinaryRecordCodec} format. The entry counts
+ * of objects and arrays are inserted when they are closed.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class BinaryRecordWriter extends RecordWriter {
+
+	/* Keys of this record not in the static dictionary. */
+	private final Map<String,Integer> keys = new HashMap<String,Integer>();
+
+	@Override
+	public void reset() {
+		super.reset();
+		keys.clear();
+	}
+
+	/**
+	 * The appended record refers to its own new keys, so this record must not
+	 * have any new keys before it.
+	 */
+	@Override
+	public RecordWriter value(RecordWriter w) {
+		if (!keys.isEmpty())
+			throw new IllegalStateException("record has non dictionary keys");
+		super.value(w);
+		keys.putAll(((BinaryRecordWriter)w).keys);
+		return this;
+	}
+
+	@Override
+	protected void writeHeader() {
+		write(BinaryRecordCodec.MAGIC);
+		varint(BinaryRecordCodec.SCHEMA);
+	}
+
+	@Override
+	public RecordCodec getCodec() {
+		return RecordCodecs.BINARY;
+	}
+
+	@Override
+	protected void writeBegin(boolean object) {
+		write(object ? BinaryRecordCodec.T_OBJECT : BinaryRecordCodec.T_ARRAY);
+	}
+
+	@Override
+	protected void writeEnd(boolean object, int start, int count) {
+		// insert the count after the tag
+		int n = 1;
+		for (long v = count; (v & ~0x7FL) != 0; v >>>= 7)
+			n += 1;
+		ensure(n);
+		System.arraycopy(buf, start + 1, buf, start + 1 + n, len - start - 1);
+		int end = len + n;
+		len = start + 1;
+		varint(count);
+		len = end;
+	}
+
+	@Override
+	protected void writeKey(String k, boolean first) {
+		Integer idx = BinaryRecordCodec.KEY_INDEX.get(k);
+		if (idx == null)
+			idx = keys.get(k);
+		if (idx != null) {
+			varint(idx);
+		} else {
+			varint(0);
+			string(k);
+			keys.put(k, BinaryRecordCodec.LOCAL_KEYS + keys.size());
+		}
+	}
+
+	@Override
+	protected void writeSeparator() {
+	}
+
+	@Override
+	protected void writeNull() {
+		write(BinaryRecordCodec.T_NULL);
+	}
+
+	@Override
+	protected void writeBoolean(boolean v) {
+		write(v ? BinaryRecordCodec.T_TRUE : BinaryRecordCodec.T_FALSE);
+	}
+
+	@Override
+	protected void writeLong(long v) {
+		write(BinaryRecordCodec.T_INT);
+		varint((v << 1) ^ (v >> 63)); // zigzag
+	}
+
+	@Override
+	protected void writeNumber(Number v) {
+		double d = v.doubleValue();
+		if (BinaryRecordCodec.isIntegral(d)) {
+			// integral floats encode as ints (same JSON text)
+			writeLong((long)d);
+		} else {
+			long bits = Double.doubleToLongBits(d);
+			write(BinaryRecordCodec.T_DOUBLE);
+			ensure(8);
+			for (int i = 56; i >= 0; i -= 8)
+				buf[len++] = (byte)(bits >>> i);
+		}
+	}
+
+	@Override
+	protected void writeString(String v) {
+		write(BinaryRecordCodec.T_STRING);
+		string(v);
+	}
+
+	private void string(String s) {
+		varint(utf8Length(s));
+		int i = 0;
+		while (i < s.length())
+			i = writeUtf8(s, i);
+	}
+
+	private void varint(long v) {
+		ensure(10);
+		while ((v & ~0x7FL) != 0) {
+			buf[len++] = (byte)((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[len++] = (byte)v;
+	}
+}
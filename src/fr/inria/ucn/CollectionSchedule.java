@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+/**
+ * Multi-rate collection schedule. Each collector has its own period, and the
+ * collectors that become due within the coalescing slack of a wakeup run at
+ * that wakeup instead of waking the device up again. The schedule has no clock
+ * of its own, every method takes the current time so that it can be driven
+ * by alarms (elapsed realtime) or by a simulated clock.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class CollectionSchedule {
+
+	private final String[] names;
+	private final long[] periods;
+	private final long[] next;
+	private final long slack;
+
+	/**
+	 * All collectors are due at first.
+	 * @param names collector names
+	 * @param periods collection periods (ms)
+	 * @param slack max time a collector is run ahead of its due time (ms)
+	 */
+	public CollectionSchedule(String[] names, long[] periods, long slack) {
+		if (names.length != periods.length)
+			throw new IllegalArgumentException("names and periods differ in length");
+		for (long p : periods)
+			if (p <= 0)
+				throw new IllegalArgumentException("invalid period: " + p);
+		this.names = names.clone();
+		this.periods = periods.clone();
+		this.next = new long[names.length];
+		this.slack = slack;
+		for (int i = 0; i < next.length; i++)
+			next[i] = Long.MIN_VALUE;
+	}
+
+	/**
+	 * @return Number of collectors.
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	public String getName(int i) {
+		return names[i];
+	}
+
+	public long getPeriod(int i) {
+		return periods[i];
+	}
+
+	/**
+	 * @param i
+	 * @return Due time of the collector (Long.MIN_VALUE if never run).
+	 */
+	public long getNext(int i) {
+		return next[i];
+	}
+
+	/**
+	 * Restore the due time of a collector, for example from the previous process.
+	 * Due times too far in the future (the clock was reset by a reboot) make the
+	 * collector due now.
+	 * @param i
+	 * @param due
+	 * @param now
+	 */
+	public void setNext(int i, long due, long now) {
+		next[i] = (due > now + periods[i] ? now : due);
+	}
+
+	/**
+	 * @param i
+	 * @param now
+	 * @return true if the collector should run in a round at now.
+	 */
+	public boolean isDue(int i, long now) {
+		return next[i] == Long.MIN_VALUE || next[i] - slack <= now;
+	}
+
+	/**
+	 * The collector ran in a round at now. Within the slack of its due time the
+	 * next due time follows the previous one, so that a collector run ahead of
+	 * time does not run more often. Otherwise (late rounds, event triggered
+	 * rounds) the period starts from now.
+	 * @param i
+	 * @param now
+	 */
+	public void ran(int i, long now) {
+		long base = now;
+		if (next[i] != Long.MIN_VALUE && next[i] >= now - slack && next[i] <= now + slack)
+			base = next[i];
+		next[i] = base + periods[i];
+	}
+
+	/**
+	 * Mark the due collectors as run.
+	 * @param now
+	 * @return The due collectors.
+	 */
+	public boolean[] runDue(long now) {
+		boolean[] due = new boolean[names.length];
+		for (int i = 0; i < names.length; i++) {
+			due[i] = isDue(i, now);
+			if (due[i])
+				ran(i, now);
+		}
+		return due;
+	}
+
+	/**
+	 * @param now
+	 * @return Time of the next wakeup (now if some collector is due already).
+	 */
+	public long nextWakeup(long now) {
+		long t = Long.MAX_VALUE;
+		for (int i = 0; i < names.length; i++)
+			t = Math.min(t, next[i]);
+		return Math.max(t, now);
+	}
+
+	/**
+	 * Run a copy of the schedule on a simulated clock, waking up only when the
+	 * next collector is due.
+	 * @param now start time
+	 * @param duration
+	 * @param runs out: number of runs of each collector (or null)
+	 * @return Number of wakeups.
+	 */
+	public int simulate(long now, long duration, int[] runs) {
+		CollectionSchedule s = new CollectionSchedule(names, periods, slack);
+		System.arraycopy(next, 0, s.next, 0, next.length);
+		int wakeups = 0;
+		long t = s.nextWakeup(now);
+		while (t < now + duration) {
+			boolean[] due = s.runDue(t);
+			for (int i = 0; runs != null && i < due.length; i++)
+				if (due[i])
+					runs[i] += 1;
+			wakeups += 1;
+			t = s.nextWakeup(t);
+		}
+		return wakeups;
+	}
+}
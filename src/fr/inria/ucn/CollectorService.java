@@ -23,13 +23,16 @@ import java.util.List;
 
 import fr.inria.ucn.collectors.AppDataUsageCollector;
 import fr.inria.ucn.collectors.Collector;
+import fr.inria.ucn.collectors.CpuFreqCollector;
 import fr.inria.ucn.collectors.DeviceInfoCollector;
 import fr.inria.ucn.collectors.LlamaCollector;
 import fr.inria.ucn.collectors.NetworkStateCollector;
+import fr.inria.ucn.collectors.PackageDictionaryCollector;
 import fr.inria.ucn.collectors.RunningAppsCollector;
 import fr.inria.ucn.collectors.SocketsCollector;
 import fr.inria.ucn.collectors.SysStateCollector;
 import fr.inria.ucn.listeners.MyPhoneStateListener;
+import fr.inria.ucn.listeners.PackageChangeListener;
 import fr.inria.ucn.listeners.SystemStateListener;
 import android.app.IntentService;
 import android.content.Intent;
@@ -42,12 +45,21 @@ import android.util.Log;
  */
 public class CollectorService extends IntentService {
 
+	/* Periods of the slow changing data (ms), the others follow the sampling interval. */
+	private static final long RUNNING_APPS_PERIOD = 10*60*1000;
+	private static final long LLAMA_PERIOD = 60*60*1000;
+
 	private DataStore dstore = null;
 	
 	private List<Collector> oneshotCollectors = new ArrayList<Collector>();
-	private List<Collector> periodicCollectors = new ArrayList<Collector>();
 	private MyPhoneStateListener psl = null;
 	
+	/* The service is destroyed between rounds, the periodic collectors and their
+	 * health live as long as the process (guarded by the class). */
+	private static List<SupervisedCollector> firstCollectors = null; // run before the periodic collectors
+	private static List<SupervisedCollector> periodicCollectors = null; // run concurrently
+	private static RoundExecutor roundExecutor = null;
+	
 	public CollectorService() {
 		super("UCNDataCollectorService");
 	}
@@ -66,28 +78,52 @@ public class CollectorService extends IntentService {
 			Log.e(Constants.LOGTAG, "failed to open the datastore", ex);
 		}
 		
+		// collectors in this process write through the in-memory queue
+		RecordQueue.attach(dstore);
+		CounterDeltas.attach(dstore);
+		
 		// create instances of collectors		
 		oneshotCollectors.add(new DeviceInfoCollector());
 
-		periodicCollectors.add(new SysStateCollector());
-		periodicCollectors.add(new NetworkStateCollector());		
-		periodicCollectors.add(new SocketsCollector());		
-		periodicCollectors.add(new RunningAppsCollector());
-		periodicCollectors.add(new AppDataUsageCollector());
-		periodicCollectors.add(new LlamaCollector());
+		createPeriodicCollectors();
 		
 		psl = new MyPhoneStateListener();
 	}
 
+	private static synchronized void createPeriodicCollectors() {
+		if (roundExecutor != null)
+			return;
+		
+		firstCollectors = new ArrayList<SupervisedCollector>();
+		firstCollectors.add(supervise(new PackageDictionaryCollector())); // before the collectors referring to uids
+		periodicCollectors = new ArrayList<SupervisedCollector>();
+		periodicCollectors.add(supervise(new SysStateCollector()));
+		periodicCollectors.add(supervise(new CpuFreqCollector()));
+		periodicCollectors.add(new SupervisedCollector(new NetworkStateCollector(), 
+				NetworkStateCollector.IP_EXEC_TIMEOUT + SupervisedCollector.DEFAULT_TIMEOUT)); // may fork ip
+		periodicCollectors.add(supervise(new SocketsCollector()));
+		periodicCollectors.add(new SupervisedCollector(new RunningAppsCollector(), 
+				SupervisedCollector.DEFAULT_TIMEOUT, RUNNING_APPS_PERIOD));
+		periodicCollectors.add(supervise(new AppDataUsageCollector()));
+		periodicCollectors.add(new SupervisedCollector(new LlamaCollector(), 
+				SupervisedCollector.DEFAULT_TIMEOUT, LLAMA_PERIOD)); // user exported file
+		
+		roundExecutor = new RoundExecutor(RoundExecutor.POOL_SIZE);
+	}
+
+	private static SupervisedCollector supervise(Collector c) {
+		return new SupervisedCollector(c, SupervisedCollector.DEFAULT_TIMEOUT);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see android.app.IntentService#onDestroy()
 	 */
 	@Override
 	public void onDestroy() {
-		dstore.close();
+		CounterDeltas.detach();
+		RecordQueue.detach(); // closes the dstore after the pending writes
 		oneshotCollectors.clear();
-		periodicCollectors.clear();
 		
 		// FIXME: this should really remain active on the bg.. 
 		if (psl.isEnabled()) {
@@ -119,6 +155,11 @@ public class CollectorService extends IntentService {
 				Log.d(Constants.LOGTAG, "enableReceiver " + SystemStateListener.class);
 				Helpers.enableReceiver(this.getApplicationContext(), SystemStateListener.class);
 
+				// package changes were not tracked while stopped
+				PackageCache.clear();
+				Log.d(Constants.LOGTAG, "enableReceiver " + PackageChangeListener.class);
+				Helpers.enableReceiver(this.getApplicationContext(), PackageChangeListener.class);
+
 				// FIXME: this listener goes away if the service is killed?
 				Log.d(Constants.LOGTAG, "enable " + psl.getClass().getSimpleName());
 				psl.enable(this.getApplicationContext());
@@ -146,6 +187,9 @@ public class CollectorService extends IntentService {
 				Log.d(Constants.LOGTAG, "disableReceiver " + SystemStateListener.class);
 				Helpers.disableReceiver(this.getApplicationContext(), SystemStateListener.class);
 
+				Log.d(Constants.LOGTAG, "disableReceiver " + PackageChangeListener.class);
+				Helpers.disableReceiver(this.getApplicationContext(), PackageChangeListener.class);
+
 				Log.d(Constants.LOGTAG, "disable " + psl.getClass().getSimpleName());
 				psl.disable(this.getApplicationContext());
 
@@ -160,16 +204,34 @@ public class CollectorService extends IntentService {
 			startService(sintent);
 			
 		} else if (intent.getAction().equals(Constants.ACTION_COLLECT)) {
-			for (Collector c : periodicCollectors) {
-				Log.d(Constants.LOGTAG, "run " + c.getClass().getSimpleName());
-				c.run(this.getApplicationContext(),nowts);
+			boolean scheduled = intent.getBooleanExtra(Constants.INTENT_EXTRA_SCHEDULED, false);
+			RoundContext.begin(scheduled);
+			List<SupervisedCollector> round = Scheduler.getRound(this.getApplicationContext(), periodicCollectors, scheduled);
+			if (round.size() > 0) {
+				Log.d(Constants.LOGTAG, "round first: " + roundExecutor.run(this.getApplicationContext(), nowts, 
+						firstCollectors, RoundExecutor.ROUND_DEADLINE));
+				Log.d(Constants.LOGTAG, "round: " + roundExecutor.run(this.getApplicationContext(), nowts, 
+						round, RoundExecutor.ROUND_DEADLINE));
+				Scheduler.endRound(this.getApplicationContext(), periodicCollectors, scheduled);
+			}
+			if (Log.isLoggable(Constants.LOGTAG, Log.DEBUG)) {
+				Log.d(Constants.LOGTAG, "health: executor " + roundExecutor.getHealthStats());
+				for (SupervisedCollector c : firstCollectors)
+					Log.d(Constants.LOGTAG, "health: " + c.getHealthStats());
+				for (SupervisedCollector c : periodicCollectors)
+					Log.d(Constants.LOGTAG, "health: " + c.getHealthStats());
 			}
+			Log.d(Constants.LOGTAG, "roundcontext: " + RoundContext.end());
+			Log.d(Constants.LOGTAG, "packagecache: " + PackageCache.roundStats());
+			Log.d(Constants.LOGTAG, "envelope: " + RecordEnvelope.stats());
 			
 		} else if (intent.getAction().equals(Constants.ACTION_DATA)) {
-			String data = intent.getStringExtra(Constants.INTENT_EXTRA_DATA);
-			dstore.addData(data);
+			byte[] data = intent.getByteArrayExtra(Constants.INTENT_EXTRA_DATA);
+			dstore.addRecord(data);
 			
 		} else if (intent.getAction().equals(Constants.ACTION_UPLOAD)) {
+			// include anything still waiting in the queue
+			RecordQueue.flush();
 			if (DataUploader.upload(getApplicationContext(), dstore)) {
 				try {
 					dstore.addKeyValue(Constants.STATUS_LAST_UPLOAD, nows);
@@ -180,6 +242,9 @@ public class CollectorService extends IntentService {
 			}
 			
 		} else if (intent.getAction().equals(Constants.ACTION_RELEASE_WL)) {
+			// make sure queued records hit the disk before we let the CPU sleep
+			RecordQueue.flush();
+			Log.d(Constants.LOGTAG, "recordqueue: " + RecordQueue.stats());
 			Helpers.releaseLock();
 		}
 		
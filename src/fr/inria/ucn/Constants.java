@@ -63,6 +63,7 @@ public interface Constants {
 	public static final String INTENT_EXTRA_STATUS_KEY = "fr.inria.ucn.intent.STATUS_KEY";
 	public static final String INTENT_EXTRA_STATUS_VALUE = "fr.inria.ucn.intent.STATUS_VALUE";
 	public static final String INTENT_EXTRA_RELEASE_WL = "fr.inria.ucn.intent.RELEASE_WL";
+	public static final String INTENT_EXTRA_SCHEDULED = "fr.inria.ucn.intent.SCHEDULED";
 	
 	/** Status keys (for status bcasts and datastore). */
 	public static final String STATUS_LAST_UPLOAD = "fr.inria.ucn.datastore.STATUS_LAST_UPLOAD";
@@ -78,6 +79,8 @@ public interface Constants {
 	
     /** Periodic collection interval. */
     public static final String PREF_INTERVAL = "pref_interval";
+    /** Periodic collection max interval (idle device). */
+    public static final String PREF_MAX_INTERVAL = "pref_max_interval";
     /** Periodic collection night pause start. */
     public static final String PREF_NIGHT_START = "pref_start_hour";
     /** Periodic collection night pause stop. */
@@ -95,6 +98,22 @@ public interface Constants {
     public static final String PREF_HIDDEN_FIRST = "pref_hidden_first";
     public static final String PREF_HIDDEN_ENABLED = "pref_hidden_enabled";
     public static final String PREF_HIDDEN_LASTUPLOAD = "pref_hidden_lastupload";
+    /** Prefix of hidden prefs that store the negotiated upload encoding per upload url. */
+    public static final String PREF_HIDDEN_UPLOAD_ENCODING = "pref_hidden_upload_encoding_";
+    /** Hidden pref: number of upload batches prepared ahead of the one being sent (0 = no pipelining). */
+    public static final String PREF_HIDDEN_UPLOAD_WINDOW = "pref_hidden_upload_window";
+    /** Hidden pref: codec used to store the records ("json" or "binary"). */
+    public static final String PREF_HIDDEN_RECORD_CODEC = "pref_hidden_record_codec";
+    /** Hidden pref: signature of the installed packages in the last package_dictionary. */
+    public static final String PREF_HIDDEN_PACKAGE_SIGNATURE = "pref_hidden_package_signature";
+    /** Hidden prefs: cpu lines of /proc/stat at the previous scheduled round, their timestamp and boot id. */
+    public static final String PREF_HIDDEN_CPU_SNAPSHOT = "pref_hidden_cpu_snapshot";
+    public static final String PREF_HIDDEN_CPU_SNAPSHOT_TS = "pref_hidden_cpu_snapshot_ts";
+    public static final String PREF_HIDDEN_CPU_SNAPSHOT_BOOT = "pref_hidden_cpu_snapshot_boot";
+    /** Hidden pref: also sample the cpu usage over a short window on the background. */
+    public static final String PREF_HIDDEN_CPU_WINDOW = "pref_hidden_cpu_window";
+    /** Hidden pref: state of the adaptive sampling interval policy. */
+    public static final String PREF_HIDDEN_ADAPTIVE_STATE = "pref_hidden_adaptive_state";
     public static final String PREF_UPLOAD = "pref_upload";
     
     @SuppressWarnings("serial")
@@ -103,6 +122,20 @@ public interface Constants {
     	put("UK","https://ucnproject.uk/ucnupload/");
     }};
     
+    /** Upload body Content-Encoding to try first per country (none if missing). */
+    @SuppressWarnings("serial")
+	public static final Map<String, String> UPLOAD_ENCODINGS = new HashMap<String,String>() {{
+    	put("FR","gzip");
+    	put("UK","gzip");
+    }};
+    
+    /** Record codec accepted by the upload server per country (json if missing). */
+    @SuppressWarnings("serial")
+	public static final Map<String, String> UPLOAD_CODECS = new HashMap<String,String>() {{
+    	put("FR","json");
+    	put("UK","json");
+    }};
+    
     @SuppressWarnings("serial")
 	public static final Map<String, String> WEBSITE_URLS = new HashMap<String,String>() {{
     	put("FR","https://muse.inria.fr/ucn/");
@@ -0,0 +1,379 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Delta encoding of cumulative counters (/proc/net/dev, /proc/net/snmp, TrafficStats, ...).
+ *
+ * A collector registers the JSON objects (or arrays) holding its counters with a {@link Sample} and
+ * commits it before sending the record. The first sample of a stream, and then one sample
+ * every {@link #KEYFRAME_INTERVAL}, is a keyframe that carries the absolute values. The
+ * other samples carry the difference to the latest keyframe (the registered objects are
+ * rewritten in place), so each record can be decoded with its keyframe only:
+ *
+ * <pre>value = keyframe value (0 if missing) + delta</pre>
+ *
+ * A new keyframe is started after a reboot (boot id changes) or when any counter
+ * decreases. Negative values (counter not available) are left untouched. The keyframe
+ * state is kept in memory and persisted in the data store kv table, so it survives
+ * process restarts. The returned marker object tells how to interpret the record:
+ *
+ * <pre>{"mode" : "keyframe"|"delta"|"absolute", "keyframe_ts" : ..., "reason" : ...}</pre>
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class CounterDeltas {
+
+	/** Max time between two keyframes of a stream. */
+	public static final long KEYFRAME_INTERVAL = 60*60*1000; // 1h
+
+	/** Record modes. */
+	public static final String MODE_KEYFRAME = "keyframe";
+	public static final String MODE_DELTA = "delta";
+	public static final String MODE_ABSOLUTE = "absolute";
+
+	private static final String KV_PREFIX = "counters_";
+
+	/* Data store for the keyframe state (null if not attached in this process). */
+	private static DataStore dstore = null;
+
+	/* Latest keyframe per stream. */
+	private static final Map<String, Keyframe> keyframes = new HashMap<String, Keyframe>();
+
+	/* Keyframe of a stream: timestamp, boot id and counter values by path. */
+	private static class Keyframe {
+		long ts;
+		String boot;
+		Map<String, Long> base = new HashMap<String, Long>();
+
+		String toJson() throws JSONException {
+			JSONObject o = new JSONObject();
+			o.put("ts", ts);
+			o.put("boot", boot);
+			JSONObject b = new JSONObject();
+			for (Map.Entry<String, Long> e : base.entrySet())
+				b.put(e.getKey(), e.getValue().longValue());
+			o.put("base", b);
+			return o.toString();
+		}
+
+		static Keyframe fromJson(String s) throws JSONException {
+			JSONObject o = new JSONObject(s);
+			Keyframe k = new Keyframe();
+			k.ts = o.getLong("ts");
+			k.boot = o.optString("boot", null);
+			JSONObject b = o.getJSONObject("base");
+			Iterator<?> it = b.keys();
+			while (it.hasNext()) {
+				String key = (String)it.next();
+				k.base.put(key, b.getLong(key));
+			}
+			return k;
+		}
+	}
+
+	/* Registered counters: keys and values of a JSON object or of an array. */
+	private static abstract class Group {
+		final String path;
+
+		Group(String path) {
+			this.path = path;
+		}
+
+		abstract int size();
+		abstract String key(int i);
+		abstract long get(int i) throws JSONException;
+		abstract void set(int i, long v) throws JSONException;
+	}
+
+	private static class JsonGroup extends Group {
+		final JSONObject o;
+		final List<String> keys;
+
+		JsonGroup(String path, JSONObject o, Set<String> gauges) {
+			super(path);
+			this.o = o;
+			this.keys = counterKeys(o, gauges);
+		}
+
+		int size() {
+			return keys.size();
+		}
+		String key(int i) {
+			return keys.get(i);
+		}
+		long get(int i) throws JSONException {
+			return o.getLong(keys.get(i));
+		}
+		void set(int i, long v) throws JSONException {
+			o.put(keys.get(i), v);
+		}
+	}
+
+	private static class ArrayGroup extends Group {
+		final String[] keys;
+		final long[] values;
+		final int off;
+
+		ArrayGroup(String path, String[] keys, long[] values, int off) {
+			super(path);
+			this.keys = keys;
+			this.values = values;
+			this.off = off;
+		}
+
+		int size() {
+			return keys.length;
+		}
+		String key(int i) {
+			return keys[i];
+		}
+		long get(int i) {
+			return values[off + i];
+		}
+		void set(int i, long v) {
+			values[off + i] = v;
+		}
+	}
+
+	/**
+	 * Counters of a single record.
+	 */
+	public static final class Sample {
+		private final String stream;
+		private final long ts;
+		private final List<Group> groups = new ArrayList<Group>();
+
+		private Sample(String stream, long ts) {
+			this.stream = stream;
+			this.ts = ts;
+		}
+
+		/**
+		 * Register an object whose integer values are all counters.
+		 * @param path unique path of the object in the record
+		 * @param counters
+		 */
+		public void add(String path, JSONObject counters) {
+			add(path, counters, null);
+		}
+
+		/**
+		 * Register an object whose integer values are counters, except the
+		 * given gauges (current values and constants) that are left absolute.
+		 * @param path unique path of the object in the record
+		 * @param counters
+		 * @param gauges keys of the gauges, may be null
+		 */
+		public void add(String path, JSONObject counters, Set<String> gauges) {
+			if (counters!=null)
+				groups.add(new JsonGroup(path, counters, gauges));
+		}
+
+		/**
+		 * Register counters held in an array, for records that are streamed
+		 * with a RecordWriter (write the values after the commit).
+		 * @param path unique path of the counters in the record
+		 * @param keys counter names
+		 * @param values values[off+i] is the counter keys[i]
+		 * @param off
+		 */
+		public void add(String path, String[] keys, long[] values, int off) {
+			groups.add(new ArrayGroup(path, keys, values, off));
+		}
+
+		/**
+		 * Encode the registered counters (in place).
+		 * @return the marker object to add to the record
+		 * @throws JSONException
+		 */
+		public JSONObject commit() throws JSONException {
+			return CounterDeltas.commit(this);
+		}
+
+		/**
+		 * Tells, before the commit, whether the sample would start a keyframe. For
+		 * collectors that only send the counters that changed: a keyframe must have
+		 * them all.
+		 * @return the reason of the keyframe, or null if the sample would be a delta
+		 * (or absolute) sample
+		 * @throws JSONException
+		 */
+		public String getKeyframeReason() throws JSONException {
+			return CounterDeltas.getKeyframeReason(this);
+		}
+	}
+
+	private CounterDeltas() {
+	}
+
+	/**
+	 * Use the given data store to persist the keyframes.
+	 * @param ds
+	 */
+	public static synchronized void attach(DataStore ds) {
+		dstore = ds;
+		keyframes.clear();
+	}
+
+	/**
+	 * Stop delta encoding in this process (records are sent with absolute values).
+	 */
+	public static synchronized void detach() {
+		dstore = null;
+		keyframes.clear();
+	}
+
+	/**
+	 * @param stream record stream name (usually the collection name)
+	 * @param ts record timestamp
+	 * @return new empty sample
+	 */
+	public static Sample begin(String stream, long ts) {
+		return new Sample(stream, ts);
+	}
+
+	private static synchronized JSONObject commit(Sample s) throws JSONException {
+		JSONObject marker = new JSONObject();
+		if (dstore == null) {
+			// nowhere to keep the keyframes
+			marker.put("mode", MODE_ABSOLUTE);
+			return marker;
+		}
+
+		String boot = Helpers.getBootId();
+		Keyframe k = getKeyframe(s.stream);
+		String reason = getReason(s, k, boot);
+		if (reason != null) {
+			// new keyframe with the absolute values
+			k = new Keyframe();
+			k.ts = s.ts;
+			k.boot = boot;
+			for (Group g : s.groups) {
+				for (int i = 0; i < g.size(); i++) {
+					long v = g.get(i);
+					if (v >= 0)
+						k.base.put(g.path + "/" + g.key(i), v);
+				}
+			}
+			putKeyframe(s.stream, k);
+			marker.put("mode", MODE_KEYFRAME);
+			marker.put("reason", reason);
+			Log.d(Constants.LOGTAG, "counters: " + s.stream + " keyframe (" + reason + "), " + k.base.size() + " counters");
+
+		} else {
+			// difference to the keyframe, counters missing from the keyframe start from 0
+			for (Group g : s.groups) {
+				for (int i = 0; i < g.size(); i++) {
+					long v = g.get(i);
+					Long b = k.base.get(g.path + "/" + g.key(i));
+					if (v >= 0 && b != null)
+						g.set(i, v - b.longValue());
+				}
+			}
+			marker.put("mode", MODE_DELTA);
+		}
+		marker.put("keyframe_ts", k.ts);
+		return marker;
+	}
+
+	private static synchronized String getKeyframeReason(Sample s) throws JSONException {
+		if (dstore == null)
+			return null;
+		return getReason(s, getKeyframe(s.stream), Helpers.getBootId());
+	}
+
+	/* Why the sample starts a new keyframe (null if it does not). */
+	private static String getReason(Sample s, Keyframe k, String boot) throws JSONException {
+		if (k == null)
+			return "first";
+		if (boot!=null && !boot.equals(k.boot))
+			return "reboot";
+		if (s.ts < k.ts || s.ts - k.ts >= KEYFRAME_INTERVAL)
+			return "interval";
+		if (hasReset(s, k))
+			return "reset";
+		return null;
+	}
+
+	/* Any counter smaller than in the keyframe ? */
+	private static boolean hasReset(Sample s, Keyframe k) throws JSONException {
+		for (Group g : s.groups) {
+			for (int i = 0; i < g.size(); i++) {
+				long v = g.get(i);
+				Long b = k.base.get(g.path + "/" + g.key(i));
+				if (v >= 0 && b != null && v < b.longValue())
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/* Keys of the integer values of the object, gauges excluded. */
+	private static List<String> counterKeys(JSONObject o, Set<String> gauges) {
+		List<String> keys = new ArrayList<String>(o.length());
+		Iterator<?> it = o.keys();
+		while (it.hasNext()) {
+			String key = (String)it.next();
+			Object v = o.opt(key);
+			if ((v instanceof Integer || v instanceof Long) && (gauges == null || !gauges.contains(key)))
+				keys.add(key);
+		}
+		return keys;
+	}
+
+	private static Keyframe getKeyframe(String stream) {
+		Keyframe k = keyframes.get(stream);
+		if (k == null) {
+			String s = dstore.getKeyValue(KV_PREFIX + stream);
+			if (s != null) {
+				try {
+					k = Keyframe.fromJson(s);
+					keyframes.put(stream, k);
+				} catch (JSONException e) {
+					Log.w(Constants.LOGTAG, "counters: invalid keyframe for " + stream, e);
+				}
+			}
+		}
+		return k;
+	}
+
+	private static void putKeyframe(String stream, Keyframe k) {
+		keyframes.put(stream, k);
+		try {
+			dstore.addKeyValue(KV_PREFIX + stream, k.toJson());
+		} catch (Exception e) {
+			// keep going with the in-memory keyframe
+			Log.w(Constants.LOGTAG, "counters: failed to store keyframe for " + stream, e);
+		}
+	}
+}
@@ -18,15 +18,18 @@
  ******************************************************************************/
 package fr.inria.ucn;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /**
@@ -39,14 +42,19 @@ public class DataStore {
 	private SQLiteDatabase database;
 	private MySQLiteOpenHelper dbHelper;
 	private boolean readonly;
+	
+	/* Compiled data insert, created on first use. */
+	private SQLiteStatement insertData = null;
 
 	private static final int DATABASE_VERSION = 1;
 	private static final String DATABASE_NAME = "ucndata.db";
 	
 	private static final String DATA_TABLE_CREATE = "CREATE TABLE data (id INTEGER primary key autoincrement, json TEXT);";
 	private static final String KV_TABLE_CREATE = "CREATE TABLE kv (key TEXT, value TEXT);";
-	private static final String SELECT_DATA = "SELECT * FROM data";
 	private static final String SELECT_KV = "SELECT value FROM kv WHERE key=?";
+	private static final String INSERT_DATA = "INSERT INTO data (json) VALUES (?)";
+	private static final String SELECT_DATA_FROM = "SELECT id, json FROM data WHERE id>=? ORDER BY id";
+	private static final String DELETE_DATA_RANGE = "DELETE FROM data WHERE id>=? AND id<=?";
 
 	/** Open helper */
 	private class MySQLiteOpenHelper extends SQLiteOpenHelper {
@@ -86,6 +94,14 @@ public class DataStore {
 		dbHelper = new MySQLiteOpenHelper(context);
 	}
 
+	/**
+	 * Store without a database, for subclasses that keep the data elsewhere
+	 * (unit tests).
+	 */
+	protected DataStore() {
+		dbHelper = null;
+	}
+
 	/**
 	 * 
 	 * @throws SQLException
@@ -102,7 +118,11 @@ public class DataStore {
 	/**
 	 * 
 	 */
-	public void close() {
+	public synchronized void close() {
+		if (insertData!=null) {
+			insertData.close();
+			insertData = null;
+		}
 		dbHelper.close();
 	}
 
@@ -116,13 +136,12 @@ public class DataStore {
 			throw new CollectorException("Tried to write to a readonly datastore handle!");
 		
 		if (key!=null) {
-			String sql = null;
+			// bound arguments, values may contain quotes (json)
 			if (getKeyValue(key)!=null) {
-				sql = "UPDATE kv SET value='"+value+"' WHERE key='"+key+"';";			
+				database.execSQL("UPDATE kv SET value=? WHERE key=?;", new Object[] {value, key});
 			} else {
-				sql = "INSERT INTO kv (key, value) VALUES ('"+key+"', '"+value+"');";
+				database.execSQL("INSERT INTO kv (key, value) VALUES (?, ?);", new Object[] {key, value});
 			}
-			database.execSQL(sql);
 		}
 	}
 
@@ -143,47 +162,149 @@ public class DataStore {
 	}
 	
 	/**
-	 * Add a new data item.
-	 * @param ts
-	 * @param json
+	 * Add a new encoded data item (see {@link RecordCodec}).
+	 * @param record
+	 */
+	public synchronized void addRecord(byte[] record) {
+		if (record!=null) {
+			SQLiteStatement stmt = getInsertStatement();
+			stmt.bindBlob(1, record);
+			stmt.executeInsert();
+			stmt.clearBindings();
+		}
+	}
+	
+	/**
+	 * Add a list of encoded data items (see {@link RecordCodec}) in a single transaction.
+	 * @param records
+	 * @return number of items written
+	 */
+	public synchronized int addRecordBatch(List<byte[]> records) {
+		if (records==null || records.size()==0)
+			return 0;
+		
+		long start = System.nanoTime();
+		long bytes = 0;
+		int count = 0;
+		SQLiteStatement stmt = getInsertStatement();
+		database.beginTransaction();
+		try {
+			for (byte[] record : records) {
+				if (record==null)
+					continue;
+				stmt.bindBlob(1, record);
+				stmt.executeInsert();
+				bytes += record.length;
+				count += 1;
+			}
+			database.setTransactionSuccessful();
+		} finally {
+			stmt.clearBindings();
+			database.endTransaction();
+		}
+		
+		long dur = (System.nanoTime() - start)/1000; // us
+		Log.d(Constants.LOGTAG, "datastore: batch of " + count + " records, " + bytes + " bytes in " + dur + " us (" 
+				+ (dur>0 ? (count*1000000L/dur) : count) + " items/s)");
+		return count;
+	}
+	
+	/**
+	 * Read the data item bytes from a data cursor column. Items are stored either 
+	 * as JSON text (older versions) or as encoded records.
+	 * @param c
+	 * @param col
+	 * @return the item as encoded record
 	 */
-	public void addData(String json) {
-		if (json!=null) {
-			json = json.replaceAll("'", "''");
-			String sql = "INSERT INTO data (json) VALUES ('"+json+"');";
-			database.execSQL(sql);		
+	public static byte[] getRecord(Cursor c, int col) {
+		if (c.getType(col)==Cursor.FIELD_TYPE_BLOB) {
+			return c.getBlob(col);
+		}
+		try {
+			return c.getString(col).getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
 		}
 	}
+	
+	/* Compile the insert statement once and reuse it for all writes. */
+	private SQLiteStatement getInsertStatement() {
+		if (insertData==null) {
+			insertData = database.compileStatement(INSERT_DATA);
+		}
+		return insertData;
+	}
 
 	/**
-	 * Get non-uploaded data items.
-	 * @param limit max number of entries to return
-	 * @return Map of id -> json
+	 * Open a cursor over the non-uploaded data items in insertion order. The rows 
+	 * are paged in from the database as the cursor moves, so the memory use does
+	 * not depend on the number of stored items. The caller must close the cursor.
+	 * @param fromId first item id to return
+	 * @param limit max number of entries to return (ignored if <= 0)
+	 * @return Cursor of (id, record), see {@link #getRecord(Cursor, int)}
 	 */
-	@SuppressLint("UseSparseArrays")
-	public Map<Integer,String> getData(int limit) {
-		Map<Integer,String> res = new HashMap<Integer, String>();
-		String q = SELECT_DATA;
+	public Cursor getDataCursor(int fromId, int limit) {
+		String q = SELECT_DATA_FROM;
 		if (limit>0)
 			q += " LIMIT " + limit;
-		Cursor c = database.rawQuery(q, null);
-		while (c.moveToNext()) {
-			String json = c.getString(1);
-			json = json.replaceAll("''", "'");
-			res.put(c.getInt(0), json);
+		return database.rawQuery(q, new String[] {Integer.toString(fromId)});
+	}
+	
+	/**
+	 * Remove all data items with from <= id <= to.
+	 * @param from
+	 * @param to
+	 * @return number of items removed
+	 */
+	public synchronized int removeDataRange(int from, int to) {
+		if (from<0 || to<from)
+			return 0;
+		SQLiteStatement stmt = database.compileStatement(DELETE_DATA_RANGE);
+		try {
+			stmt.bindLong(1, from);
+			stmt.bindLong(2, to);
+			return stmt.executeUpdateDelete();
+		} finally {
+			stmt.close();
 		}
-		c.close();
-		return res;
 	}
 	
 	/**
-	 * 
-	 * @param idx
+	 * Remove a set of data items in a single transaction. Contiguous ids are 
+	 * removed with a single range delete.
+	 * @param ids
+	 * @return number of items removed
 	 */
-	public void removeData(int idx) {
-		if (idx>=0) {
-			String sql = "DELETE FROM data WHERE id="+idx+";";
-			database.execSQL(sql);
+	public synchronized int removeData(Collection<Integer> ids) {
+		if (ids==null || ids.size()==0)
+			return 0;
+		
+		List<Integer> sorted = new ArrayList<Integer>(ids);
+		Collections.sort(sorted);
+		
+		int count = 0;
+		SQLiteStatement stmt = database.compileStatement(DELETE_DATA_RANGE);
+		database.beginTransaction();
+		try {
+			int i = 0;
+			while (i < sorted.size()) {
+				// extend the range as long as the ids are contiguous
+				int from = sorted.get(i);
+				int to = from;
+				i += 1;
+				while (i < sorted.size() && sorted.get(i) <= to+1) {
+					to = sorted.get(i);
+					i += 1;
+				}
+				stmt.bindLong(1, from);
+				stmt.bindLong(2, to);
+				count += stmt.executeUpdateDelete();
+			}
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+			stmt.close();
 		}
+		return count;
 	}
 }
@@ -18,24 +18,33 @@
  ******************************************************************************/
 package fr.inria.ucn;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 
+import org.json.JSONException;
+
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Debug;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -48,13 +57,129 @@ public final class DataUploader {
 	private static final String LF = "\r\n";
 	private static final String TH = "--";
 	private static final String BOUNDARY = "*****";
+	private static final String GZIP = "gzip";
+	private static final String IDENTITY = "identity";
 
 	// max number of items to upload in single batch
 	private static final int UPLOAD_BATCH = 1000;
 	
+	// max bytes of data to upload in single batch (the batch is closed after 
+	// the item that crosses this limit)
+	private static final int UPLOAD_BATCH_BYTES = 512*1024;
+	
+	// output buffer size
+	private static final int UPLOAD_BUFFER = 8*1024;
+	
+	// default number of batches prepared ahead of the one on the wire (0 = no pipelining)
+	static final int DEFAULT_UPLOAD_WINDOW = 2;
+	
+	// max number of batches prepared ahead, whatever the preference says
+	private static final int MAX_UPLOAD_WINDOW = 2;
+	
+	// max bytes of data in a pipelined batch. The pipelined bodies are buffered in 
+	// memory on purpose, so that the next batches are read and compressed while 
+	// the current one is on the wire, and the connection gets a fixed length body. 
+	// Up to window + 2 bodies are held at a time (queued, being prepared, being sent), 
+	// so the peak is about (MAX_UPLOAD_WINDOW + 2) x 256 KB = 1 MB of uncompressed 
+	// data plus the last item of each batch. The serial path streams the body instead.
+	private static final int PIPELINED_BATCH_BYTES = 256*1024;
+	
 	/* Hide constructor, no instances needed. */
 	private DataUploader() {};
 	
+	/* Counts bytes written through the stream. */
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count += 1;
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+	
+	/* Upload progress and per stage timings (ms). */
+	static class UploadStats {
+		int nextId = 0;      // first item id not yet uploaded
+		int status = -1;     // http status of the last batch
+		int count = 0;       // items uploaded
+		long bytes = 0;      // data bytes uploaded
+		int batches = 0;
+		long prepare = 0;    // read + serialize (+ compress) batch
+		long stall = 0;      // sender waiting for the next batch
+		long send = 0;       // write body to the connection
+		long wait = 0;       // wait for the server response
+		long purge = 0;      // remove uploaded items
+		
+		@Override
+		public String toString() {
+			return "batches=" + batches + " prepare=" + prepare + "ms stall=" + stall + "ms send=" + send + 
+					"ms wait=" + wait + "ms purge=" + purge + "ms";
+		}
+	}
+	
+	/* Serialized upload batch of items firstId..lastId. */
+	private static class Batch {
+		int firstId = -1;
+		int lastId = -1;
+		int count = 0;
+		long bytes = 0;      // data bytes
+		byte[] body = null;  // multipart request body (possibly compressed)
+		boolean failed = false;
+	}
+	
+	/* Prepares batches on a background thread ahead of the sender. */
+	private static class Preparer extends Thread {
+		private final DataStore ds;
+		private final boolean gzip;
+		private final RecordCodec codec;
+		private final BlockingQueue<Batch> queue;
+		private volatile boolean stopped = false;
+		private int nextId;
+		private long prepare = 0;
+		
+		Preparer(DataStore ds, int fromId, boolean gzip, RecordCodec codec, int window) {
+			super("UCNUploadPreparer");
+			this.ds = ds;
+			this.nextId = fromId;
+			this.gzip = gzip;
+			this.codec = codec;
+			this.queue = new ArrayBlockingQueue<Batch>(window);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while (!stopped) {
+					long t = System.currentTimeMillis();
+					Batch b = prepareBatch(ds, nextId, PIPELINED_BATCH_BYTES, gzip, codec);
+					prepare += System.currentTimeMillis() - t;
+					queue.put(b);
+					if (b.count==0 || b.failed)
+						break; // all done
+					nextId = b.lastId + 1;
+				}
+			} catch (InterruptedException e) {
+			}
+		}
+		
+		void cancel() {
+			stopped = true;
+			interrupt();
+			try {
+				join();
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+	
 	/**
 	 * 
 	 * @return
@@ -64,6 +189,8 @@ public final class DataUploader {
 		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
 		boolean requireWifi = prefs.getBoolean(Constants.PREF_UPLOAD_WIFI, true);
 		String country = prefs.getString(Constants.PREF_COUNTRY, null);
+		int window = Math.min(MAX_UPLOAD_WINDOW, 
+				prefs.getInt(Constants.PREF_HIDDEN_UPLOAD_WINDOW, DEFAULT_UPLOAD_WINDOW));
 		
 		if (country == null) {
 			// no country ?
@@ -92,31 +219,34 @@ public final class DataUploader {
 			return false;
 		}
 		
-		Log.d(Constants.LOGTAG, "uploader: upload data to " + uploadto);
+		// body encoding: configured per server, unless the server has refused it before
+		String encoding = prefs.getString(Constants.PREF_HIDDEN_UPLOAD_ENCODING + uploadto, 
+				Constants.UPLOAD_ENCODINGS.get(country));
+		boolean gzip = GZIP.equals(encoding);
+		
+		// record encoding accepted by the server, stored records are transcoded if needed
+		RecordCodec codec = RecordCodecs.forName(Constants.UPLOAD_CODECS.get(country));
+		
+		Log.d(Constants.LOGTAG, "uploader: upload data to " + uploadto + (gzip ? " (gzip)" : "") + 
+				" as " + codec.getName() + ", window " + window);
 		
 		// perform uploads in batch
+		UploadStats st = new UploadStats();
 		boolean res = false;
-		int count = 0;
+		long start = System.currentTimeMillis();
 		while (true) {
-			Map<Integer,String> data = ds.getData(UPLOAD_BATCH);
-			List<Integer> uploaded = uploadBatch(data, url);
-
-			if (uploaded == null) {
-				res = false; // something went wrong, stop here
-				break;				
-			}
+			res = upload(ds, url, gzip, codec, window, st);
 			
-			// purge uploaded
-			for (Integer id : uploaded) {
-				Log.d(Constants.LOGTAG, "uploader: remove entry " + id);
-				ds.removeData(id.intValue());
-				count += 1;
+			if (!res && gzip && st.status == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+				// server does not accept compressed bodies, remember and retry plain
+				Log.w(Constants.LOGTAG, "uploader: gzip refused by " + uploadto + ", fall back to identity");
+				SharedPreferences.Editor edit = prefs.edit();
+				edit.putString(Constants.PREF_HIDDEN_UPLOAD_ENCODING + uploadto, IDENTITY);
+				edit.commit();
+				gzip = false;
+				continue;
 			}
-			
-			if (uploaded.size()==0) {
-				res = true; // done nothing more to upload
-				break;
-			} 
+			break;
 		}
 		
 		if (res) {
@@ -125,67 +255,258 @@ public final class DataUploader {
 			edit.commit();
 		}
 		
-		Log.d(Constants.LOGTAG,"uploader: uploaded " + count + " objects, result is " + (res ? "success" : "failure"));
+		long dur = System.currentTimeMillis() - start;
+		Log.d(Constants.LOGTAG,"uploader: uploaded " + st.count + " objects, " + st.bytes + " bytes in " + dur + " ms (" + 
+				(dur>0 ? st.count*1000L/dur : st.count) + " objects/s, " + (dur>0 ? st.bytes*1000L/dur : st.bytes) + 
+				" bytes/s), result is " + (res ? "success" : "failure"));
+		Log.d(Constants.LOGTAG,"uploader: stages " + st.toString());
 		return res;
 	}
 	
 	/*
-	 * Process upload batch. Returns list of uploaded items (can be empty) or null in case of failure.
+	 * Upload all data of the datastore to url, pipelined if window > 0.
 	 */
-	private static List<Integer> uploadBatch(Map<Integer,String> data, URL url) {
-		List<Integer> uploaded = new ArrayList<Integer>();
-		if (data==null || data.size()==0) {
-			return uploaded; // all done!
+	static boolean upload(DataStore ds, URL url, boolean gzip, RecordCodec codec, int window, UploadStats st) {
+		if (window > 0) {
+			return uploadPipelined(ds, url, gzip, codec, window, st);
+		} else {
+			return uploadSerial(ds, url, gzip, codec, st);
+		}
+	}
+	
+	/*
+	 * Upload batch by batch, streaming each batch from the datastore to the connection. 
+	 */
+	private static boolean uploadSerial(DataStore ds, URL url, boolean gzip, RecordCodec codec, UploadStats st) {
+		while (true) {
+			long t = System.currentTimeMillis();
+			List<Integer> uploaded = uploadBatch(ds, st.nextId, url, gzip, codec, st);
+			st.send += System.currentTimeMillis() - t;
+
+			if (uploaded == null) {
+				return false; // something went wrong, stop here
+			}
+			
+			if (uploaded.size()==0) {
+				return true; // done nothing more to upload
+			} 
+			
+			// purge uploaded
+			t = System.currentTimeMillis();
+			int removed = ds.removeData(uploaded);
+			st.purge += System.currentTimeMillis() - t;
+			st.nextId = uploaded.get(uploaded.size()-1).intValue()+1;
+			st.count += uploaded.size();
+			st.batches += 1;
+			Log.d(Constants.LOGTAG, "uploader: removed " + removed + " entries");
+		}
+	}
+	
+	/*
+	 * Upload with a background thread preparing up to window batches while the current
+	 * batch is on the wire. Memory use is bounded by (window + 2) batches of 
+	 * PIPELINED_BATCH_BYTES.
+	 */
+	private static boolean uploadPipelined(DataStore ds, URL url, boolean gzip, RecordCodec codec, int window, UploadStats st) {
+		Preparer prep = new Preparer(ds, st.nextId, gzip, codec, window);
+		prep.start();
+		
+		boolean res = false;
+		try {
+			while (true) {
+				long t = System.currentTimeMillis();
+				Batch b = prep.queue.poll(1, TimeUnit.SECONDS);
+				st.stall += System.currentTimeMillis() - t;
+				
+				if (b == null) {
+					if (prep.isAlive() || prep.queue.size()>0)
+						continue; // still preparing
+					res = false; // preparer died
+					break;
+				} else if (b.failed) {
+					res = false;
+					break;
+				} else if (b.count==0) {
+					res = true; // done nothing more to upload
+					break;
+				}
+				
+				if (!sendBatch(url, b, gzip, st)) {
+					res = false; // something went wrong, stop here
+					break;
+				}
+				
+				// purge uploaded
+				t = System.currentTimeMillis();
+				int removed = ds.removeDataRange(b.firstId, b.lastId);
+				st.purge += System.currentTimeMillis() - t;
+				st.nextId = b.lastId + 1;
+				st.count += b.count;
+				st.bytes += b.bytes;
+				st.batches += 1;
+				Log.d(Constants.LOGTAG, "uploader: removed " + removed + " entries");
+			}
+		} catch (InterruptedException e) {
+			res = false;
+		} finally {
+			prep.cancel();
+			st.prepare += prep.prepare;
 		}
+		return res;
+	}
+	
+	/*
+	 * Read and serialize the batch starting from item fromId, up to maxBytes of data. 
+	 * Returns an empty batch if there is nothing more to upload.
+	 */
+	private static Batch prepareBatch(DataStore ds, int fromId, int maxBytes, boolean gzip, RecordCodec codec) {
+		Batch b = new Batch();
+		Cursor cursor = null;
+		try {
+			cursor = ds.getDataCursor(fromId, UPLOAD_BATCH);
+			if (!cursor.moveToFirst()) {
+				return b; // all done!
+			}
+			
+			ByteArrayOutputStream body = new ByteArrayOutputStream(maxBytes/(gzip ? 4 : 1) + UPLOAD_BUFFER);
+			OutputStream out = (gzip ? new GZIPOutputStream(body, UPLOAD_BUFFER) : body);
+			b.firstId = cursor.getInt(0);
+			do {
+				b.lastId = cursor.getInt(0);
+				b.bytes += writePart(out, b.lastId, DataStore.getRecord(cursor, 1), codec);
+				b.count += 1;
+			} while (b.bytes < maxBytes && cursor.moveToNext());
+			
+			// end boundary
+			writeAscii(out, TH + BOUNDARY + TH + LF);
+			out.close(); // finishes the gzip stream
+			b.body = body.toByteArray();
+			
+		} catch (Exception e) {
+			Log.w(Constants.LOGTAG, "datauploader failed to prepare batch", e);
+			b.failed = true;
+		} finally {
+			if (cursor!=null)
+				cursor.close();
+		}
+		return b;
+	}
+	
+	/*
+	 * Send a prepared batch. Returns true if the server accepted the batch.
+	 */
+	private static boolean sendBatch(URL url, Batch b, boolean gzip, UploadStats st) {
+		HttpURLConnection conn = null;
+		OutputStream remoteout = null;
+		boolean res = false;
+		try {
+			long t = System.currentTimeMillis();
+			conn = openConnection(url, gzip);
+			
+			// body is ready, tell the connection its length so that it does not buffer a copy
+			conn.setFixedLengthStreamingMode(b.body.length);
+			remoteout = conn.getOutputStream();
+			remoteout.write(b.body);
+			remoteout.close();
+			remoteout = null;
+			
+			long t2 = System.currentTimeMillis();
+			st.send += t2 - t;
+			
+			// check server response
+			st.status = conn.getResponseCode();
+			st.wait += System.currentTimeMillis() - t2;
+			Log.d(Constants.LOGTAG,"uploader: uploaded " + b.count + " entries, " + b.bytes + " bytes as " + 
+					b.body.length + " bytes, server response " + st.status);
+			res = (st.status==200);
+			
+		} catch (IOException e) {
+			Log.w(Constants.LOGTAG, "datauploader failed", e);
+			res = false; // something went wrong, ignore this upload
+		} finally {
+			if (remoteout!=null) {
+				try {
+					remoteout.close();
+				} catch (IOException e) {
+				}
+				remoteout = null;				
+			}
+			
+			if (conn!=null) {
+				conn.disconnect();
+				conn = null;
+			}
+		}
+		return res;
+	}
+	
+	/*
+	 * Process upload batch starting from item fromId. The items are streamed from the datastore
+	 * cursor to the connection until the batch size limit is reached. Returns list of uploaded 
+	 * items (can be empty) or null in case of failure (see st.status for the server response 
+	 * code).
+	 */
+	private static List<Integer> uploadBatch(DataStore ds, int fromId, URL url, boolean gzip, RecordCodec codec, UploadStats st) {
+		List<Integer> uploaded = new ArrayList<Integer>();
+		st.status = -1;
 		
 		if (url==null) // should not happen
 			return null;
 		
+		Cursor cursor = ds.getDataCursor(fromId, UPLOAD_BATCH);
+		if (!cursor.moveToFirst()) {
+			cursor.close();
+			return uploaded; // all done!
+		}
+		
 		HttpURLConnection conn = null;
-		DataOutputStream remoteout = null;
+		OutputStream remoteout = null;
 		BufferedReader remotein = null;
+		long bytes = 0;
+		CountingOutputStream raw = null;
+		CountingOutputStream wire = null;
+		long cpustart = Debug.threadCpuTimeNanos();
 		try {			
-			if (url!=null) {
-				if (url.getProtocol().equals("https")) {
-					conn = (HttpsURLConnection)url.openConnection();
-				} else { 
-					conn = (HttpURLConnection)url.openConnection();
-				}
-				conn.setDoInput(true);
-				conn.setDoOutput(true);
-				conn.setUseCaches(false);
-				conn.setRequestMethod("POST");
-				conn.setRequestProperty("Connection", "Keep-Alive");
-				conn.setRequestProperty("Content-Type", "multipart/form-data;boundary="+BOUNDARY);
-				
-				remoteout = new DataOutputStream(conn.getOutputStream());	
+			conn = openConnection(url, gzip);
+			
+			// the body length is not known up front (streamed from the cursor and possibly 
+			// compressed), send it in chunks so that the connection does not buffer it all
+			conn.setChunkedStreamingMode(UPLOAD_BUFFER);
+			
+			wire = new CountingOutputStream(new BufferedOutputStream(conn.getOutputStream(), UPLOAD_BUFFER));
+			if (gzip) {
+				raw = new CountingOutputStream(new GZIPOutputStream(wire, UPLOAD_BUFFER));
+			} else {
+				raw = wire;
 			}
+			remoteout = raw;
 
-			for (Entry<Integer,String> e : data.entrySet()) {				
-				if (conn!=null) {
-					remoteout.writeBytes(TH + BOUNDARY + LF);
-					remoteout.writeBytes("Content-Disposition: form-data; name=\"json\";filename=\"" + e.getKey().toString() +"\"" + LF);
-					remoteout.writeBytes("Content-Type: application/json" + LF);
-					remoteout.writeBytes(LF);
-					remoteout.writeBytes(e.getValue());
-					remoteout.writeBytes(LF);
-					remoteout.flush();					
-				}
-
-				uploaded.add(e.getKey());
-			}
-			Log.d(Constants.LOGTAG, "uploader: logged/uploaded " + uploaded.size() + " entries");
+			do {
+				int id = cursor.getInt(0);
+				bytes += writePart(remoteout, id, DataStore.getRecord(cursor, 1), codec);
+				uploaded.add(id);
+			} while (bytes < UPLOAD_BATCH_BYTES && cursor.moveToNext());
 			
-			if (conn!=null) {
-				// end boundary
-				remoteout.writeBytes(TH + BOUNDARY + TH + LF);
-				remoteout.flush();					
+			cursor.close();
+			cursor = null;
+			Log.d(Constants.LOGTAG, "uploader: logged/uploaded " + uploaded.size() + " entries, " + bytes + " bytes");
+			
+			// end boundary
+			writeAscii(remoteout, TH + BOUNDARY + TH + LF);
+			remoteout.close(); // finishes the gzip stream
+			remoteout = null;
+			
+			Log.d(Constants.LOGTAG, "uploader: body " + raw.count + " bytes, sent " + wire.count + 
+					" bytes (ratio " + (wire.count>0 ? (raw.count*100/wire.count)/100.0 : 0) + 
+					"), cpu " + (Debug.threadCpuTimeNanos()-cpustart)/1000000 + " ms");
 
-				// check server response
-				Log.d(Constants.LOGTAG,"uploader: server response " + conn.getResponseCode());
-				if (conn.getResponseCode()!=200) {
-					uploaded = null; // something went wrong, ignore this upload
-				}
+			// check server response
+			st.status = conn.getResponseCode();
+			Log.d(Constants.LOGTAG,"uploader: server response " + st.status);
+			if (st.status!=200) {
+				uploaded = null; // something went wrong, ignore this upload
+			} else {
+				st.bytes += bytes;
 			}
 			
 		} catch (FileNotFoundException e) {
@@ -198,6 +519,11 @@ public final class DataUploader {
 			Log.w(Constants.LOGTAG, "datauploader failed", e);
 			uploaded = null; // something went wrong, ignore this upload
 		} finally {
+			if (cursor!=null) {
+				cursor.close();
+				cursor = null;
+			}
+			
 			if (remoteout!=null) {
 				try {
 					remoteout.flush();
@@ -223,4 +549,52 @@ public final class DataUploader {
 		
 		return uploaded;
 	}
+	
+	/* Open and configure the upload POST connection. */
+	private static HttpURLConnection openConnection(URL url, boolean gzip) throws IOException {
+		HttpURLConnection conn;
+		if (url.getProtocol().equals("https")) {
+			conn = (HttpsURLConnection)url.openConnection();
+		} else { 
+			conn = (HttpURLConnection)url.openConnection();
+		}
+		conn.setDoInput(true);
+		conn.setDoOutput(true);
+		conn.setUseCaches(false);
+		conn.setRequestMethod("POST");
+		conn.setRequestProperty("Connection", "Keep-Alive");
+		conn.setRequestProperty("Content-Type", "multipart/form-data;boundary="+BOUNDARY);
+		if (gzip)
+			conn.setRequestProperty("Content-Encoding", GZIP);
+		return conn;
+	}
+	
+	/* Write single multipart item in the given codec, returns the number of data bytes written. 
+	 * Items that can not be decoded are skipped (and removed with the rest of the batch), 
+	 * otherwise a single bad item would block the uploads for good. */
+	private static int writePart(OutputStream out, int id, byte[] record, RecordCodec codec) throws IOException {
+		byte[] data;
+		try {
+			data = RecordCodecs.transcode(record, codec);
+		} catch (JSONException e) {
+			Log.w(Constants.LOGTAG, "uploader: skip invalid record " + id + " (" + record.length + " bytes)", e);
+			return 0;
+		} catch (RuntimeException e) {
+			// truncated or corrupted binary record
+			Log.w(Constants.LOGTAG, "uploader: skip invalid record " + id + " (" + record.length + " bytes)", e);
+			return 0;
+		}
+		writeAscii(out, TH + BOUNDARY + LF);
+		writeAscii(out, "Content-Disposition: form-data; name=\"json\";filename=\"" + id +"\"" + LF);
+		writeAscii(out, "Content-Type: " + codec.getContentType() + LF);
+		writeAscii(out, LF);
+		out.write(data);
+		writeAscii(out, LF);
+		return data.length;
+	}
+	
+	/* Write multipart headers (always plain ascii). */
+	private static void writeAscii(OutputStream out, String s) throws IOException {
+		out.write(s.getBytes("US-ASCII"));
+	}
 }
@@ -24,12 +24,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Method;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.List;
-import java.util.TimeZone;
 import java.util.UUID;
 
 import org.json.JSONArray;
@@ -42,9 +39,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.PowerManager;
@@ -167,46 +162,56 @@ public final class Helpers {
 	 * @param ts  periodic collection timestamp or event time if triggered by timestamp
 	 * @param data 
 	 */
-	@SuppressLint("SimpleDateFormat")
 	public static void sendResultObj(Context c, String cid, long ts, JSONObject data) {
 	    try {
-	    	
-			// wrap the collected data object to a common object format
-			JSONObject res = new JSONObject();
+	    	RecordWriter w = RecordCodecs.getWriter(RecordCodecs.getStorageCodec(c), RecordCodecs.WRITER_OBJECT);
+	    	w.value(data);
+	    	sendResult(c, cid, ts, w);
+	    } catch (JSONException ex) {
+			Log.w(Constants.LOGTAG, "failed to create json obj",ex);
+	    }
+	}
 	
-			// data collection in the backend db
-			res.put("collection", cid);
-			
-			// store unique user id to each result object
-			res.put("uid", getDeviceUuid(c));
+	/**
+	 * Start a record that the collector writes directly, instead of building a JSONObject
+	 * (see {@link #sendResult(Context, String, long, RecordWriter)}).
+	 * @param c
+	 * @return Writer for the data object, reused by the calling thread.
+	 */
+	public static RecordWriter beginResult(Context c) {
+		return RecordCodecs.getWriter(RecordCodecs.getStorageCodec(c), RecordCodecs.WRITER_DATA);
+	}
+	
+	/**
+	 * Send the data object written to the writer (see {@link #beginResult(Context)}).
+	 * @param c
+	 * @param cid data collection id (maps to mongodb collection used to store the data)
+	 * @param ts  periodic collection timestamp or event time if triggered by timestamp
+	 * @param data 
+	 */
+	public static void sendResult(Context c, String cid, long ts, RecordWriter data) {
+	    try {
+			// wrap the collected data object to a common object format
+	    	RecordWriter out = RecordCodecs.getWriter(data.getCodec(), RecordCodecs.WRITER_RECORD);
+			RecordEnvelope.write(out, c, cid, ts, data);
+			byte[] record = out.toByteArray();
 			
-			// app version to help to detect data format changes
-			try {
-				PackageManager manager = c.getPackageManager();
-				PackageInfo info = manager.getPackageInfo(c.getPackageName(), 0);
-				res.put("app_version_name", info.versionName);
-				res.put("app_version_code", info.versionCode);
-			} catch (NameNotFoundException e) {
+			// hand the data to the service queue, or ask the service to handle 
+			// it if the queue is not available in this process
+			if (!RecordQueue.offer(record)) {
+				Intent intent = new Intent(c, CollectorService.class);
+				intent.setAction(Constants.ACTION_DATA);
+				intent.putExtra(Constants.INTENT_EXTRA_DATA, record);
+				c.startService(intent);
 			}
-			
-			// event and current time in UTC JSON date format
-			SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.S'Z'");
-			sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-			res.put("ts_event", sdf.format(new Date(ts)));
-			res.put("ts", sdf.format(new Date()));
-			res.put("tz", TimeZone.getDefault().getID()); // devices current timezone
-			res.put("tz_offset", TimeZone.getDefault().getOffset(ts)); // ts offset to this event
-			
-			// the data obj
-			res.put("data", data);
-			
-			// ask the service to handle the data
-			Intent intent = new Intent(c, CollectorService.class);
-			intent.setAction(Constants.ACTION_DATA);
-			intent.putExtra(Constants.INTENT_EXTRA_DATA, res.toString());
-			c.startService(intent);
 	    
-	    	Log.d(Constants.LOGTAG, res.toString(4));
+	    	if (Log.isLoggable(Constants.LOGTAG, Log.DEBUG)) {
+	    		Log.d(Constants.LOGTAG, "record: " + cid + " " + record.length + " bytes, written in " + 
+	    				(System.nanoTime() - data.getStarted())/1000 + " us");
+	    		JSONObject res = data.getCodec().decode(record);
+	    		RecordCodecs.profile(cid, res);
+	    		Log.d(Constants.LOGTAG, res.toString(4));
+	    	}
 	    	
 	    } catch (JSONException ex) {
 			Log.w(Constants.LOGTAG, "failed to create json obj",ex);
@@ -320,34 +325,14 @@ public final class Helpers {
 	}
 	
 	/**
-	 * 
+	 * Packages of the uid (cached, see {@link PackageCache}).
 	 * @param c
 	 * @param uid
 	 * @return
 	 * @throws JSONException
 	 */
 	public static JSONArray getPackagesForUid(Context c, int uid) throws JSONException {
-		PackageManager pm = c.getPackageManager();
-		JSONArray res = new JSONArray();
-		String[] pkgs = pm.getPackagesForUid(uid);
-		if (pkgs!=null) {
-			for (int i = 0; i < pkgs.length; i++) {
-				try {
-					CharSequence appLabel = 
-							pm.getApplicationLabel(
-									pm.getApplicationInfo(
-											pkgs[i], 
-											PackageManager.GET_META_DATA));
-					JSONObject pkg = new JSONObject();
-					pkg.put("package", pkgs[i]);
-					pkg.put("app_label",appLabel.toString());
-					res.put(pkg);
-				} catch (NameNotFoundException e) {
-				} catch (Exception e) {
-				}
-			}
-		}
-		return res;
+		return PackageCache.getPackagesForUid(c, uid);
 	}
 	
 	/**
@@ -386,11 +371,28 @@ public final class Helpers {
 	}
     
     /**
-     * Read a given file and return a list of lines.
+     * Read a given file and return a list of lines. During a collection round
+     * the file is read only once (see {@link RoundContext}).
      * @param file
      * @return
      */
     public static List<String> readProc(String file) {
+    	return readProc(file, true);
+    }
+    
+    /**
+     * Read a given file and return a list of lines.
+     * @param file
+     * @param cached use the lines read earlier in this collection round (if any) 
+     * @return
+     */
+    public static List<String> readProc(String file, boolean cached) {
+    	if (cached) {
+    		List<String> lines = RoundContext.get(file);
+    		if (lines != null)
+    			return lines;
+    	}
+    	
 		List<String> lines = new ArrayList<String>();
 		BufferedReader in = null;
         try {
@@ -409,11 +411,58 @@ public final class Helpers {
 				in.close();
 			} catch (IOException e) {
 			}
-        return lines;
+        return (cached ? RoundContext.put(file, lines) : lines);
 	}
     
+    private static final String PROC_BOOT_ID = "/proc/sys/kernel/random/boot_id";
+    private static String bootId = null;
+    
+    /**
+     * @return Id of the current boot (changes on reboot), or null if not known.
+     */
+    public static synchronized String getBootId() {
+    	if (bootId == null) {
+    		List<String> lines = readProc(PROC_BOOT_ID);
+    		if (lines.size() > 0)
+    			bootId = lines.get(0);
+    	}
+    	return bootId;
+    }
+    
+    /**
+     * Parse whitespace separated decimal numbers (64-bit, may be negative).
+     * @param s
+     * @param from start index in s
+     * @param out parsed values
+     * @return Number of values parsed (at most out.length).
+     */
+    public static int parseLongs(String s, int from, long[] out) {
+    	int n = 0;
+    	int i = from;
+    	int len = s.length();
+    	while (n < out.length) {
+    		while (i < len && Character.isWhitespace(s.charAt(i)))
+    			i += 1;
+    		if (i >= len)
+    			break;
+    		boolean neg = (s.charAt(i) == '-');
+    		if (neg)
+    			i += 1;
+    		long v = 0;
+    		int start = i;
+    		while (i < len && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+    			v = v*10 + (s.charAt(i) - '0');
+    			i += 1;
+    		}
+    		if (i == start || (i < len && !Character.isWhitespace(s.charAt(i))))
+    			throw new NumberFormatException("invalid number at " + start + " in \"" + s + "\"");
+    		out[n++] = (neg ? -v : v);
+    	}
+    	return n;
+    }
+    
     /**
-     * Request data collection sample.
+     * Request scheduled data collection round (only the due collectors run).
      *  
      * @param context
      * @param wl         Need wakelock?
@@ -423,6 +472,7 @@ public final class Helpers {
 			Helpers.acquireLock(context);
 		Intent sintent = new Intent(context, CollectorService.class);
 		sintent.setAction(Constants.ACTION_COLLECT);
+		sintent.putExtra(Constants.INTENT_EXTRA_SCHEDULED, true); // run the due collectors only
 		if (wl)
 			sintent.putExtra(Constants.INTENT_EXTRA_RELEASE_WL, true); // request service to release the wl
 		context.startService(sintent);
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.io.UnsupportedEncodingException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Records as UTF-8 JSON text (the format expected by the upload servers).
+ * 
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class JsonRecordCodec implements RecordCodec {
+
+	/** Codec name. */
+	public static final String NAME = "json";
+	
+	/* (non-Javadoc)
+	 * @see fr.inria.ucn.RecordCodec#getName()
+	 */
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.inria.ucn.RecordCodec#getContentType()
+	 */
+	@Override
+	public String getContentType() {
+		return "application/json";
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.inria.ucn.RecordCodec#encode(org.json.JSONObject)
+	 */
+	@Override
+	public byte[] encode(JSONObject record) throws JSONException {
+		try {
+			return record.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.inria.ucn.RecordCodec#decode(byte[])
+	 */
+	@Override
+	public JSONObject decode(byte[] data) throws JSONException {
+		try {
+			return new JSONObject(new String(data, "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.inria.ucn.RecordCodec#newWriter()
+	 */
+	@Override
+	public RecordWriter newWriter() {
+		return new JsonRecordWriter();
+	}
+}
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+/**
+ * {@link RecordWriter} of JSON text, the same output as JSONObject.toString()
+ * in UTF-8 (see {@link JsonRecordCodec}).
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class JsonRecordWriter extends RecordWriter {
+
+	private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+	private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+	private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+	private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+	private static final Double NEGATIVE_ZERO = Double.valueOf(-0d);
+
+	/* Scratch space for the digits of a long. */
+	private final byte[] digits = new byte[20];
+
+	@Override
+	public RecordCodec getCodec() {
+		return RecordCodecs.JSON;
+	}
+
+	@Override
+	protected void writeBegin(boolean object) {
+		write(object ? '{' : '[');
+	}
+
+	@Override
+	protected void writeEnd(boolean object, int start, int count) {
+		write(object ? '}' : ']');
+	}
+
+	@Override
+	protected void writeKey(String k, boolean first) {
+		if (!first)
+			write(',');
+		writeString(k);
+		write(':');
+	}
+
+	@Override
+	protected void writeSeparator() {
+		write(',');
+	}
+
+	@Override
+	protected void writeNull() {
+		writeAscii(NULL);
+	}
+
+	@Override
+	protected void writeBoolean(boolean v) {
+		writeAscii(v ? TRUE : FALSE);
+	}
+
+	@Override
+	protected void writeLong(long v) {
+		if (v == Long.MIN_VALUE) {
+			writeAscii(Long.toString(v));
+			return;
+		}
+		ensure(20);
+		if (v < 0) {
+			buf[len++] = '-';
+			v = -v;
+		}
+		int n = 0;
+		do {
+			digits[n++] = (byte)('0' + v%10);
+			v /= 10;
+		} while (v > 0);
+		while (n > 0)
+			buf[len++] = digits[--n];
+	}
+
+	/* Same as JSONObject.numberToString. */
+	@Override
+	protected void writeNumber(Number v) {
+		if (v.equals(NEGATIVE_ZERO)) {
+			writeAscii("-0");
+			return;
+		}
+		long l = v.longValue();
+		if (v.doubleValue() == (double)l)
+			writeLong(l);
+		else
+			writeAscii(v.toString());
+	}
+
+	/* Same escapes as JSONStringer. */
+	@Override
+	protected void writeString(String v) {
+		write('"');
+		int i = 0;
+		int n = v.length();
+		while (i < n) {
+			char c = v.charAt(i);
+			switch (c) {
+			case '"':
+			case '\\':
+			case '/':
+				write('\\');
+				write(c);
+				break;
+			case '\t':
+				write('\\');
+				write('t');
+				break;
+			case '\b':
+				write('\\');
+				write('b');
+				break;
+			case '\n':
+				write('\\');
+				write('n');
+				break;
+			case '\r':
+				write('\\');
+				write('r');
+				break;
+			case '\f':
+				write('\\');
+				write('f');
+				break;
+			default:
+				if (c <= 0x1F) {
+					ensure(6);
+					buf[len++] = '\\';
+					buf[len++] = 'u';
+					buf[len++] = '0';
+					buf[len++] = '0';
+					buf[len++] = HEX[c >> 4];
+					buf[len++] = HEX[c & 0xF];
+				} else {
+					i = writeUtf8(v, i);
+					continue;
+				}
+			}
+			i += 1;
+		}
+		write('"');
+	}
+
+	private void writeAscii(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, len, b.length);
+		len += b.length;
+	}
+
+	private void writeAscii(String s) {
+		ensure(s.length());
+		for (int i = 0; i < s.length(); i++)
+			buf[len++] = (byte)s.charAt(i);
+	}
+}
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.util.SparseArray;
+
+/**
+ * Process-wide cache of the packages (and their labels) per uid and of the app
+ * labels per package name, so that the PackageManager is asked only once per uid
+ * or package. The cache is cleared when packages are installed, removed or
+ * replaced (see PackageChangeListener).
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class PackageCache {
+
+	/* Cached uid info: package names and labels. */
+	private static class Entry {
+		final String[] packages;
+		final String[] labels;
+
+		Entry(String[] packages, String[] labels) {
+			this.packages = packages;
+			this.labels = labels;
+		}
+
+		/* Number of PackageManager calls needed to build the entry. */
+		int cost() {
+			return 1 + 2*packages.length;
+		}
+	}
+
+	private static final SparseArray<Entry> cache = new SparseArray<Entry>();
+
+	/* App labels per package name (null if the package was not found). */
+	private static final Map<String,String> labels = new HashMap<String,String>();
+
+	/* Number of PackageManager calls needed to get a label. */
+	private static final int LABEL_COST = 2;
+
+	/* Incremented when the cache is cleared (packages may have changed). */
+	private static long generation = 0;
+
+	/* Counters since the start (total) and since the last roundStats() call. */
+	private static long hits = 0;
+	private static long misses = 0;
+	private static long ipc = 0;
+	private static long roundHits = 0;
+	private static long roundMisses = 0;
+	private static long roundIpc = 0;
+	private static long roundAvoided = 0;
+
+	private PackageCache() {
+	}
+
+	/**
+	 * @param c
+	 * @param uid
+	 * @return list of {"package", "app_label"} objects of the packages running as uid.
+	 * @throws JSONException
+	 */
+	public static JSONArray getPackagesForUid(Context c, int uid) throws JSONException {
+		Entry e = get(c, uid);
+		JSONArray res = new JSONArray();
+		for (int i = 0; i < e.packages.length; i++) {
+			if (e.labels[i]==null)
+				continue; // not found
+			JSONObject pkg = new JSONObject();
+			pkg.put("package", e.packages[i]);
+			pkg.put("app_label", e.labels[i]);
+			res.put(pkg);
+		}
+		return res;
+	}
+
+	/**
+	 * @param c
+	 * @param pkg package name
+	 * @return Label of the app, or null if the package is not found.
+	 */
+	public static synchronized String getAppLabel(Context c, String pkg) {
+		if (labels.containsKey(pkg)) {
+			hits += 1;
+			roundHits += 1;
+			roundAvoided += LABEL_COST;
+			return labels.get(pkg);
+		}
+		misses += 1;
+		roundMisses += 1;
+
+		String label = loadLabel(c.getPackageManager(), pkg);
+		ipc += LABEL_COST;
+		roundIpc += LABEL_COST;
+		labels.put(pkg, label);
+		return label;
+	}
+
+	/**
+	 * Drop all cached entries.
+	 */
+	public static synchronized void clear() {
+		cache.clear();
+		labels.clear();
+		generation += 1;
+	}
+
+	/**
+	 * @return Number of times the cache has been cleared in this process.
+	 */
+	public static synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return Human readable cache counters of the last round, resets the round counters.
+	 */
+	public static synchronized String roundStats() {
+		String s = "hits=" + roundHits +
+				" misses=" + roundMisses +
+				" ipc=" + roundIpc +
+				" ipc_uncached=" + (roundIpc + roundAvoided) +
+				" total_hits=" + hits +
+				" total_misses=" + misses +
+				" total_ipc=" + ipc +
+				" size=" + (cache.size() + labels.size());
+		roundHits = 0;
+		roundMisses = 0;
+		roundIpc = 0;
+		roundAvoided = 0;
+		return s;
+	}
+
+	private static synchronized Entry get(Context c, int uid) {
+		Entry e = cache.get(uid);
+		if (e != null) {
+			hits += 1;
+			roundHits += 1;
+			roundAvoided += e.cost();
+			return e;
+		}
+		misses += 1;
+		roundMisses += 1;
+
+		e = load(c, uid);
+		ipc += e.cost();
+		roundIpc += e.cost();
+		cache.put(uid, e);
+		return e;
+	}
+
+	/* Ask the PackageManager. */
+	private static Entry load(Context c, int uid) {
+		PackageManager pm = c.getPackageManager();
+		String[] pkgs = pm.getPackagesForUid(uid);
+		if (pkgs == null)
+			pkgs = new String[0];
+		String[] pkgLabels = new String[pkgs.length];
+		for (int i = 0; i < pkgs.length; i++) {
+			pkgLabels[i] = loadLabel(pm, pkgs[i]);
+		}
+		return new Entry(pkgs, pkgLabels);
+	}
+
+	/* Ask the PackageManager, null if the package is not found. */
+	private static String loadLabel(PackageManager pm, String pkg) {
+		try {
+			CharSequence appLabel =
+					pm.getApplicationLabel(
+							pm.getApplicationInfo(
+									pkg,
+									PackageManager.GET_META_DATA));
+			return appLabel.toString();
+		} catch (NameNotFoundException e) {
+		} catch (Exception e) {
+		}
+		return null;
+	}
+}
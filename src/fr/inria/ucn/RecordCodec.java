@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Encoding of the data records for storage and upload.
+ * 
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public interface RecordCodec {
+
+	/**
+	 * @return Codec name (used in the preferences).
+	 */
+	public String getName();
+
+	/**
+	 * @return MIME type of the encoded records.
+	 */
+	public String getContentType();
+
+	/**
+	 * Encode a record.
+	 * @param record
+	 * @return encoded bytes
+	 * @throws JSONException
+	 */
+	public byte[] encode(JSONObject record) throws JSONException;
+
+	/**
+	 * Decode a record created with {@link #encode(JSONObject)}.
+	 * @param data
+	 * @return the record
+	 * @throws JSONException if the data is not valid
+	 */
+	public JSONObject decode(byte[] data) throws JSONException;
+
+	/**
+	 * @return New writer that streams records in this encoding.
+	 */
+	public RecordWriter newWriter();
+
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Available record codecs.
+ * 
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class RecordCodecs {
+
+	/** JSON text codec. */
+	public static final RecordCodec JSON = new JsonRecordCodec();
+	
+	/** Compact binary codec. */
+	public static final RecordCodec BINARY = new BinaryRecordCodec();
+	
+	/* Writer slots of each thread and codec. */
+	static final int WRITER_DATA = 0;
+	static final int WRITER_OBJECT = 1;
+	static final int WRITER_RECORD = 2;
+	
+	/* Reusable writers of each thread: json slots followed by binary slots. */
+	private static final ThreadLocal<RecordWriter[]> writers = new ThreadLocal<RecordWriter[]>() {
+		@Override
+		protected RecordWriter[] initialValue() {
+			return new RecordWriter[6];
+		}
+	};
+	
+	/* Hide the constructor, this class only has static methods */
+	private RecordCodecs() {};
+	
+	/**
+	 * @param name
+	 * @return Codec with the given name, defaults to JSON.
+	 */
+	public static RecordCodec forName(String name) {
+		if (BinaryRecordCodec.NAME.equals(name))
+			return BINARY;
+		return JSON;
+	}
+	
+	/**
+	 * @param c
+	 * @return The codec used to store new records.
+	 */
+	public static RecordCodec getStorageCodec(Context c) {
+		return forName(PreferenceManager.getDefaultSharedPreferences(c).getString(
+				Constants.PREF_HIDDEN_RECORD_CODEC, JsonRecordCodec.NAME));
+	}
+	
+	/**
+	 * @param data
+	 * @return The codec that can decode the given record.
+	 */
+	public static RecordCodec detect(byte[] data) {
+		return (BinaryRecordCodec.isBinary(data) ? BINARY : JSON);
+	}
+	
+	/**
+	 * Convert an encoded record to the target codec (no-op if already in the right format).
+	 * @param data
+	 * @param target
+	 * @return
+	 * @throws JSONException
+	 */
+	public static byte[] transcode(byte[] data, RecordCodec target) throws JSONException {
+		RecordCodec src = detect(data);
+		if (src == target)
+			return data;
+		return target.encode(src.decode(data));
+	}
+	
+	/**
+	 * @param codec
+	 * @param slot WRITER_DATA, WRITER_OBJECT or WRITER_RECORD
+	 * @return Writer of the calling thread (content is reset).
+	 */
+	static RecordWriter getWriter(RecordCodec codec, int slot) {
+		RecordWriter[] w = writers.get();
+		int i = (codec == BINARY ? 3 : 0) + slot;
+		if (w[i] == null)
+			w[i] = codec.newWriter();
+		w[i].reset();
+		return w[i];
+	}
+	
+	/**
+	 * Log encode/decode time and size of the record with each codec (debug only).
+	 * @param cid
+	 * @param record
+	 */
+	public static void profile(String cid, JSONObject record) {
+		if (!Log.isLoggable(Constants.LOGTAG, Log.DEBUG))
+			return;
+		try {
+			StringBuilder sb = new StringBuilder("codecs: " + cid);
+			for (RecordCodec codec : new RecordCodec[] {JSON, BINARY}) {
+				long t0 = System.nanoTime();
+				byte[] b = codec.encode(record);
+				long t1 = System.nanoTime();
+				codec.decode(b);
+				long t2 = System.nanoTime();
+				sb.append(" " + codec.getName() + "=[" + b.length + " bytes, enc " + (t1-t0)/1000 + 
+						" us, dec " + (t2-t1)/1000 + " us]");
+			}
+			Log.d(Constants.LOGTAG, sb.toString());
+		} catch (JSONException e) {
+			Log.w(Constants.LOGTAG, "codecs: failed to profile " + cid, e);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.util.TimeZone;
+
+import org.json.JSONException;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+
+/**
+ * Common object format of the collected records (see {@link Helpers#sendResultObj}).
+ * The device uid and app version are looked up once per process, the timestamps
+ * are formatted without any date or calendar objects.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class RecordEnvelope {
+
+	private static final long MS_PER_DAY = 24L*3600*1000;
+
+	/* Static fields of the envelope, loaded on first use. */
+	private static String uid = null;
+	private static boolean hasVersion = false;
+	private static String versionName = null;
+	private static int versionCode = 0;
+
+	/* Envelope build time since the last stats() call. */
+	private static long records = 0;
+	private static long nanos = 0;
+
+	/* Per thread formatting buffer. */
+	private static final ThreadLocal<char[]> buffer = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[24];
+		}
+	};
+
+	private RecordEnvelope() {
+	}
+
+	/**
+	 * Write a record: the envelope with the given data object.
+	 * @param out record writer
+	 * @param c
+	 * @param cid collection
+	 * @param ts event time
+	 * @param data writer holding the collected data object (same encoding as out)
+	 * @throws JSONException
+	 */
+	public static void write(RecordWriter out, Context c, String cid, long ts, RecordWriter data) throws JSONException {
+		long t0 = System.nanoTime();
+		load(c);
+
+		out.beginRecord();
+		out.beginObject();
+
+		// data collection in the backend db
+		out.key("collection").value(cid);
+
+		// store unique user id to each result object
+		out.key("uid").value(uid);
+
+		// app version to help to detect data format changes
+		if (hasVersion) {
+			if (versionName != null)
+				out.key("app_version_name").value(versionName);
+			out.key("app_version_code").value(versionCode);
+		}
+
+		// event and current time in UTC JSON date format
+		out.key("ts_event").value(formatUtc(ts));
+		out.key("ts").value(formatUtc(System.currentTimeMillis()));
+		TimeZone tz = TimeZone.getDefault();
+		out.key("tz").value(tz.getID()); // devices current timezone
+		out.key("tz_offset").value(tz.getOffset(ts)); // ts offset to this event
+
+		// the data obj
+		out.key("data").value(data);
+		out.endObject();
+
+		long dt = System.nanoTime() - t0;
+		synchronized (RecordEnvelope.class) {
+			records += 1;
+			nanos += dt;
+		}
+	}
+
+	/**
+	 * @return Human readable envelope overhead since the last call, resets the counters.
+	 */
+	public static synchronized String stats() {
+		String s = "records=" + records +
+				" avg_us=" + (records > 0 ? nanos/records/1000.0 : 0);
+		records = 0;
+		nanos = 0;
+		return s;
+	}
+
+	private static synchronized void load(Context c) {
+		if (uid != null)
+			return;
+		try {
+			PackageInfo info = c.getPackageManager().getPackageInfo(c.getPackageName(), 0);
+			versionName = info.versionName;
+			versionCode = info.versionCode;
+			hasVersion = true;
+		} catch (NameNotFoundException e) {
+		}
+		uid = Helpers.getDeviceUuid(c).toString();
+	}
+
+	/**
+	 * Format the time as yyyy-MM-dd'T'HH:mm:ss.S'Z' in UTC (milliseconds are not
+	 * zero padded, same as SimpleDateFormat with a single 'S').
+	 * @param ms
+	 * @return
+	 */
+	public static String formatUtc(long ms) {
+		long days = floorDiv(ms, MS_PER_DAY);
+		int msOfDay = (int)(ms - days*MS_PER_DAY);
+
+		// civil date from days since the epoch (proleptic Gregorian)
+		long z = days + 719468;
+		long era = floorDiv(z, 146097);
+		int doe = (int)(z - era*146097);
+		int yoe = (doe - doe/1460 + doe/36524 - doe/146096) / 365;
+		int doy = doe - (365*yoe + yoe/4 - yoe/100);
+		int mp = (5*doy + 2)/153;
+		int day = doy - (153*mp + 2)/5 + 1;
+		int month = (mp < 10 ? mp + 3 : mp - 9);
+		long year = yoe + era*400 + (month <= 2 ? 1 : 0);
+
+		char[] b = buffer.get();
+		int n = 0;
+		n = put(b, n, (int)year, 4);
+		b[n++] = '-';
+		n = put(b, n, month, 2);
+		b[n++] = '-';
+		n = put(b, n, day, 2);
+		b[n++] = 'T';
+		n = put(b, n, msOfDay/3600000, 2);
+		b[n++] = ':';
+		n = put(b, n, (msOfDay/60000)%60, 2);
+		b[n++] = ':';
+		n = put(b, n, (msOfDay/1000)%60, 2);
+		b[n++] = '.';
+		n = put(b, n, msOfDay%1000, 1);
+		b[n++] = 'Z';
+		return new String(b, 0, n);
+	}
+
+	/* Append v (>= 0) zero padded to at least digits. */
+	private static int put(char[] b, int n, int v, int digits) {
+		int len = 1;
+		for (int x = v; x >= 10; x /= 10)
+			len += 1;
+		for (int i = len; i < digits; i++)
+			b[n++] = '0';
+		for (int i = len - 1; i >= 0; i--) {
+			b[n + i] = (char)('0' + v%10);
+			v /= 10;
+		}
+		return n + len;
+	}
+
+	private static long floorDiv(long a, long b) {
+		long q = a/b;
+		return (a%b != 0 && (a < 0) != (b < 0) ? q - 1 : q);
+	}
+}
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Bounded in-process ring buffer between the collectors and the data store.
+ *
+ * The service attaches the queue when it is created, after which the collectors running
+ * in the same process hand their records here instead of sending an Intent per record.
+ * A single writer thread drains the buffer to the data store in batches. When the queue
+ * is not attached (sender lives in another process or the service is not running) or it
+ * is full, {@link #offer(byte[])} returns <code>false</code> and the caller should fall
+ * back to the Intent path. This is also how the records of collectors that return after
+ * the queue was detached reach the data store.
+ *
+ * The queue owns the data store once attached: the writer thread closes it after the
+ * last batch, so that a slow transaction is never cut short by the service going away.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class RecordQueue {
+
+	/** Max number of records waiting to be written. */
+	public static final int CAPACITY = 256;
+
+	/** Max number of records written in a single transaction. */
+	public static final int MAX_BATCH = 64;
+
+	/* Max time to wait for the writer in flush(). */
+	private static final long FLUSH_TIMEOUT = 5000;
+
+	/* The queue attached in this process (null if none). */
+	private static RecordQueue instance = null;
+
+	private final DataStore dstore;
+
+	/* Ring buffer of records + enqueue times (guarded by this). */
+	private final byte[][] ring = new byte[CAPACITY][];
+	private final long[] ringts = new long[CAPACITY];
+	private int head = 0;
+	private int count = 0;
+	private boolean writing = false;
+	private boolean stopped = false;
+
+	private Thread writer = null;
+
+	/* Metrics (guarded by this). */
+	private long offered = 0;
+	private long rejected = 0;
+	private long written = 0;
+	private long batches = 0;
+	private int maxDepth = 0;
+	private long sumLatency = 0; // ms
+	private long maxLatency = 0; // ms
+
+	private RecordQueue(DataStore dstore) {
+		this.dstore = dstore;
+	}
+
+	/**
+	 * Attach a queue that writes to the given data store and start the writer thread.
+	 * The data store is closed by the queue on {@link #detach()}.
+	 * @param dstore
+	 */
+	public static synchronized void attach(DataStore dstore) {
+		if (instance!=null)
+			detach();
+		instance = new RecordQueue(dstore);
+		instance.start();
+		Log.d(Constants.LOGTAG, "recordqueue: attached");
+	}
+
+	/**
+	 * Stop accepting records and detach the queue. The writer thread writes the pending
+	 * records and closes the data store, this waits for it for a while only.
+	 */
+	public static synchronized void detach() {
+		if (instance!=null) {
+			instance.stop();
+			Log.d(Constants.LOGTAG, "recordqueue: detached, " + instance.getStats());
+			instance = null;
+		}
+	}
+
+	/**
+	 * Queue an encoded record to be written to the data store.
+	 * @param record
+	 * @return <code>true</code> if the record was queued, <code>false</code> if the
+	 * queue is not available in this process or it is full.
+	 */
+	public static boolean offer(byte[] record) {
+		RecordQueue q;
+		synchronized (RecordQueue.class) {
+			q = instance;
+		}
+		return (q!=null && q.put(record));
+	}
+
+	/**
+	 * Block until all records queued so far have been written (or timeout).
+	 */
+	public static void flush() {
+		RecordQueue q;
+		synchronized (RecordQueue.class) {
+			q = instance;
+		}
+		if (q!=null)
+			q.waitEmpty();
+	}
+
+	/**
+	 * @return Human readable metrics of the attached queue, or null if not attached.
+	 */
+	public static synchronized String stats() {
+		return (instance!=null ? instance.getStats() : null);
+	}
+
+	private void start() {
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+				try {
+					drainLoop();
+				} finally {
+					dstore.close();
+				}
+			}
+		}, "UCNRecordWriter");
+		writer.start();
+	}
+
+	private void stop() {
+		synchronized (this) {
+			stopped = true;
+			notifyAll();
+		}
+		try {
+			writer.join(FLUSH_TIMEOUT);
+		} catch (InterruptedException e) {
+		}
+		if (writer.isAlive()) {
+			int pending;
+			synchronized (this) {
+				pending = count;
+			}
+			Log.w(Constants.LOGTAG, "recordqueue: writer still busy, " + pending + " records pending");
+		}
+	}
+
+	private synchronized boolean put(byte[] record) {
+		if (stopped || record==null)
+			return false;
+		if (count>=CAPACITY) {
+			rejected += 1;
+			return false;
+		}
+		int idx = (head + count) % CAPACITY;
+		ring[idx] = record;
+		ringts[idx] = System.currentTimeMillis();
+		count += 1;
+		offered += 1;
+		if (count > maxDepth)
+			maxDepth = count;
+		notifyAll();
+		return true;
+	}
+
+	/* Remove the oldest record, update latency metrics. Call with the lock held. */
+	private byte[] take(long now) {
+		byte[] r = ring[head];
+		long lat = now - ringts[head];
+		sumLatency += lat;
+		if (lat > maxLatency)
+			maxLatency = lat;
+		ring[head] = null;
+		head = (head + 1) % CAPACITY;
+		count -= 1;
+		return r;
+	}
+
+	private synchronized void waitEmpty() {
+		long until = System.currentTimeMillis() + FLUSH_TIMEOUT;
+		while ((count>0 || writing) && !stopped) {
+			long left = until - System.currentTimeMillis();
+			if (left<=0) {
+				Log.w(Constants.LOGTAG, "recordqueue: flush timeout, " + count + " records pending");
+				break;
+			}
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	private void drainLoop() {
+		List<byte[]> batch = new ArrayList<byte[]>(MAX_BATCH);
+		while (true) {
+			int depth;
+			synchronized (this) {
+				writing = false;
+				notifyAll();
+				while (count==0 && !stopped) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+					}
+				}
+				if (count==0 && stopped)
+					return;
+
+				depth = count;
+				long now = System.currentTimeMillis();
+				while (count>0 && batch.size()<MAX_BATCH)
+					batch.add(take(now));
+				writing = true;
+			}
+
+			long start = System.currentTimeMillis();
+			write(batch);
+			Log.d(Constants.LOGTAG, "recordqueue: wrote " + batch.size() + " records in " +
+					(System.currentTimeMillis()-start) + " ms, depth was " + depth);
+			batch.clear();
+		}
+	}
+
+	private void write(List<byte[]> batch) {
+		try {
+			dstore.addRecordBatch(batch);
+		} catch (Exception e) {
+			Log.w(Constants.LOGTAG, "recordqueue: failed to write " + batch.size() + " records", e);
+		}
+		synchronized (this) {
+			written += batch.size();
+			batches += 1;
+		}
+	}
+
+	private synchronized String getStats() {
+		return "offered=" + offered +
+				" rejected=" + rejected +
+				" written=" + written +
+				" batches=" + batches +
+				" depth=" + count +
+				" max_depth=" + maxDepth +
+				" avg_latency_ms=" + (written>0 ? sumLatency/written : 0) +
+				" max_latency_ms=" + maxLatency;
+	}
+}
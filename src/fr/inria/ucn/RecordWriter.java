@@ -0,0 +1,377 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Streams a record straight into a reusable byte buffer, without building the
+ * org.json object tree. The output is the same as encoding the equivalent
+ * JSONObject with the matching {@link RecordCodec}.
+ *
+ * <pre>
+ * w.beginObject().key("port").value(80).key("ip").value("1.2.3.4").endObject();
+ * </pre>
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public abstract class RecordWriter {
+
+	/** Output buffer, valid up to {@link #size()}. */
+	protected byte[] buf = new byte[4*1024];
+	protected int len = 0;
+
+	/* Open objects and arrays: start offset in buf, number of entries, type. */
+	private int[] starts = new int[16];
+	private int[] counts = new int[16];
+	private boolean[] objects = new boolean[16];
+	private int depth = 0;
+	private boolean afterKey = false;
+
+	/* System.nanoTime() of the last reset. */
+	private long started = 0;
+
+	/**
+	 * Drop the content, the buffer is kept.
+	 */
+	public void reset() {
+		len = 0;
+		depth = 0;
+		afterKey = false;
+		started = System.nanoTime();
+	}
+
+	/**
+	 * @return System.nanoTime() when the writer was last reset.
+	 */
+	public long getStarted() {
+		return started;
+	}
+
+	/**
+	 * Drop the content and start a new top level record.
+	 */
+	public void beginRecord() {
+		reset();
+		writeHeader();
+	}
+
+	/**
+	 * @return Number of bytes written.
+	 */
+	public int size() {
+		return len;
+	}
+
+	/**
+	 * @return Copy of the bytes written.
+	 */
+	public byte[] toByteArray() {
+		if (depth != 0)
+			throw new IllegalStateException("unterminated object or array");
+		byte[] res = new byte[len];
+		System.arraycopy(buf, 0, res, 0, len);
+		return res;
+	}
+
+	public RecordWriter beginObject() {
+		return begin(true);
+	}
+
+	public RecordWriter endObject() {
+		return end(true);
+	}
+
+	public RecordWriter beginArray() {
+		return begin(false);
+	}
+
+	public RecordWriter endArray() {
+		return end(false);
+	}
+
+	/**
+	 * Object key, must be followed by a value.
+	 * @param k
+	 * @return
+	 */
+	public RecordWriter key(String k) {
+		if (depth == 0 || !objects[depth-1] || afterKey)
+			throw new IllegalStateException("key outside of an object: " + k);
+		writeKey(k, counts[depth-1] == 0);
+		counts[depth-1] += 1;
+		afterKey = true;
+		return this;
+	}
+
+	public RecordWriter value(long v) {
+		beforeValue();
+		writeLong(v);
+		return this;
+	}
+
+	public RecordWriter value(boolean v) {
+		beforeValue();
+		writeBoolean(v);
+		return this;
+	}
+
+	/**
+	 * @param v
+	 * @return
+	 * @throws JSONException if v is NaN or infinite
+	 */
+	public RecordWriter value(double v) throws JSONException {
+		if (Double.isNaN(v) || Double.isInfinite(v))
+			throw new JSONException("Forbidden numeric value: " + v);
+		beforeValue();
+		writeNumber(Double.valueOf(v));
+		return this;
+	}
+
+	/**
+	 * @param v string or null
+	 * @return
+	 */
+	public RecordWriter value(String v) {
+		beforeValue();
+		if (v == null)
+			writeNull();
+		else
+			writeString(v);
+		return this;
+	}
+
+	/**
+	 * Any value accepted by JSONObject.put (JSONObject and JSONArray are written recursively).
+	 * @param v
+	 * @return
+	 * @throws JSONException
+	 */
+	public RecordWriter value(Object v) throws JSONException {
+		if (v == null || v == JSONObject.NULL) {
+			beforeValue();
+			writeNull();
+		} else if (v instanceof Boolean) {
+			value(((Boolean)v).booleanValue());
+		} else if (v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte) {
+			value(((Number)v).longValue());
+		} else if (v instanceof Number) {
+			double d = ((Number)v).doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				throw new JSONException("Forbidden numeric value: " + v);
+			beforeValue();
+			writeNumber((Number)v);
+		} else if (v instanceof JSONObject) {
+			JSONObject o = (JSONObject)v;
+			beginObject();
+			Iterator<?> it = o.keys();
+			while (it.hasNext()) {
+				String k = (String)it.next();
+				key(k);
+				value(o.opt(k));
+			}
+			endObject();
+		} else if (v instanceof JSONArray) {
+			JSONArray a = (JSONArray)v;
+			beginArray();
+			for (int i = 0; i < a.length(); i++)
+				value(a.opt(i));
+			endArray();
+		} else {
+			value(v.toString());
+		}
+		return this;
+	}
+
+	/**
+	 * Append the content of another writer of the same kind as a single value.
+	 * @param w
+	 * @return
+	 */
+	public RecordWriter value(RecordWriter w) {
+		if (w.getClass() != getClass() || w.depth != 0)
+			throw new IllegalArgumentException("incompatible record writer");
+		beforeValue();
+		ensure(w.len);
+		System.arraycopy(w.buf, 0, buf, len, w.len);
+		len += w.len;
+		return this;
+	}
+
+	private RecordWriter begin(boolean object) {
+		beforeValue();
+		if (depth == starts.length) {
+			starts = grow(starts);
+			counts = grow(counts);
+			boolean[] o = new boolean[objects.length*2];
+			System.arraycopy(objects, 0, o, 0, depth);
+			objects = o;
+		}
+		starts[depth] = len;
+		counts[depth] = 0;
+		objects[depth] = object;
+		depth += 1;
+		writeBegin(object);
+		return this;
+	}
+
+	private RecordWriter end(boolean object) {
+		if (depth == 0 || objects[depth-1] != object || afterKey)
+			throw new IllegalStateException("unbalanced " + (object ? "object" : "array"));
+		depth -= 1;
+		writeEnd(object, starts[depth], counts[depth]);
+		return this;
+	}
+
+	private void beforeValue() {
+		if (depth == 0)
+			return;
+		if (objects[depth-1]) {
+			if (!afterKey)
+				throw new IllegalStateException("value without a key");
+			afterKey = false;
+		} else {
+			if (counts[depth-1] > 0)
+				writeSeparator();
+			counts[depth-1] += 1;
+		}
+	}
+
+	private static int[] grow(int[] a) {
+		int[] b = new int[a.length*2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	/** Make room for n more bytes. */
+	protected final void ensure(int n) {
+		if (len + n > buf.length) {
+			byte[] nbuf = new byte[Math.max(buf.length*2, len+n)];
+			System.arraycopy(buf, 0, nbuf, 0, len);
+			buf = nbuf;
+		}
+	}
+
+	/** Append a byte. */
+	protected final void write(int b) {
+		ensure(1);
+		buf[len++] = (byte)b;
+	}
+
+	/**
+	 * @param s
+	 * @return Length of s in UTF-8 (unpaired surrogates count as '?').
+	 */
+	protected static int utf8Length(String s) {
+		int n = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				n += 1;
+			} else if (c < 0x800) {
+				n += 2;
+			} else if (Character.isHighSurrogate(c) && i+1 < s.length() && Character.isLowSurrogate(s.charAt(i+1))) {
+				n += 4;
+				i += 1;
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				n += 1;
+			} else {
+				n += 3;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Append the char in UTF-8 (the same as String.getBytes("UTF-8")).
+	 * @param s
+	 * @param i index of the char in s
+	 * @return Index of the next char.
+	 */
+	protected final int writeUtf8(String s, int i) {
+		char c = s.charAt(i);
+		ensure(4);
+		if (c < 0x80) {
+			buf[len++] = (byte)c;
+		} else if (c < 0x800) {
+			buf[len++] = (byte)(0xC0 | (c >> 6));
+			buf[len++] = (byte)(0x80 | (c & 0x3F));
+		} else if (Character.isHighSurrogate(c) && i+1 < s.length() && Character.isLowSurrogate(s.charAt(i+1))) {
+			int cp = Character.toCodePoint(c, s.charAt(i+1));
+			buf[len++] = (byte)(0xF0 | (cp >> 18));
+			buf[len++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+			buf[len++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+			buf[len++] = (byte)(0x80 | (cp & 0x3F));
+			return i + 2;
+		} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+			buf[len++] = (byte)'?';
+		} else {
+			buf[len++] = (byte)(0xE0 | (c >> 12));
+			buf[len++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+			buf[len++] = (byte)(0x80 | (c & 0x3F));
+		}
+		return i + 1;
+	}
+
+	/**
+	 * @return The codec that decodes the output.
+	 */
+	public abstract RecordCodec getCodec();
+
+	/* Encoding specific output. */
+
+	/** Start of a top level record. */
+	protected void writeHeader() {
+	}
+
+	protected abstract void writeBegin(boolean object);
+
+	/**
+	 * @param object
+	 * @param start offset where the object or array begins
+	 * @param count number of keys or values
+	 */
+	protected abstract void writeEnd(boolean object, int start, int count);
+
+	/**
+	 * @param k
+	 * @param first first key of the object
+	 */
+	protected abstract void writeKey(String k, boolean first);
+
+	/** Between two array values. */
+	protected abstract void writeSeparator();
+
+	protected abstract void writeNull();
+
+	protected abstract void writeBoolean(boolean v);
+
+	protected abstract void writeLong(long v);
+
+	/** Finite non integer typed number (Double, Float, ...). */
+	protected abstract void writeNumber(Number v);
+
+	protected abstract void writeString(String v);
+}
@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of the /proc and sysfs files read during one collection round. The
+ * collectors of a round see the same file content and each file is read only
+ * once, see {@link Helpers#readProc(String)} and {@link #readLine(String)}.
+ * Outside of a round (for example network change events) the files are read
+ * directly.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class RoundContext {
+
+	/* File lines by path, null when no round is running. */
+	private static Map<String, List<String>> files = null;
+
+	/* Counters of the current round. */
+	private static long reads = 0;
+	private static long avoided = 0;
+
+	/* The current round was triggered by the collection alarm. */
+	private static boolean scheduled = false;
+
+	private RoundContext() {
+	}
+
+	/**
+	 * Start a collection round (drops anything cached by a previous round).
+	 * @param isScheduled round triggered by the collection alarm
+	 */
+	public static synchronized void begin(boolean isScheduled) {
+		files = new HashMap<String, List<String>>();
+		reads = 0;
+		avoided = 0;
+		scheduled = isScheduled;
+	}
+
+	/**
+	 * End the collection round.
+	 * @return Human readable counters of the round.
+	 */
+	public static synchronized String end() {
+		String s = stats();
+		files = null;
+		scheduled = false;
+		return s;
+	}
+
+	/**
+	 * @return true during a round triggered by the collection alarm, false during
+	 * other rounds (user and system events) and outside of rounds.
+	 */
+	public static synchronized boolean isScheduled() {
+		return scheduled;
+	}
+
+	/**
+	 * @return Human readable counters of the current round.
+	 */
+	public static synchronized String stats() {
+		return "reads=" + reads +
+				" avoided=" + avoided +
+				" files=" + (files != null ? files.size() : 0);
+	}
+
+	/**
+	 * @param file
+	 * @return The lines of the file read earlier in this round, or null.
+	 */
+	static synchronized List<String> get(String file) {
+		List<String> lines = (files != null ? files.get(file) : null);
+		if (lines != null)
+			avoided += 1;
+		return lines;
+	}
+
+	/**
+	 * Keep the lines of the file until the end of the round.
+	 * @param file
+	 * @param lines
+	 * @return The lines (read only).
+	 */
+	static synchronized List<String> put(String file, List<String> lines) {
+		lines = Collections.unmodifiableList(lines);
+		reads += 1;
+		if (files != null)
+			files.put(file, lines);
+		return lines;
+	}
+
+	/**
+	 * Read the first line of a small file (sysfs attributes, /proc/uid_stat).
+	 * Missing and unreadable files are not logged.
+	 * @param file
+	 * @return The trimmed line, or null if the file could not be read.
+	 */
+	public static String readLine(String file) {
+		List<String> lines = get(file);
+		if (lines == null) {
+			lines = new ArrayList<String>(1);
+			BufferedReader in = null;
+			try {
+				in = new BufferedReader(new FileReader(file), 64);
+				String line = in.readLine();
+				if (line != null)
+					lines.add(line.trim());
+			} catch (IOException e) {
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+			lines = put(file, lines);
+		}
+		return (lines.size() > 0 ? lines.get(0) : null);
+	}
+}
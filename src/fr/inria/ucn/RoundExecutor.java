@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Runs the collectors of a round concurrently on a small bounded thread pool
+ * and waits for them until the round deadline. Each collector is interrupted
+ * when it exceeds its own timeout, and its breaker counts the timeout (see
+ * {@link SupervisedCollector}). A collector that has not returned keeps its
+ * thread and is skipped in the following rounds until it completes. If it is
+ * stuck (blocked in I/O that can not be interrupted) the pool gets an extra
+ * thread in its place, so that the other collectors are not starved.
+ *
+ * The executor lives as long as the process, across service instances. It
+ * is not shut down: idle threads (pool and watchdog) stop after
+ * KEEP_ALIVE, so there are none between rounds.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class RoundExecutor {
+
+	/** Default number of collector threads. */
+	public static final int POOL_SIZE = 3;
+
+	/** Default time to wait for the collectors of a round (ms). */
+	public static final long ROUND_DEADLINE = 30*1000;
+
+	/* Idle threads are stopped after this (ms). */
+	private static final long KEEP_ALIVE = 30*1000;
+
+	/* A cancelled collector that has not returned after this is stuck (ms). */
+	private static final long STUCK_GRACE = 1000;
+
+	/* Max number of threads added in place of stuck collectors. */
+	private static final int MAX_STUCK = 2*POOL_SIZE;
+
+	private final ThreadPoolExecutor pool;
+	private final int threads;
+
+	/* Threads of stuck collectors, and the total number of threads replaced (guarded by this). */
+	private int stuck = 0;
+	private long replaced = 0;
+
+	/* Cancels the collectors that exceed their timeout. */
+	private final ScheduledThreadPoolExecutor watchdog;
+
+	/* Collectors that have not returned yet (guarded by this). */
+	private final Set<SupervisedCollector> running = new HashSet<SupervisedCollector>();
+
+	/* State of one round, shared by its tasks (guarded by the executor). */
+	private static final class Round {
+		final Context c;
+		final long ts;
+		final long[] latency;
+		final CountDownLatch done;
+		boolean closed = false; // run() has returned
+
+		Round(Context c, long ts, int n) {
+			this.c = c;
+			this.ts = ts;
+			this.latency = new long[n];
+			this.done = new CountDownLatch(n);
+			for (int i = 0; i < n; i++)
+				latency[i] = -1;
+		}
+	}
+
+	/* Run of one collector. */
+	private final class Task implements Runnable {
+		private final Round round;
+		private final SupervisedCollector col;
+		private final int idx;
+		private final FutureTask<Object> future = new FutureTask<Object>(this, null);
+		private boolean returned = false; // guarded by the executor
+		private boolean isStuck = false; // guarded by the executor
+
+		Task(Round round, SupervisedCollector col, int idx) {
+			this.round = round;
+			this.col = col;
+			this.idx = idx;
+		}
+
+		@Override
+		public void run() {
+			long t = System.nanoTime();
+			ScheduledFuture<?> timer = watchdog.schedule(new Runnable() {
+				@Override
+				public void run() {
+					Log.w(Constants.LOGTAG, "collector " + col.getName() + " timeout after " + col.getTimeout() + " ms");
+					future.cancel(true);
+					watchdog.schedule(new Runnable() {
+						@Override
+						public void run() {
+							replaceIfStuck(Task.this);
+						}
+					}, STUCK_GRACE, TimeUnit.MILLISECONDS);
+				}
+			}, col.getTimeout(), TimeUnit.MILLISECONDS);
+
+			boolean error = false;
+			try {
+				Log.d(Constants.LOGTAG, "run " + col.getName());
+				col.run(round.c, round.ts);
+			} catch (RuntimeException e) {
+				Log.e(Constants.LOGTAG, "collector " + col.getName() + " failed", e);
+				error = true;
+			} finally {
+				timer.cancel(false);
+				long ms = (System.nanoTime() - t)/1000000;
+				if (future.isCancelled())
+					col.failed(true);
+				else if (error)
+					col.failed(false);
+				else
+					col.succeeded(ms);
+
+				synchronized (RoundExecutor.this) {
+					running.remove(col);
+					returned = true;
+					if (isStuck) {
+						// the extra thread is no longer needed
+						stuck -= 1;
+						resize();
+						Log.w(Constants.LOGTAG, "collector " + col.getName() + " was stuck for " + ms + " ms");
+					}
+					round.latency[idx] = ms;
+					if (round.closed) {
+						Log.w(Constants.LOGTAG, "collector " + col.getName() +
+								" returned after the round deadline in " + ms + " ms");
+					}
+				}
+				round.done.countDown();
+			}
+		}
+	}
+
+	/**
+	 * @param threads max number of concurrent collectors
+	 */
+	public RoundExecutor(int threads) {
+		this.threads = threads;
+		pool = new ThreadPoolExecutor(threads, threads,
+				KEEP_ALIVE, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new NamedThreadFactory("UCNCollector-"));
+		pool.allowCoreThreadTimeOut(true);
+		watchdog = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("UCNCollectorWatchdog-"));
+		watchdog.setKeepAliveTime(KEEP_ALIVE, TimeUnit.MILLISECONDS);
+		watchdog.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Run the collectors and wait until they are all done or the deadline passes.
+	 * @param c
+	 * @param ts round time
+	 * @param collectors
+	 * @param deadline max time to wait (ms)
+	 * @return Human readable latencies of the round.
+	 */
+	public String run(Context c, long ts, List<SupervisedCollector> collectors, long deadline) {
+		long t0 = System.nanoTime();
+		int n = collectors.size();
+		Round round = new Round(c, ts, n);
+
+		List<String> skipped = new ArrayList<String>();
+		List<String> disabled = new ArrayList<String>();
+		for (int i = 0; i < n; i++) {
+			SupervisedCollector col = collectors.get(i);
+			synchronized (this) {
+				if (running.contains(col)) {
+					// still running since an earlier round
+					skipped.add(col.getName());
+					round.done.countDown();
+					continue;
+				}
+				if (!col.allow()) {
+					// breaker open
+					disabled.add(col.getName());
+					round.done.countDown();
+					continue;
+				}
+				running.add(col);
+			}
+			pool.execute(new Task(round, col, i).future);
+		}
+
+		boolean complete = false;
+		try {
+			complete = round.done.await(deadline, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long wall = (System.nanoTime() - t0)/1000000;
+
+		// the critical path is the slowest collector
+		StringBuilder sb = new StringBuilder();
+		long sum = 0;
+		long max = -1;
+		String critical = null;
+		List<String> late = new ArrayList<String>();
+		List<String> unhealthy = new ArrayList<String>();
+		synchronized (this) {
+			round.closed = true;
+			for (int i = 0; i < n; i++) {
+				SupervisedCollector col = collectors.get(i);
+				String name = col.getName();
+				if (col.getHealth() != SupervisedCollector.Health.HEALTHY)
+					unhealthy.add(name + ":" + col.getHealth());
+				if (round.latency[i] < 0) {
+					if (!skipped.contains(name) && !disabled.contains(name))
+						late.add(name);
+					continue;
+				}
+				sb.append(' ').append(name).append('=').append(round.latency[i]);
+				sum += round.latency[i];
+				if (round.latency[i] > max) {
+					max = round.latency[i];
+					critical = name;
+				}
+			}
+		}
+		return "wall_ms=" + wall +
+				" stuck_threads=" + getStuckThreads() +
+				" sum_ms=" + sum +
+				" critical=" + critical +
+				" complete=" + complete +
+				" late=" + late +
+				" skipped=" + skipped +
+				" disabled=" + disabled +
+				" unhealthy=" + unhealthy +
+				" latency_ms:" + sb;
+	}
+
+	/* Add a thread in place of a cancelled collector that does not return. */
+	private synchronized void replaceIfStuck(Task t) {
+		if (t.returned || t.isStuck)
+			return;
+		if (stuck >= MAX_STUCK) {
+			Log.w(Constants.LOGTAG, "collector " + t.col.getName() + " is stuck, " + stuck + " stuck threads already");
+			return;
+		}
+		t.isStuck = true;
+		stuck += 1;
+		replaced += 1;
+		resize();
+		Log.w(Constants.LOGTAG, "collector " + t.col.getName() + " is stuck, add a thread in its place");
+	}
+
+	/* Pool size for the stuck threads (call with the lock held). */
+	private void resize() {
+		int n = threads + stuck;
+		if (n > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(n);
+			pool.setCorePoolSize(n); // starts threads for the queued collectors
+		} else {
+			pool.setCorePoolSize(n);
+			pool.setMaximumPoolSize(n);
+		}
+	}
+
+	/**
+	 * @return Number of threads held by stuck collectors.
+	 */
+	public synchronized int getStuckThreads() {
+		return stuck;
+	}
+
+	/**
+	 * @return Human readable thread counters.
+	 */
+	public synchronized String getHealthStats() {
+		return "threads=" + threads +
+				" stuck=" + stuck +
+				" replaced=" + replaced +
+				" pool=" + pool.getPoolSize() +
+				" active=" + pool.getActiveCount() +
+				" queued=" + pool.getQueue().size();
+	}
+
+	/* Daemon threads with numbered names. */
+	private static final class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private int n = 0;
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + (++n));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
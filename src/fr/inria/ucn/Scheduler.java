@@ -18,6 +18,11 @@
  ******************************************************************************/
 package fr.inria.ucn;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.inria.ucn.collectors.SocketsCollector;
+import fr.inria.ucn.collectors.SysStateCollector;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
@@ -31,6 +36,12 @@ import android.util.Log;
 /**
  * Periodic data collection alarm setup / tear down + handler.
  * 
+ * Each collector has its own period (see {@link SupervisedCollector}), and
+ * a single one-shot alarm is set at the end of every scheduled round for the
+ * next due collectors (see {@link CollectionSchedule}). The sampling interval
+ * adapts to the device activity between the configured min and max (see
+ * {@link AdaptivePolicy}).
+ * 
  * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
  *
  */
@@ -39,6 +50,16 @@ public class Scheduler extends BroadcastReceiver {
 	/** Default scheduling interval: 3min */
 	public static final int DEFAULT_IV = 3;
 
+	/** Default max scheduling interval of an idle device: 15min */
+	public static final int DEFAULT_MAX_IV = 15;
+
+	/* Due times and periods of the collectors (elapsed realtime), kept over process restarts. */
+	private static final String SCHEDULE_PREFS = "fr.inria.ucn.schedule";
+	private static final String PERIOD_SUFFIX = ".period";
+	private static final String ALARM_KEY = "alarm"; // time of the collection alarm
+
+	private static final String PROC_NET_DEV = "/proc/net/dev";
+
 	/*
 	 * (non-Javadoc)
 	 * @see android.content.BroadcastReceiver#onReceive(android.content.Context, android.content.Intent)
@@ -59,6 +80,8 @@ public class Scheduler extends BroadcastReceiver {
 				PendingIntent pi = PendingIntent.getBroadcast(context, 0, aintent, PendingIntent.FLAG_ONE_SHOT);
 				am.set(AlarmManager.RTC_WAKEUP, tsend, pi);
 			} else {
+				// the round sets the next alarm, keep one in case it never gets there
+				setFallbackAlarm(context);
 				// run measurements
 				Helpers.doSample(context, true);
 			}
@@ -82,17 +105,10 @@ public class Scheduler extends BroadcastReceiver {
 	public static synchronized void setAlarms(Context c) {
 		AlarmManager am = (AlarmManager)c.getSystemService(Context.ALARM_SERVICE);
 
-		// periodic collector alarm (configured exact interval)
-		String iv = PreferenceManager.getDefaultSharedPreferences(c).getString(Constants.PREF_INTERVAL, Integer.toString(DEFAULT_IV));
-		long interval = Integer.parseInt(iv) * 60 * 1000; // min -> s -> ms
-		Intent intent = new Intent(Constants.ACTION_COLLECT_ALARM);
-		PendingIntent pi = PendingIntent.getBroadcast(c, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
+		// first collection alarm
+		long interval = getInterval(c);
 		Log.d(Constants.LOGTAG,"next collection scheduled in " + (interval/1000) + " s");
-		am.setRepeating(
-				AlarmManager.ELAPSED_REALTIME_WAKEUP,
-				SystemClock.elapsedRealtime()+interval,
-		        interval, 
-		        pi);
+		setCollectAlarm(c, SystemClock.elapsedRealtime()+interval);
 		
 		// periodic upload alarm (roughly twice a day)
 		Intent intent2 = new Intent(Constants.ACTION_UPLOAD_ALARM);
@@ -105,6 +121,220 @@ public class Scheduler extends BroadcastReceiver {
 				pi2);
 	}
 
+	/**
+	 * @param c
+	 * @return The configured (min) sampling interval (ms).
+	 */
+	public static long getMinInterval(Context c) {
+		String iv = PreferenceManager.getDefaultSharedPreferences(c).getString(Constants.PREF_INTERVAL, Integer.toString(DEFAULT_IV));
+		return Integer.parseInt(iv) * 60 * 1000; // min -> s -> ms
+	}
+
+	/**
+	 * @param c
+	 * @return The configured max sampling interval (ms).
+	 */
+	public static long getMaxInterval(Context c) {
+		String iv = PreferenceManager.getDefaultSharedPreferences(c).getString(Constants.PREF_MAX_INTERVAL, Integer.toString(DEFAULT_MAX_IV));
+		return Integer.parseInt(iv) * 60 * 1000; // min -> s -> ms
+	}
+
+	/**
+	 * @param c
+	 * @return The current sampling interval (ms).
+	 */
+	public static synchronized long getInterval(Context c) {
+		return getPolicy(c).getInterval();
+	}
+
+	/**
+	 * User or system event, back to the min sampling interval. The next
+	 * collection alarm is moved earlier if needed, or set again if the last one
+	 * went off long ago and the round did not set the next one.
+	 * @param c
+	 */
+	public static synchronized void onActivity(Context c) {
+		AdaptivePolicy policy = getPolicy(c);
+		long old = policy.getInterval();
+		long interval = policy.onEvent();
+		savePolicy(c, policy);
+		long alarm = c.getSharedPreferences(SCHEDULE_PREFS, Context.MODE_PRIVATE).getLong(ALARM_KEY, Long.MAX_VALUE);
+		if (alarm == Long.MAX_VALUE || // not running
+				!PreferenceManager.getDefaultSharedPreferences(c).getBoolean(Constants.PREF_HIDDEN_ENABLED, false))
+			return;
+
+		long now = SystemClock.elapsedRealtime();
+		if (alarm > now + interval || alarm < now - interval) {
+			// too late, or went off long ago without setting the next one
+			Log.d(Constants.LOGTAG,"next collection re-scheduled in " + (interval/1000) + " s (was " + 
+					(old/1000) + " s)");
+			setCollectAlarm(c, now + interval);
+		}
+	}
+
+	/**
+	 * Adapt the sampling interval to the signals of the round that just ran (call
+	 * before the end of the round context so that the /proc files are shared).
+	 * If the interval changes the due times of the collectors are moved, and for
+	 * scheduled rounds the alarm is set again.
+	 * @param c
+	 * @param collectors
+	 * @param scheduled round triggered by the collection alarm
+	 */
+	public static synchronized void endRound(Context c, List<SupervisedCollector> collectors, boolean scheduled) {
+		AdaptivePolicy policy = getPolicy(c);
+		long old = policy.getInterval();
+		long interval = policy.observe(System.currentTimeMillis(), 
+				SysStateCollector.takeCpuUsage(), 
+				SocketsCollector.takeActiveFlows(), 
+				getNetworkBytes());
+		savePolicy(c, policy);
+		Log.d(Constants.LOGTAG, "adaptive: interval " + (old/1000) + " s -> " + (interval/1000) + " s");
+		if (interval == old)
+			return;
+
+		long now = SystemClock.elapsedRealtime();
+		CollectionSchedule schedule = getSchedule(c, collectors, now);
+		saveSchedule(c, schedule);
+		if (scheduled && PreferenceManager.getDefaultSharedPreferences(c).getBoolean(Constants.PREF_HIDDEN_ENABLED, false)) {
+			long next = schedule.nextWakeup(now);
+			Log.d(Constants.LOGTAG,"next collection re-scheduled in " + ((next-now)/1000) + " s");
+			setCollectAlarm(c, next);
+		}
+	}
+
+	private static AdaptivePolicy getPolicy(Context c) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
+		return AdaptivePolicy.parse(prefs.getString(Constants.PREF_HIDDEN_ADAPTIVE_STATE, null), 
+				getMinInterval(c), getMaxInterval(c));
+	}
+
+	private static void savePolicy(Context c, AdaptivePolicy policy) {
+		SharedPreferences.Editor edit = PreferenceManager.getDefaultSharedPreferences(c).edit();
+		edit.putString(Constants.PREF_HIDDEN_ADAPTIVE_STATE, policy.toString());
+		edit.commit();
+	}
+
+	/* Sum of rx and tx bytes of the interfaces other than loopback, or -1. */
+	private static long getNetworkBytes() {
+		List<String> dev = Helpers.readProc(PROC_NET_DEV);
+		long[] v = new long[9];
+		long bytes = -1;
+		for (String s : dev) {
+			int idx = s.indexOf(':');
+			if (idx <= 0 || s.substring(0, idx).trim().equals("lo"))
+				continue;
+			if (Helpers.parseLongs(s, idx+1, v) < 9)
+				continue;
+			bytes = Math.max(bytes, 0) + v[0] + v[8];
+		}
+		return bytes;
+	}
+
+	/**
+	 * Select the collectors of a round. A scheduled round runs the collectors
+	 * that are due and sets the alarm of the next round, other rounds (user and
+	 * system events) run all collectors.
+	 * @param c
+	 * @param collectors
+	 * @param scheduled round triggered by the collection alarm
+	 * @return The collectors to run.
+	 */
+	public static synchronized List<SupervisedCollector> getRound(Context c, List<SupervisedCollector> collectors, boolean scheduled) {
+		long now = SystemClock.elapsedRealtime();
+		CollectionSchedule schedule = getSchedule(c, collectors, now);
+
+		List<SupervisedCollector> round = new ArrayList<SupervisedCollector>();
+		for (int i = 0; i < collectors.size(); i++) {
+			if (!scheduled || schedule.isDue(i, now)) {
+				schedule.ran(i, now);
+				round.add(collectors.get(i));
+			}
+		}
+		saveSchedule(c, schedule);
+
+		if (scheduled && PreferenceManager.getDefaultSharedPreferences(c).getBoolean(Constants.PREF_HIDDEN_ENABLED, false)) {
+			long next = schedule.nextWakeup(now);
+			Log.d(Constants.LOGTAG,"next collection scheduled in " + ((next-now)/1000) + " s");
+			setCollectAlarm(c, next);
+		}
+
+		if (Log.isLoggable(Constants.LOGTAG, Log.DEBUG)) {
+			// expected load compared to running everything on each interval
+			int[] runs = new int[schedule.size()];
+			int wakeups = schedule.simulate(now, AlarmManager.INTERVAL_HOUR, runs);
+			int total = 0;
+			for (int r : runs)
+				total += r;
+			long interval = getMinInterval(c);
+			Log.d(Constants.LOGTAG, "schedule: round=" + round.size() + "/" + collectors.size() + 
+					" wakeups/h=" + wakeups + " runs/h=" + total + 
+					" single_rate_wakeups/h=" + (AlarmManager.INTERVAL_HOUR/interval) + 
+					" single_rate_runs/h=" + (AlarmManager.INTERVAL_HOUR/interval*collectors.size()));
+		}
+		return round;
+	}
+
+	private static CollectionSchedule getSchedule(Context c, List<SupervisedCollector> collectors, long now) {
+		long interval = getInterval(c);
+		String[] names = new String[collectors.size()];
+		long[] periods = new long[collectors.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = collectors.get(i).getName();
+			periods[i] = collectors.get(i).getPeriod(interval);
+		}
+		// anything due within half an interval runs in this round
+		CollectionSchedule schedule = new CollectionSchedule(names, periods, interval/2);
+
+		SharedPreferences prefs = c.getSharedPreferences(SCHEDULE_PREFS, Context.MODE_PRIVATE);
+		for (int i = 0; i < names.length; i++) {
+			if (prefs.contains(names[i]) && prefs.getLong(names[i], Long.MIN_VALUE) != Long.MIN_VALUE) {
+				// keep the time of the last run if the period has changed
+				long next = prefs.getLong(names[i], now);
+				long period = prefs.getLong(names[i] + PERIOD_SUFFIX, periods[i]);
+				schedule.setNext(i, next - period + periods[i], now);
+			}
+		}
+		return schedule;
+	}
+
+	private static void saveSchedule(Context c, CollectionSchedule schedule) {
+		SharedPreferences.Editor edit = c.getSharedPreferences(SCHEDULE_PREFS, Context.MODE_PRIVATE).edit();
+		for (int i = 0; i < schedule.size(); i++) {
+			edit.putLong(schedule.getName(i), schedule.getNext(i));
+			edit.putLong(schedule.getName(i) + PERIOD_SUFFIX, schedule.getPeriod(i));
+		}
+		edit.commit();
+	}
+
+	/**
+	 * Set the collection alarm at the max interval from now. The scheduled round
+	 * replaces it with its next alarm, this one only goes off if the round does
+	 * not complete (process killed, crash) so that the alarms do not stop.
+	 * @param c
+	 */
+	public static synchronized void setFallbackAlarm(Context c) {
+		setCollectAlarm(c, SystemClock.elapsedRealtime() + getMaxInterval(c));
+	}
+
+	/* No collection alarm, see onActivity(). */
+	private static void clearCollectAlarm(Context c) {
+		SharedPreferences.Editor edit = c.getSharedPreferences(SCHEDULE_PREFS, Context.MODE_PRIVATE).edit();
+		edit.remove(ALARM_KEY);
+		edit.commit();
+	}
+
+	private static void setCollectAlarm(Context c, long at) {
+		AlarmManager am = (AlarmManager)c.getSystemService(Context.ALARM_SERVICE);
+		Intent intent = new Intent(Constants.ACTION_COLLECT_ALARM);
+		PendingIntent pi = PendingIntent.getBroadcast(c, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
+		am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, at, pi);
+		
+		SharedPreferences.Editor edit = c.getSharedPreferences(SCHEDULE_PREFS, Context.MODE_PRIVATE).edit();
+		edit.putLong(ALARM_KEY, at);
+		edit.commit();
+	}
+
 	/**
 	 * Cancel all alarms.
 	 * @param c
@@ -117,6 +347,7 @@ public class Scheduler extends BroadcastReceiver {
 		if (pi!=null) {
 			am.cancel(pi);
 		}
+		clearCollectAlarm(c);
 		Intent intent2 = new Intent(Constants.ACTION_UPLOAD_ALARM);
 		PendingIntent pi2 = PendingIntent.getBroadcast(c, 0, intent2, PendingIntent.FLAG_NO_CREATE);
 		if (pi2!=null) {
@@ -142,6 +373,7 @@ public class Scheduler extends BroadcastReceiver {
 		if (pi!=null) {
 			am.cancel(pi);
 		}
+		clearCollectAlarm(c);
 		Intent intent2 = new Intent(Constants.ACTION_UPLOAD_ALARM);
 		PendingIntent pi2 = PendingIntent.getBroadcast(c, 0, intent2, PendingIntent.FLAG_NO_CREATE);
 		if (pi2!=null) {
@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import fr.inria.ucn.collectors.Collector;
+import android.content.Context;
+
+/**
+ * Collector with a collection period, a run time limit and a circuit breaker,
+ * run by the {@link RoundExecutor}. After repeated timeouts or exceptions the
+ * collector is disabled for a number of rounds, then a single probe run decides
+ * whether it is enabled again.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class SupervisedCollector implements Collector {
+
+	/** Default max run time (ms). */
+	public static final long DEFAULT_TIMEOUT = 10*1000;
+
+	/** Period of the collectors that run on every sampling interval. */
+	public static final long BASE_PERIOD = 0;
+
+	/** Default number of consecutive failures that disable the collector. */
+	public static final int DEFAULT_FAILURES = 3;
+
+	/** Default number of rounds the collector stays disabled. */
+	public static final int DEFAULT_DISABLED_ROUNDS = 5;
+
+	/** Health of the collector. */
+	public enum Health {
+		HEALTHY,  // last run completed
+		FAILING,  // failed recently, below the failure threshold
+		DISABLED, // breaker open, not run
+		PROBING   // first run after being disabled
+	}
+
+	private final Collector collector;
+	private final long timeout;
+	private final long period;
+	private final int maxFailures;
+	private final int disabledRounds;
+
+	/* Breaker state (guarded by this). */
+	private Health health = Health.HEALTHY;
+	private int failures = 0;
+	private int roundsLeft = 0;
+
+	/* Lifetime counters (guarded by this). */
+	private long runs = 0;
+	private long timeouts = 0;
+	private long errors = 0;
+	private long skipped = 0;
+	private long lastLatency = -1;
+
+	/**
+	 * Collector that runs on every sampling interval.
+	 * @param collector
+	 * @param timeout max run time (ms)
+	 */
+	public SupervisedCollector(Collector collector, long timeout) {
+		this(collector, timeout, BASE_PERIOD);
+	}
+
+	/**
+	 * @param collector
+	 * @param timeout max run time (ms)
+	 * @param period collection period (ms), or {@link #BASE_PERIOD} for the sampling interval
+	 */
+	public SupervisedCollector(Collector collector, long timeout, long period) {
+		this(collector, timeout, period, DEFAULT_FAILURES, DEFAULT_DISABLED_ROUNDS);
+	}
+
+	/**
+	 * @param collector
+	 * @param timeout max run time (ms)
+	 * @param period collection period (ms), or {@link #BASE_PERIOD} for the sampling interval
+	 * @param maxFailures consecutive timeouts or exceptions that disable the collector
+	 * @param disabledRounds number of rounds the collector is then skipped
+	 */
+	public SupervisedCollector(Collector collector, long timeout, long period, int maxFailures, int disabledRounds) {
+		this.collector = collector;
+		this.timeout = timeout;
+		this.period = period;
+		this.maxFailures = maxFailures;
+		this.disabledRounds = disabledRounds;
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.inria.ucn.collectors.Collector#run(android.content.Context, long)
+	 */
+	@Override
+	public void run(Context c, long ts) {
+		collector.run(c, ts);
+	}
+
+	/**
+	 * @return Name of the collector.
+	 */
+	public String getName() {
+		return collector.getClass().getSimpleName();
+	}
+
+	/**
+	 * @return Max run time (ms).
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @param base sampling interval (ms)
+	 * @return Collection period (ms), never shorter than the sampling interval.
+	 */
+	public long getPeriod(long base) {
+		return Math.max(period, base);
+	}
+
+	/**
+	 * Called once per round before running the collector.
+	 * @return true if the collector can run in this round.
+	 */
+	public synchronized boolean allow() {
+		if (health == Health.DISABLED) {
+			if (roundsLeft > 0) {
+				roundsLeft -= 1;
+				skipped += 1;
+				return false;
+			}
+			health = Health.PROBING;
+		}
+		return true;
+	}
+
+	/**
+	 * The run completed.
+	 * @param latency run time (ms)
+	 */
+	public synchronized void succeeded(long latency) {
+		runs += 1;
+		lastLatency = latency;
+		failures = 0;
+		health = Health.HEALTHY;
+	}
+
+	/**
+	 * The run timed out or threw.
+	 * @param timeout true if the run was cancelled after the timeout
+	 */
+	public synchronized void failed(boolean timeout) {
+		runs += 1;
+		if (timeout)
+			timeouts += 1;
+		else
+			errors += 1;
+		failures += 1;
+		if (health == Health.PROBING || failures >= maxFailures) {
+			health = Health.DISABLED;
+			roundsLeft = disabledRounds;
+		} else {
+			health = Health.FAILING;
+		}
+	}
+
+	/**
+	 * @return Current health of the collector.
+	 */
+	public synchronized Health getHealth() {
+		return health;
+	}
+
+	/**
+	 * @return Human readable health state and counters.
+	 */
+	public synchronized String getHealthStats() {
+		return getName() + ": health=" + health +
+				" failures=" + failures +
+				" disabled_rounds_left=" + roundsLeft +
+				" runs=" + runs +
+				" timeouts=" + timeouts +
+				" errors=" + errors +
+				" skipped=" + skipped +
+				" last_ms=" + lastLatency;
+	}
+}
@@ -18,27 +18,30 @@
  ******************************************************************************/
 package fr.inria.ucn.collectors;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import fr.inria.ucn.Constants;
+import fr.inria.ucn.CounterDeltas;
 import fr.inria.ucn.Helpers;
+import fr.inria.ucn.RecordWriter;
+import fr.inria.ucn.RoundContext;
 
 import android.annotation.SuppressLint;
 import android.app.ActivityManager;
 import android.content.Context;
 import android.net.TrafficStats;
 import android.util.Log;
+import android.util.SparseArray;
 
 /**
- * Bytes send/recv per app.
+ * Bytes send/recv per app. Only the uids whose counters changed since the previous
+ * round are sent, with a full snapshot every {@link #FULL_SNAPSHOT_INTERVAL} and
+ * whenever the counters start a new keyframe (see {@link CounterDeltas}).
  * 
  * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
  *
@@ -47,85 +50,216 @@ public class AppDataUsageCollector implements Collector {
 
 	private static final String PROC_UID_STAT = "/proc/uid_stat";
 
+	/** Max time between two full snapshots (all uids). */
+	public static final long FULL_SNAPSHOT_INTERVAL = 60*60*1000; // 1h
+	
+	/* Counters per uid, indexes in the counter arrays. */
+	private static final int TCP_SND = 0;
+	private static final int TCP_RCV = 1;
+	private static final int RX_BYTES = 2;
+	private static final int TX_BYTES = 3;
+	private static final int RX_PKTS = 4;
+	private static final int TX_PKTS = 5;
+	private static final int TCP_RX_PKTS = 6;
+	private static final int TCP_TX_PKTS = 7;
+	private static final int UDP_RX_PKTS = 8;
+	private static final int UDP_TX_PKTS = 9;
+	private static final int UDP_RX_BYTES = 10;
+	private static final int UDP_TX_BYTES = 11;
+	private static final int TCP_RX_BYTES = 12;
+	private static final int TCP_TX_BYTES = 13;
+	private static final int COUNTERS = 14;
+	
+	/* Record keys of the counters from TCP_SND and from RX_BYTES. */
+	private static final String[] TCP_KEYS = {"send", "recv"};
+	private static final String[] TRAFFIC_STATS_KEYS = {
+		"uid_rx_bytes", "uid_tx_bytes", "uid_rx_pkts", "uid_tx_pkts", "uid_tcp_rx_pkts", "uid_tcp_tx_pkts", 
+		"uid_udp_rx_pkts", "uid_udp_tx_pkts", "uid_udp_rx_bytes", "uid_udp_tx_bytes", "uid_tcp_rx_bytes", 
+		"uid_tcp_tx_bytes"
+	};
+	
+	/* Previous round counters per uid (kept across service instances, guarded by the class). */
+	private static SparseArray<long[]> previous = new SparseArray<long[]>();
+	private static long lastFull = 0;
+	private static int lastFullSize = 0;
+	
 	/* (non-Javadoc)
 	 * @see fr.inria.ucn.collectors.Collector#run(android.content.Context)
 	 */
 	@Override
 	public void run(Context c, long ts) {	
 		try {
-			// data used per app
-			JSONArray parray = new JSONArray();
-			
+			// uids to check
+			int[] uids = null;
 			File f = new File(PROC_UID_STAT);
 			if (f.exists() && f.isDirectory() && f.canRead()) {
-				for (String dir: f.list()) {
-					parray.put(getProcInfo(c, Integer.parseInt(dir)));
+				String[] dirs = f.list();
+				uids = new int[dirs.length];
+				for (int i = 0; i < dirs.length; i++) {
+					uids[i] = Integer.parseInt(dirs[i]);
 				}
 			} else {
 				ActivityManager am = (ActivityManager) c.getSystemService(Context.ACTIVITY_SERVICE);
-				for (ActivityManager.RunningAppProcessInfo pinfo : am.getRunningAppProcesses()) {
-					parray.put(getProcInfo(c, pinfo.uid));					
+				List<ActivityManager.RunningAppProcessInfo> procs = am.getRunningAppProcesses();
+				uids = new int[procs.size()];
+				for (int i = 0; i < uids.length; i++) {
+					uids[i] = procs.get(i).uid;
+				}
+			}
+			
+			// only uids with changed counters, unless it is time for a full snapshot
+			boolean full;
+			SparseArray<long[]> prevRound;
+			synchronized (AppDataUsageCollector.class) {
+				prevRound = previous;
+				full = (ts < lastFull || ts - lastFull >= FULL_SNAPSHOT_INTERVAL);
+			}
+			
+			// counters of all uids, then of the changed ones only (copied as they are 
+			// rewritten to deltas)
+			String[] tstatKeys = (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB_MR1 ? 
+					TRAFFIC_STATS_KEYS : Arrays.copyOf(TRAFFIC_STATS_KEYS, 2));
+			SparseArray<long[]> current = new SparseArray<long[]>(uids.length);
+			boolean[] changed = new boolean[uids.length];
+			int n = 0;
+			int[] outUids = new int[uids.length];
+			long[] out = new long[uids.length*COUNTERS];
+			for (int uid : uids) {
+				if (current.indexOfKey(uid) >= 0)
+					continue; // listed already
+				
+				long[] prev = prevRound.get(uid);
+				long[] cur = readCounters(uid);
+				current.put(uid, cur);
+				outUids[n] = uid;
+				changed[n] = (prev == null || !Arrays.equals(prev, cur));
+				System.arraycopy(cur, 0, out, n*COUNTERS, COUNTERS);
+				n += 1;
+			}
+			
+			// a keyframe must have all the uids
+			CounterDeltas.Sample counters = addCounters(ts, outUids, out, n, tstatKeys);
+			if (!full && counters.getKeyframeReason() != null)
+				full = true;
+			if (!full) {
+				int m = 0;
+				for (int i = 0; i < n; i++) {
+					if (!changed[i])
+						continue;
+					outUids[m] = outUids[i];
+					System.arraycopy(out, i*COUNTERS, out, m*COUNTERS, COUNTERS);
+					m += 1;
+				}
+				n = m;
+				counters = addCounters(ts, outUids, out, n, tstatKeys);
+			}
+			JSONObject marker = counters.commit();
+			synchronized (AppDataUsageCollector.class) {
+				previous = current;
+				if (full)
+					lastFull = ts;
+			}
+			
+			// data used per app
+			RecordWriter w = Helpers.beginResult(c);
+			w.beginObject();
+			w.key("process_list").beginArray();
+			for (int i = 0; i < n; i++) {
+				writeProcInfo(w, outUids[i], out, i*COUNTERS, tstatKeys);
+			}
+			w.endArray();
+			w.key("changed_only").value(!full);
+			w.key("counters").value(marker);
+			w.endObject();
+			
+			if (Log.isLoggable(Constants.LOGTAG, Log.DEBUG)) {
+				int size = w.size();
+				int fullSize;
+				synchronized (AppDataUsageCollector.class) {
+					if (full)
+						lastFullSize = size;
+					fullSize = lastFullSize;
 				}
+				Log.d(Constants.LOGTAG, "app_data_usage: " + n + "/" + current.size() + " uids, " + 
+						size + " bytes" + (full ? " (full)" : 
+							(fullSize > 0 ? ", " + (100 - size*100/fullSize) + "% smaller than last full" : "")));
 			}
 			
-			// done
-			Helpers.sendResultObj(c,"app_data_usage", ts, new JSONObject().put("process_list", parray));
+			Helpers.sendResult(c,"app_data_usage", ts, w);
 			
 		} catch (JSONException jex) {
 			Log.w(Constants.LOGTAG, "failed to create json object",jex);
 		}		
 	}
 	
-	/* Build process info object. */
+	/* Counters of the first n uids, v[i*COUNTERS..] are the counters of uids[i]. */
+	private static CounterDeltas.Sample addCounters(long ts, int[] uids, long[] v, int n, String[] tstatKeys) {
+		CounterDeltas.Sample counters = CounterDeltas.begin("app_data_usage", ts);
+		for (int i = 0; i < n; i++) {
+			counters.add(uids[i] + "/tcp", TCP_KEYS, v, i*COUNTERS + TCP_SND);
+			counters.add(uids[i] + "/traffic_stats", tstatKeys, v, i*COUNTERS + RX_BYTES);
+		}
+		return counters;
+	}
+	
+	/* Read all counters of the uid. */
 	@SuppressWarnings("deprecation")
 	@SuppressLint("NewApi")
-	private JSONObject getProcInfo(Context c, int uid) throws JSONException {
-		// uid + related package list
-		JSONObject pinfo = new JSONObject();
-		pinfo.put("uid", uid);
-		pinfo.put("packages", Helpers.getPackagesForUid(c,uid));
+	private long[] readCounters(int uid) {
+		long[] v = new long[COUNTERS];
+		Arrays.fill(v, TrafficStats.UNSUPPORTED);
 		
 		// simple TCP stats
-		JSONObject tcp = new JSONObject();
-		tcp.put("send", getSysLongValue(PROC_UID_STAT + "/" +uid+ "/tcp_snd"));
-		tcp.put("recv", getSysLongValue(PROC_UID_STAT + "/" +uid+ "/tcp_rcv"));
-		pinfo.put("proc_uid_stat_tcp",tcp);
+		v[TCP_SND] = getSysLongValue(PROC_UID_STAT + "/" +uid+ "/tcp_snd");
+		v[TCP_RCV] = getSysLongValue(PROC_UID_STAT + "/" +uid+ "/tcp_rcv");
 		
 		// complete traffic stats (may not be available)
-		JSONObject tstat = new JSONObject();
-		tstat.put("uid_rx_bytes", TrafficStats.getUidRxBytes(uid));
-		tstat.put("uid_tx_bytes", TrafficStats.getUidTxBytes(uid));
-		
+		v[RX_BYTES] = TrafficStats.getUidRxBytes(uid);
+		v[TX_BYTES] = TrafficStats.getUidTxBytes(uid);
 		if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB_MR1) {
-			tstat.put("uid_rx_pkts", TrafficStats.getUidRxPackets(uid));
-			tstat.put("uid_tx_pkts", TrafficStats.getUidTxPackets(uid));
-			tstat.put("uid_tcp_rx_pkts", TrafficStats.getUidTcpRxSegments(uid));
-			tstat.put("uid_tcp_tx_pkts", TrafficStats.getUidTcpTxSegments(uid));
-			tstat.put("uid_udp_rx_pkts", TrafficStats.getUidUdpRxPackets(uid));
-			tstat.put("uid_udp_tx_pkts", TrafficStats.getUidUdpTxPackets(uid));
-			tstat.put("uid_udp_rx_bytes", TrafficStats.getUidUdpRxBytes(uid));
-			tstat.put("uid_udp_tx_bytes", TrafficStats.getUidUdpTxBytes(uid));
-			tstat.put("uid_tcp_rx_bytes", TrafficStats.getUidTcpRxBytes(uid));
-			tstat.put("uid_tcp_tx_bytes", TrafficStats.getUidTcpTxBytes(uid));
+			v[RX_PKTS] = TrafficStats.getUidRxPackets(uid);
+			v[TX_PKTS] = TrafficStats.getUidTxPackets(uid);
+			v[TCP_RX_PKTS] = TrafficStats.getUidTcpRxSegments(uid);
+			v[TCP_TX_PKTS] = TrafficStats.getUidTcpTxSegments(uid);
+			v[UDP_RX_PKTS] = TrafficStats.getUidUdpRxPackets(uid);
+			v[UDP_TX_PKTS] = TrafficStats.getUidUdpTxPackets(uid);
+			v[UDP_RX_BYTES] = TrafficStats.getUidUdpRxBytes(uid);
+			v[UDP_TX_BYTES] = TrafficStats.getUidUdpTxBytes(uid);
+			v[TCP_RX_BYTES] = TrafficStats.getUidTcpRxBytes(uid);
+			v[TCP_TX_BYTES] = TrafficStats.getUidTcpTxBytes(uid);
 		}
+		return v;
+	}
+	
+	/* Write the process info object, v[off..] are the counters of the uid. */
+	private void writeProcInfo(RecordWriter w, int uid, long[] v, int off, String[] tstatKeys) {
+		// uid (see package_dictionary)
+		w.beginObject();
+		w.key("uid").value(uid);
+		
+		// simple TCP stats
+		w.key("proc_uid_stat_tcp").beginObject();
+		for (int i = 0; i < TCP_KEYS.length; i++)
+			w.key(TCP_KEYS[i]).value(v[off + TCP_SND + i]);
+		w.endObject();
+		
+		// complete traffic stats (may not be available)
+		w.key("android_traffic_stats").beginObject();
+		for (int i = 0; i < tstatKeys.length; i++)
+			w.key(tstatKeys[i]).value(v[off + RX_BYTES + i]);
+		w.endObject();
 		
-		pinfo.put("android_traffic_stats", tstat);					
-		return pinfo;
+		w.endObject();
 	}
 	
 	/* Read a long value from a proc file. */
 	private long getSysLongValue(String name) {
 		long res = -1;
-		File f = new File(name);
+		String value = RoundContext.readLine(name);
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(f));
-			String value = br.readLine().trim();
-			br.close();
 			if (value!=null && value.length()>0) {
 				res = Long.parseLong(value);
 			}
-		} catch (FileNotFoundException e) {
-		} catch (IOException e) {
 		} catch (NumberFormatException e) {			
 		}
 		return res;
@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn.collectors;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import fr.inria.ucn.Constants;
+import fr.inria.ucn.Helpers;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Per core online status, current frequency and cpufreq time in state from sysfs.
+ * The time in state is sent as the difference to the previous round.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class CpuFreqCollector implements Collector {
+
+	/** Default sysfs cpu root. */
+	public static final String SYS_CPU = "/sys/devices/system/cpu";
+
+	private static final int BUFFER = 4*1024;
+
+	/* Previous time in state per core directory: freq0, time0, freq1, time1, ... (guarded by the class). */
+	private static final Map<String, long[]> previous = new HashMap<String, long[]>();
+
+	private final String root;
+
+	/* Reused read buffer. */
+	private byte[] buf = new byte[BUFFER];
+	private int len = 0;
+
+	/**
+	 * Collector of {@link #SYS_CPU}.
+	 */
+	public CpuFreqCollector() {
+		this(SYS_CPU);
+	}
+
+	/**
+	 * @param root sysfs cpu root (for example a copy of /sys/devices/system/cpu)
+	 */
+	public CpuFreqCollector(String root) {
+		this.root = root;
+	}
+
+	/* (non-Javadoc)
+	 * @see fr.inria.ucn.collectors.Collector#run(android.content.Context, long)
+	 */
+	@Override
+	public void run(Context c, long ts) {
+		try {
+			JSONObject data = new JSONObject();
+			data.put("cores", getCores());
+			Helpers.sendResultObj(c, "cpu_freq", ts, data);
+		} catch (JSONException jex) {
+			Log.w(Constants.LOGTAG, "failed to create json object",jex);
+		}
+	}
+
+	/* Read all cores. */
+	synchronized JSONArray getCores() throws JSONException {
+		JSONArray cores = new JSONArray();
+		String[] dirs = new File(root).list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.matches("cpu[0-9]+");
+			}
+		});
+		if (dirs == null)
+			return cores;
+
+		int[] ids = new int[dirs.length];
+		for (int i = 0; i < dirs.length; i++)
+			ids[i] = Integer.parseInt(dirs[i].substring(3));
+		Arrays.sort(ids);
+
+		for (int id : ids) {
+			String dir = root + "/cpu" + id;
+			JSONObject core = new JSONObject();
+			core.put("cpu", id);
+
+			// cpu0 usually can not be turned off and has no online file
+			long online = readLong(dir + "/online");
+			core.put("online", online != 0);
+
+			long freq = readLong(dir + "/cpufreq/scaling_cur_freq");
+			if (freq >= 0)
+				core.put("cur_freq", freq);
+
+			long[] tis = readTimeInState(dir + "/cpufreq/stats/time_in_state");
+			if (tis != null)
+				putTimeInState(core, dir, tis);
+			cores.put(core);
+		}
+		return cores;
+	}
+
+	/* Add the time in state of the core (difference to the previous round if possible). */
+	private void putTimeInState(JSONObject core, String dir, long[] tis) throws JSONException {
+		long[] prev;
+		synchronized (CpuFreqCollector.class) {
+			prev = previous.put(dir, tis);
+		}
+
+		// same frequencies and no counter went down ?
+		boolean delta = (prev != null && prev.length == tis.length);
+		for (int i = 0; delta && i < tis.length; i += 2) {
+			if (prev[i] != tis[i] || prev[i+1] > tis[i+1])
+				delta = false;
+		}
+
+		JSONArray a = new JSONArray();
+		for (int i = 0; i < tis.length; i += 2) {
+			JSONArray s = new JSONArray();
+			s.put(tis[i]);
+			s.put(delta ? tis[i+1] - prev[i+1] : tis[i+1]);
+			a.put(s);
+		}
+		core.put("time_in_state", a);
+		core.put("time_in_state_delta", delta);
+	}
+
+	/* Read a file with a single number, -1 if missing (1 for a missing online file). */
+	private long readLong(String file) {
+		if (!read(file))
+			return (file.endsWith("/online") ? 1 : -1);
+		int[] pos = {0};
+		return parseLong(pos);
+	}
+
+	/* Read "freq time" lines, returns freq0, time0, freq1, time1, ... or null. */
+	private long[] readTimeInState(String file) {
+		if (!read(file))
+			return null;
+		long[] res = new long[32];
+		int n = 0;
+		int[] pos = {0};
+		while (pos[0] < len) {
+			long f = parseLong(pos);
+			long t = parseLong(pos);
+			if (f < 0 || t < 0)
+				break;
+			if (n + 2 > res.length)
+				res = Arrays.copyOf(res, res.length*2);
+			res[n++] = f;
+			res[n++] = t;
+		}
+		return (n > 0 ? Arrays.copyOf(res, n) : null);
+	}
+
+	/* Next decimal number from pos, -1 if none. */
+	private long parseLong(int[] pos) {
+		int p = pos[0];
+		while (p < len && (buf[p] < '0' || buf[p] > '9'))
+			p += 1;
+		if (p >= len) {
+			pos[0] = p;
+			return -1;
+		}
+		long v = 0;
+		while (p < len && buf[p] >= '0' && buf[p] <= '9') {
+			v = v*10 + (buf[p] - '0');
+			p += 1;
+		}
+		pos[0] = p;
+		return v;
+	}
+
+	/* Read the file into the buffer. */
+	private boolean read(String file) {
+		len = 0;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			int n;
+			while ((n = in.read(buf, len, buf.length - len)) > 0) {
+				len += n;
+				if (len == buf.length)
+					buf = Arrays.copyOf(buf, buf.length*2);
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
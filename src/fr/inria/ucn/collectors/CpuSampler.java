@@ -0,0 +1,265 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn.collectors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import fr.inria.ucn.Constants;
+import fr.inria.ucn.Helpers;
+
+import android.util.Log;
+
+/**
+ * CPU time accounting from the cpu lines of /proc/stat (all cpus and per core).
+ *
+ * The usage is computed between two snapshots taken at any interval, so the caller
+ * does not need to wait between the reads: keep the previous snapshot (see
+ * {@link Snapshot#toString()} and {@link #parse(String, long)}) and compare it with a
+ * new one. For a short instantaneous window, {@link #startWindow(long)} samples on a
+ * background thread and the result is picked up later with {@link #getWindow()}.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class CpuSampler {
+
+	/** Default stat file. */
+	public static final String PROC_STAT = "/proc/stat";
+
+	/* cpu line fields: user nice system idle iowait irq softirq steal */
+	private static final int USER = 0;
+	private static final int NICE = 1;
+	private static final int SYSTEM = 2;
+	private static final int IDLE = 3;
+	private static final int IOWAIT = 4;
+	private static final int IRQ = 5;
+	private static final int SOFTIRQ = 6;
+	private static final int STEAL = 7;
+	private static final int FIELDS = 8;
+
+	/**
+	 * Cpu lines of /proc/stat at a given time.
+	 */
+	public static final class Snapshot {
+		/** Snapshot time (ms). */
+		public final long ts;
+		private final List<String> names = new ArrayList<String>();
+		private final List<long[]> values = new ArrayList<long[]>();
+
+		private Snapshot(long ts) {
+			this.ts = ts;
+		}
+
+		private long[] get(String name) {
+			int i = names.indexOf(name);
+			return (i >= 0 ? values.get(i) : null);
+		}
+
+		/**
+		 * @return The cpu lines, can be parsed back with {@link CpuSampler#parse(String, long)}.
+		 */
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < names.size(); i++) {
+				sb.append(names.get(i));
+				for (long v : values.get(i))
+					sb.append(' ').append(v);
+				sb.append('\n');
+			}
+			return sb.toString();
+		}
+	}
+
+	private final String statFile;
+
+	/* Latest short window usage and the thread taking it. */
+	private JSONObject window = null;
+	private Thread windowThread = null;
+
+	/**
+	 * Sampler of {@link #PROC_STAT}.
+	 */
+	public CpuSampler() {
+		this(PROC_STAT);
+	}
+
+	/**
+	 * @param statFile stat file to read (for example a copy of /proc/stat)
+	 */
+	public CpuSampler(String statFile) {
+		this.statFile = statFile;
+	}
+
+	/**
+	 * @return Current snapshot, or null if the stat file could not be read.
+	 */
+	public Snapshot read() {
+		long ts = System.currentTimeMillis();
+		List<String> lines = Helpers.readProc(statFile, false); // not cached, sampled several times in a round
+		Snapshot s = parse(lines, ts);
+		return (s.names.size() > 0 ? s : null);
+	}
+
+	/**
+	 * @param lines output of {@link Snapshot#toString()}
+	 * @param ts snapshot time
+	 * @return the snapshot, or null if there are no cpu lines.
+	 */
+	public static Snapshot parse(String lines, long ts) {
+		if (lines == null)
+			return null;
+		List<String> l = new ArrayList<String>();
+		for (String s : lines.split("\n"))
+			l.add(s);
+		Snapshot s = parse(l, ts);
+		return (s.names.size() > 0 ? s : null);
+	}
+
+	private static Snapshot parse(List<String> lines, long ts) {
+		Snapshot s = new Snapshot(ts);
+		for (String line : lines) {
+			if (!line.startsWith("cpu"))
+				continue; // cpu lines come first, but just in case
+			String[] tmp = line.trim().split("[ ]+");
+			long[] v = new long[FIELDS];
+			try {
+				// older kernels have less fields
+				for (int i = 0; i < FIELDS && i + 1 < tmp.length; i++)
+					v[i] = Long.parseLong(tmp[i+1]);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			s.names.add(tmp[0]);
+			s.values.add(v);
+		}
+		return s;
+	}
+
+	/**
+	 * Cpu usage (% of the time of each cpu) between two snapshots.
+	 * @param from
+	 * @param to
+	 * @return usage of all cpus with the per core usage in "cores", or null if the
+	 * counters were reset in between (reboot).
+	 * @throws JSONException
+	 */
+	public static JSONObject usage(Snapshot from, Snapshot to) throws JSONException {
+		if (from == null || to == null)
+			return null;
+
+		JSONObject cpu = usage(from.get("cpu"), to.get("cpu"));
+		if (cpu == null)
+			return null;
+		cpu.put("interval", to.ts - from.ts);
+
+		// cores online in both snapshots
+		JSONArray cores = new JSONArray();
+		for (int i = 0; i < to.names.size(); i++) {
+			String name = to.names.get(i);
+			if (name.equals("cpu"))
+				continue;
+			JSONObject core = usage(from.get(name), to.values.get(i));
+			if (core != null) {
+				core.put("name", name);
+				cores.put(core);
+			}
+		}
+		cpu.put("cores", cores);
+		return cpu;
+	}
+
+	private static JSONObject usage(long[] a, long[] b) throws JSONException {
+		if (a == null || b == null)
+			return null;
+
+		long[] d = new long[FIELDS];
+		long dtotal = 0;
+		for (int i = 0; i < FIELDS; i++) {
+			d[i] = b[i] - a[i];
+			if (d[i] < 0)
+				return null; // reset
+			dtotal += d[i];
+		}
+		if (dtotal == 0)
+			return null;
+
+		// user = user + nice, system = system + irq + softirq
+		long duser = d[USER] + d[NICE];
+		long dsys = d[SYSTEM] + d[IRQ] + d[SOFTIRQ];
+
+		JSONObject cpu = new JSONObject();
+		cpu.put("user", (double)duser*100.0/dtotal);
+		cpu.put("system", (double)dsys*100.0/dtotal);
+		cpu.put("total", (double)(duser+dsys)*100.0/dtotal);
+		cpu.put("iowait", (double)d[IOWAIT]*100.0/dtotal);
+		cpu.put("steal", (double)d[STEAL]*100.0/dtotal);
+		cpu.put("idle", (double)d[IDLE]*100.0/dtotal);
+		return cpu;
+	}
+
+	/**
+	 * Sample the usage over a short window on a background thread (no-op if a
+	 * window is being sampled already).
+	 * @param ms window length
+	 */
+	public synchronized void startWindow(final long ms) {
+		if (windowThread != null && windowThread.isAlive())
+			return;
+
+		windowThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Snapshot s1 = read();
+				try {
+					Thread.sleep(ms);
+				} catch (InterruptedException e) {
+					return;
+				}
+				Snapshot s2 = read();
+				try {
+					JSONObject w = usage(s1, s2);
+					if (w != null) {
+						w.put("ts", s1.ts);
+						synchronized (CpuSampler.this) {
+							window = w;
+						}
+					}
+				} catch (JSONException e) {
+					Log.w(Constants.LOGTAG, "failed to create json object", e);
+				}
+			}
+		}, "UCNCpuWindow");
+		windowThread.start();
+	}
+
+	/**
+	 * @return The latest completed short window usage (once), or null.
+	 */
+	public synchronized JSONObject getWindow() {
+		JSONObject w = window;
+		window = null;
+		return w;
+	}
+}
@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn.collectors;
+
+import org.json.JSONException;
+
+/**
+ * Tracks socket flows across collection rounds.
+ *
+ * A flow is identified by (table, local address, remote address, inode), as parsed by
+ * {@link ProcNetParser}. The tracker reports a flow when it first shows up (open), when
+ * it is no longer in the tables at the end of a round (close) and when it is dropped to
+ * stay within {@link #MAX_FLOWS} at the end of a round (evict, least recently seen
+ * first). It keeps the first and last round the flow was seen in, and the max tx/rx
+ * queue sizes seen in between. The flows of a table that could not be read in a round
+ * are carried over to the next round instead of being closed.
+ *
+ * The tracker starts empty, so in its first round (process start) every flow is
+ * reported open, including the flows opened earlier (see {@link #isFirstRound()}).
+ *
+ * The flows are kept in an open addressing table (linear probing, backward shift
+ * deletion) of primitive arrays that is allocated once. During a round the table can
+ * hold up to {@link #MAX_ROUND_FLOWS} flows, as the closed flows are only known at the
+ * end of the round.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class FlowTracker {
+
+	/** Max number of tracked flows. */
+	public static final int MAX_FLOWS = 1024;
+
+	/** Max number of flows during a round (old and new). */
+	public static final int MAX_ROUND_FLOWS = MAX_FLOWS*3/2;
+
+	/** Flow events. */
+	public static final String EVENT_OPEN = "open";
+	public static final String EVENT_CLOSE = "close";
+	public static final String EVENT_EVICT = "evict";
+
+	/**
+	 * Receives the flow events. The flow fields of the slot can be read during the call.
+	 */
+	public interface Listener {
+		public void onFlow(String event, FlowTracker t, int slot) throws JSONException;
+	}
+
+	private static final int TABLE_SIZE = 2*MAX_FLOWS; // power of two, load <= 0.5
+	private static final int MASK = TABLE_SIZE - 1;
+	private static final int W = ProcNetParser.MAX_WORDS;
+
+	/* Flow table, table[slot] is the table index + 1 (0 = empty slot). */
+	final int[] table = new int[TABLE_SIZE];
+	final int[] words = new int[TABLE_SIZE];
+	final long[] inode = new long[TABLE_SIZE];
+	final int[] localAddr = new int[TABLE_SIZE*W];
+	final int[] localPort = new int[TABLE_SIZE];
+	final int[] remoteAddr = new int[TABLE_SIZE*W];
+	final int[] remotePort = new int[TABLE_SIZE];
+	final int[] uid = new int[TABLE_SIZE];
+	final int[] state = new int[TABLE_SIZE];
+	final int[] maxTxQueue = new int[TABLE_SIZE];
+	final int[] maxRxQueue = new int[TABLE_SIZE];
+	final long[] firstSeen = new long[TABLE_SIZE];
+	final long[] lastSeen = new long[TABLE_SIZE];
+
+	private int size = 0;
+	private long now = 0;
+	private long rounds = 0;
+
+	/* Tables updated in the current round (bit t = table t). */
+	private int seen = 0;
+
+	/**
+	 * @return Number of tracked flows.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Start a new round.
+	 * @param ts round timestamp
+	 */
+	public void beginRound(long ts) {
+		now = ts;
+		rounds += 1;
+		seen = 0;
+	}
+
+	/**
+	 * @return true in the first round of the tracker: the flows reported open were
+	 * possibly open already, and the flows of a previous tracker (previous process)
+	 * are never reported closed.
+	 */
+	public boolean isFirstRound() {
+		return rounds == 1;
+	}
+
+	/**
+	 * Update the flows with the table just parsed.
+	 * @param t table index (0..31)
+	 * @param p parser holding the table entries
+	 * @param l
+	 * @throws JSONException
+	 */
+	public void update(int t, ProcNetParser p, Listener l) throws JSONException {
+		seen |= (1 << t);
+		for (int i = 0; i < p.count; i++) {
+			if (p.inode[i] == 0)
+				continue; // not owned by any process (TIME_WAIT etc)
+
+			int slot = find(t, p, i);
+			if (table[slot] == 0) {
+				// new flow
+				if (size >= MAX_ROUND_FLOWS) {
+					evict(l);
+					slot = find(t, p, i); // the table has changed
+				}
+				table[slot] = t + 1;
+				words[slot] = p.words;
+				inode[slot] = p.inode[i];
+				System.arraycopy(p.localAddr, i*W, localAddr, slot*W, W);
+				localPort[slot] = p.localPort[i];
+				System.arraycopy(p.remoteAddr, i*W, remoteAddr, slot*W, W);
+				remotePort[slot] = p.remotePort[i];
+				uid[slot] = p.uid[i];
+				maxTxQueue[slot] = 0;
+				maxRxQueue[slot] = 0;
+				firstSeen[slot] = now;
+				size += 1;
+			}
+
+			state[slot] = p.state[i];
+			lastSeen[slot] = now;
+			if (p.txQueue[i] > maxTxQueue[slot])
+				maxTxQueue[slot] = p.txQueue[i];
+			if (p.rxQueue[i] > maxRxQueue[slot])
+				maxRxQueue[slot] = p.rxQueue[i];
+
+			if (firstSeen[slot] == now)
+				l.onFlow(EVENT_OPEN, this, slot);
+		}
+	}
+
+	/**
+	 * End the round, close the flows that were not seen in this round (in the
+	 * tables that were updated) and evict flows above {@link #MAX_FLOWS}.
+	 * @param l
+	 * @throws JSONException
+	 */
+	public void endRound(Listener l) throws JSONException {
+		int slot = 0;
+		while (slot < TABLE_SIZE) {
+			if (table[slot] != 0 && lastSeen[slot] != now && (seen & (1 << (table[slot] - 1))) != 0) {
+				l.onFlow(EVENT_CLOSE, this, slot);
+				remove(slot);
+				continue; // an entry may have moved here
+			}
+			slot += 1;
+		}
+		while (size > MAX_FLOWS)
+			evict(l);
+	}
+
+	/**
+	 * @param slot
+	 * @return Table index of the flow.
+	 */
+	public int getTable(int slot) {
+		return table[slot] - 1;
+	}
+
+	/* Slot of the flow of entry i, or the empty slot where it goes. */
+	private int find(int t, ProcNetParser p, int i) {
+		int slot = hash(t, p, i) & MASK;
+		while (table[slot] != 0 && !matches(slot, t, p, i))
+			slot = (slot + 1) & MASK;
+		return slot;
+	}
+
+	private boolean matches(int slot, int t, ProcNetParser p, int i) {
+		if (table[slot] != t + 1 || inode[slot] != p.inode[i] ||
+				localPort[slot] != p.localPort[i] || remotePort[slot] != p.remotePort[i])
+			return false;
+		for (int w = 0; w < p.words; w++) {
+			if (localAddr[slot*W + w] != p.localAddr[i*W + w] ||
+					remoteAddr[slot*W + w] != p.remoteAddr[i*W + w])
+				return false;
+		}
+		return true;
+	}
+
+	private static int hash(int t, ProcNetParser p, int i) {
+		long h = p.inode[i]*31 + t;
+		h = h*31 + p.localPort[i];
+		h = h*31 + p.remotePort[i];
+		for (int w = 0; w < p.words; w++) {
+			h = h*31 + p.localAddr[i*W + w];
+			h = h*31 + p.remoteAddr[i*W + w];
+		}
+		int x = (int)(h ^ (h >>> 32));
+		return x ^ (x >>> 16);
+	}
+
+	private int hashOf(int slot) {
+		long h = inode[slot]*31 + (table[slot] - 1);
+		h = h*31 + localPort[slot];
+		h = h*31 + remotePort[slot];
+		for (int w = 0; w < words[slot]; w++) {
+			h = h*31 + localAddr[slot*W + w];
+			h = h*31 + remoteAddr[slot*W + w];
+		}
+		int x = (int)(h ^ (h >>> 32));
+		return x ^ (x >>> 16);
+	}
+
+	/* Drop the least recently seen flow (oldest first). */
+	private void evict(Listener l) throws JSONException {
+		int oldest = -1;
+		for (int slot = 0; slot < TABLE_SIZE; slot++) {
+			if (table[slot] != 0 && (oldest < 0 || lastSeen[slot] < lastSeen[oldest] || 
+					(lastSeen[slot] == lastSeen[oldest] && firstSeen[slot] < firstSeen[oldest])))
+				oldest = slot;
+		}
+		if (oldest >= 0) {
+			l.onFlow(EVENT_EVICT, this, oldest);
+			remove(oldest);
+		}
+	}
+
+	/* Remove the flow, shift back the following entries of the probe sequence. */
+	private void remove(int slot) {
+		int hole = slot;
+		int next = (hole + 1) & MASK;
+		while (table[next] != 0) {
+			int home = hashOf(next) & MASK;
+			// move next to the hole unless its home slot is cyclically in (hole, next]
+			if (((next - home) & MASK) >= ((next - hole) & MASK)) {
+				move(next, hole);
+				hole = next;
+			}
+			next = (next + 1) & MASK;
+		}
+		table[hole] = 0;
+		size -= 1;
+	}
+
+	private void move(int from, int to) {
+		table[to] = table[from];
+		words[to] = words[from];
+		inode[to] = inode[from];
+		System.arraycopy(localAddr, from*W, localAddr, to*W, W);
+		localPort[to] = localPort[from];
+		System.arraycopy(remoteAddr, from*W, remoteAddr, to*W, W);
+		remotePort[to] = remotePort[from];
+		uid[to] = uid[from];
+		state[to] = state[from];
+		maxTxQueue[to] = maxTxQueue[from];
+		maxRxQueue[to] = maxRxQueue[from];
+		firstSeen[to] = firstSeen[from];
+		lastSeen[to] = lastSeen[from];
+	}
+}
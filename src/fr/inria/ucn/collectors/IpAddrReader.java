@@ -0,0 +1,337 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn.collectors;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import fr.inria.ucn.Constants;
+import fr.inria.ucn.Helpers;
+import fr.inria.ucn.RoundContext;
+
+import android.util.Log;
+
+/**
+ * Interfaces, flags, MTU and addresses as shown by "ip addr show".
+ *
+ * {@link #read(Map)} builds the view in process from /sys/class/net, /proc/net/if_inet6
+ * and {@link NetworkInterface}. {@link #exec(Map, long)} runs the command, and is only
+ * meant as a fallback when the files are not readable.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class IpAddrReader {
+
+	/** Default sysfs network root. */
+	public static final String SYS_NET = "/sys/class/net";
+
+	/** Default ipv6 address table. */
+	public static final String PROC_IF_INET6 = "/proc/net/if_inet6";
+
+	/* Link flags (linux/if.h) in the order printed by ip. */
+	private static final int[] FLAG_BITS = {
+		0x8, 0x2, 0x10, 0x1000, 0x80, 0x200, 0x100, 0x20, 0x4, 0x8000, 0x4000, 0x2000, 0x400, 0x800
+	};
+	private static final String[] FLAG_NAMES = {
+		"LOOPBACK", "BROADCAST", "POINTOPOINT", "MULTICAST", "NOARP", "ALLMULTI", "PROMISC",
+		"NOTRAILERS", "DEBUG", "DYNAMIC", "AUTOMEDIA", "PORTSEL", "MASTER", "SLAVE"
+	};
+	private static final int IFF_UP = 0x1;
+	private static final int IFF_RUNNING = 0x40;
+
+	private static final int ARPHRD_ETHER = 1;
+
+	private final String sysNet;
+	private final String ifInet6;
+
+	/**
+	 * Reader of {@link #SYS_NET} and {@link #PROC_IF_INET6}.
+	 */
+	public IpAddrReader() {
+		this(SYS_NET, PROC_IF_INET6);
+	}
+
+	/**
+	 * @param sysNet sysfs network root (for example a copy of /sys/class/net)
+	 * @param ifInet6 ipv6 address table
+	 */
+	public IpAddrReader(String sysNet, String ifInet6) {
+		this.sysNet = sysNet;
+		this.ifInet6 = ifInet6;
+	}
+
+	/**
+	 * @param stats interface stats by name
+	 * @return The interfaces, or null if the interface data is not available.
+	 * @throws JSONException
+	 */
+	public JSONArray read(Map<String, JSONObject> stats) throws JSONException {
+		String[] names = new File(sysNet).list();
+		if (names == null || names.length == 0)
+			return null;
+		Arrays.sort(names);
+
+		// ipv6 addresses: addr ifindex prefixlen scope flags name
+		Map<String, JSONObject> ipv6 = new HashMap<String, JSONObject>();
+		try {
+			for (String line : Helpers.readProc(ifInet6)) {
+				String[] tmp = line.split("[ ]+");
+				if (tmp.length < 6 || tmp[0].length() != 32)
+					continue;
+				// one address per interface as in the ip output, prefer non link local
+				JSONObject o = ipv6.get(tmp[5]);
+				int scope = Integer.parseInt(tmp[3], 16);
+				if (o != null && (!"link".equals(o.optString("scope", "")) || "link".equals(scopeName(scope))))
+					continue;
+				o = new JSONObject();
+				o.put("ip", formatIpv6(tmp[0]));
+				o.put("mask", String.valueOf(Integer.parseInt(tmp[2], 16)));
+				o.put("scope", scopeName(scope));
+				ipv6.put(tmp[5], o);
+			}
+		} catch (NumberFormatException e) {
+			Log.d(Constants.LOGTAG, "invalid line in " + ifInet6, e);
+		}
+
+		JSONArray ifaces = new JSONArray();
+		for (String name : names) {
+			String dir = sysNet + "/" + name;
+			String flagsstr = RoundContext.readLine(dir + "/flags");
+			String mtu = RoundContext.readLine(dir + "/mtu");
+			if (flagsstr == null || mtu == null)
+				continue; // not an interface directory (bonding_masters) or not readable
+
+			JSONObject iface = new JSONObject();
+			iface.put("name", name);
+			iface.put("stats", stats.get(name));
+
+			int flags = Integer.decode(flagsstr);
+			JSONArray fo = new JSONArray();
+			for (int i = 0; i < FLAG_BITS.length; i++) {
+				if ((flags & FLAG_BITS[i]) != 0)
+					fo.put(FLAG_NAMES[i]);
+			}
+			if ((flags & IFF_UP) != 0) {
+				fo.put("UP");
+				if ("1".equals(RoundContext.readLine(dir + "/carrier")))
+					fo.put("LOWER_UP");
+				else if ((flags & IFF_RUNNING) == 0)
+					fo.put("NO-CARRIER");
+			}
+			iface.put("flags", fo);
+			iface.put("mtu", Integer.parseInt(mtu));
+
+			String state = RoundContext.readLine(dir + "/operstate");
+			if (state != null)
+				iface.put("state", state.toUpperCase(Locale.US));
+
+			String type = RoundContext.readLine(dir + "/type");
+			String mac = RoundContext.readLine(dir + "/address");
+			if (mac != null && type != null && Integer.parseInt(type) == ARPHRD_ETHER)
+				iface.put("mac", mac);
+
+			JSONObject ipv4 = getIpv4(name);
+			if (ipv4 != null)
+				iface.put("ipv4", ipv4);
+			if (ipv6.containsKey(name))
+				iface.put("ipv6", ipv6.get(name));
+
+			ifaces.put(iface);
+		}
+		return (ifaces.length() > 0 ? ifaces : null);
+	}
+
+	/* First ipv4 address of the interface. */
+	private JSONObject getIpv4(String name) throws JSONException {
+		NetworkInterface intf = null;
+		try {
+			intf = NetworkInterface.getByName(name);
+		} catch (SocketException e) {
+			Log.d(Constants.LOGTAG, "failed to read interface " + name, e);
+		}
+		if (intf == null)
+			return null;
+
+		for (InterfaceAddress ia : intf.getInterfaceAddresses()) {
+			InetAddress a = ia.getAddress();
+			if (!(a instanceof Inet4Address))
+				continue;
+			JSONObject o = new JSONObject();
+			o.put("ip", a.getHostAddress());
+			o.put("mask", String.valueOf(ia.getNetworkPrefixLength()));
+			if (ia.getBroadcast() != null)
+				o.put("brd", ia.getBroadcast().getHostAddress());
+			if (a.isLoopbackAddress())
+				o.put("scope", "host");
+			else if (a.isLinkLocalAddress())
+				o.put("scope", "link");
+			else
+				o.put("scope", "global");
+			return o;
+		}
+		return null;
+	}
+
+	/* Scope as named by ip (IPV6_ADDR_* scope bits of if_inet6). */
+	private static String scopeName(int scope) {
+		switch (scope & 0x70) {
+		case 0x00: return "global";
+		case 0x10: return "host";
+		case 0x20: return "link";
+		case 0x40: return "site";
+		default: return String.valueOf(scope);
+		}
+	}
+
+	/* 32 hex digits to the RFC 5952 text form. */
+	private static String formatIpv6(String hex) {
+		int[] addr = new int[4];
+		for (int w = 0; w < 4; w++)
+			addr[w] = (int)Long.parseLong(hex.substring(w*8, w*8+8), 16);
+		return ProcNetParser.formatIpv6(addr, 0);
+	}
+
+	/**
+	 * Run "ip addr show", the process is killed if it does not complete in time.
+	 * @param stats interface stats by name
+	 * @param timeout max run time (ms)
+	 * @return The interfaces (possibly incomplete if the command failed).
+	 * @throws JSONException
+	 */
+	public static JSONArray exec(Map<String, JSONObject> stats, final long timeout) throws JSONException {
+		JSONArray ifaces = new JSONArray();
+
+		Process process = null;
+		Thread watchdog = null;
+		BufferedReader in = null;
+		try {
+		    process = Runtime.getRuntime().exec("ip addr show");
+		    final Process p = process;
+		    watchdog = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(timeout);
+						Log.w(Constants.LOGTAG, "\"ip addr show\" timeout after " + timeout + "ms");
+						p.destroy(); // unblocks the reader
+					} catch (InterruptedException e) {
+					}
+				}
+			}, "UCNIpAddrWatchdog");
+		    watchdog.start();
+
+		    in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			JSONObject iface = null;
+
+			String line = null;
+		    while ((line = in.readLine())!=null) {
+		    	line = line.trim();
+	    		String[] tmp = line.split(" ");
+		    	if (line.contains("mtu")) {
+		    		if (iface!=null)
+		    			ifaces.put(iface);
+
+		    		iface = new JSONObject();
+
+		    		String name = tmp[1].replace(":", "");
+		    		iface.put("name", name);
+					iface.put("stats", stats.get(name));
+
+					String[] flags = tmp[2].replaceAll("[<>]", "").split(",");
+					JSONArray fo = new JSONArray();
+					for (String f : flags)
+						fo.put(f);
+					iface.put("flags", fo);
+
+					iface.put("mtu", Integer.parseInt(tmp[4]));
+					iface.put("qdisc", tmp[6]);
+					iface.put("state", tmp[8]);
+
+		    	} else if (line.contains("ether")) {
+					iface.put("mac", tmp[1]);
+		    	} else if (line.startsWith("inet6")) {
+		    		JSONObject ipv6 = new JSONObject();
+
+		    		int idx = tmp[1].indexOf('/');
+		    		if (idx > 0) {
+		    			ipv6.put("ip", tmp[1].substring(0,idx));
+						ipv6.put("mask", tmp[1].substring(idx+1));
+		    		} else {
+		    			ipv6.put("ip", tmp[1]);
+		    		}
+					ipv6.put("scope", tmp[3]);
+					iface.put("ipv6",ipv6);
+
+		    	} else if (line.startsWith("inet")) {
+		    		JSONObject ipv4 = new JSONObject();
+		    		int idx = tmp[1].indexOf('/');
+		    		if (idx > 0) {
+						ipv4.put("ip", tmp[1].substring(0,idx));
+						ipv4.put("mask", tmp[1].substring(idx+1));
+		    		} else {
+						ipv4.put("ip", tmp[1]);
+		    		}
+					int i = 2;
+					while (i<tmp.length-1) {
+		    			ipv4.put(tmp[i], tmp[i+1]);
+		    			i = i+2;
+		    		}
+
+					iface.put("ipv4",ipv4);
+		    	}
+		    }
+
+		    // last object
+    		if (iface!=null)
+    			ifaces.put(iface);
+
+		} catch (IOException e) {
+			Log.d(Constants.LOGTAG, "failed to execute \"ip addr show\"",e);
+		} finally {
+			if (watchdog!=null)
+				watchdog.interrupt();
+			if (in!=null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+			if (process!=null)
+				process.destroy();
+		}
+
+		return ifaces;
+	}
+}
@@ -23,6 +23,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -66,6 +67,8 @@ public class LlamaCollector implements Collector {
 					String line;
 					JSONObject a = new JSONObject();
 					while ((line = in.readLine()) != null) {						
+						if (Thread.currentThread().isInterrupted()) // cancelled by the supervisor
+							throw new InterruptedIOException("Llama exports read cancelled");
 						String[] tmp = line.trim().split("\\|");
 						JSONArray wifi = new JSONArray();
 						JSONArray cell = new JSONArray();
@@ -18,24 +18,25 @@
  ******************************************************************************/
 package fr.inria.ucn.collectors;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import fr.inria.ucn.Constants;
+import fr.inria.ucn.CounterDeltas;
 import fr.inria.ucn.Helpers;
 
 import android.annotation.SuppressLint;
@@ -70,7 +71,17 @@ import android.util.Log;
  */
 public class NetworkStateCollector extends BroadcastReceiver implements Collector {
 
-	
+	/** Max run time of "ip addr show" (ms). */
+	public static final long IP_EXEC_TIMEOUT = 5000;
+
+	/* Values of /proc/net/snmp that are not cumulative counters (sent as is). */
+	private static final Map<String, Set<String>> NETSTAT_GAUGES = new HashMap<String, Set<String>>();
+	static {
+		NETSTAT_GAUGES.put("tcp:", new HashSet<String>(Arrays.asList(
+				"rtoalgorithm", "rtomin", "rtomax", "maxconn", "currestab")));
+		NETSTAT_GAUGES.put("ip:", new HashSet<String>(Arrays.asList(
+				"forwarding", "defaultttl")));
+	}
 	
 	/**
 	 * 
@@ -132,6 +143,14 @@ public class NetworkStateCollector extends BroadcastReceiver implements Collecto
 			// double check interfaces
 			data.put("ip_addr_show", getIpAddr(stats));
 			
+			// send the kernel counters as deltas (stats objects are shared by the lists above)
+			CounterDeltas.Sample counters = CounterDeltas.begin("network_state", ts);
+			addNetstat(counters, data.getJSONObject("netstat"));
+			for (Map.Entry<String, JSONObject> e : stats.entrySet()) {
+				counters.add("dev/" + e.getKey(), e.getValue());
+			}
+			data.put("counters", counters.commit());
+			
 			Helpers.sendResultObj(c,"network_state",ts,data);
 			
 		} catch (JSONException jex) {
@@ -356,107 +375,46 @@ public class NetworkStateCollector extends BroadcastReceiver implements Collecto
 		Map<String, JSONObject> stats = new HashMap<String, JSONObject>();
 		// Read interface statistics from /proc, add to the corresponding interface object below
 		List<String> dev = Helpers.readProc("/proc/net/dev");
+		long[] v = new long[16];
 		for (String s: dev) {
-			if (s.indexOf(':')>0) {
-				// iface rxbytes rxpackets rxerrs rxdrop rxfifo rxframe rxcompressed rxmulticast txbytes txpackets txerrs txdrop txfifo txcolls txcarrier txcompressed
-				String[] tmp = s.split("[ ]+");
+			int idx = s.indexOf(':');
+			if (idx>0) {
+				// iface: rxbytes rxpackets rxerrs rxdrop rxfifo rxframe rxcompressed rxmulticast txbytes txpackets txerrs txdrop txfifo txcolls txcarrier txcompressed
+				if (Helpers.parseLongs(s, idx+1, v) < 12)
+					continue;
 				JSONObject o = new JSONObject();
-				o.put("rx_bytes", Integer.parseInt(tmp[1]));
-				o.put("rx_packets", Integer.parseInt(tmp[2]));
-				o.put("rx_errors", Integer.parseInt(tmp[3]));
-				o.put("rx_drop", Integer.parseInt(tmp[4]));
-				o.put("tx_bytes", Integer.parseInt(tmp[9]));
-				o.put("tx_packets", Integer.parseInt(tmp[10]));
-				o.put("tx_errors", Integer.parseInt(tmp[11]));
-				o.put("tx_drop", Integer.parseInt(tmp[12]));
-				stats.put(tmp[0].replace(":", ""), o);
+				o.put("rx_bytes", v[0]);
+				o.put("rx_packets", v[1]);
+				o.put("rx_errors", v[2]);
+				o.put("rx_drop", v[3]);
+				o.put("tx_bytes", v[8]);
+				o.put("tx_packets", v[9]);
+				o.put("tx_errors", v[10]);
+				o.put("tx_drop", v[11]);
+				stats.put(s.substring(0, idx).trim(), o);
 			}	
 		}
 		return stats;
 	}
 	
+	/* Interfaces as shown by "ip addr show", the command is run only if the files are not readable. */
 	private JSONArray getIpAddr(Map<String, JSONObject> stats) throws JSONException {
-		JSONArray ifaces = new JSONArray();
-		
-		// make sure the stats is read
-		networkStats();
-		
-		Process process = null;
-		BufferedReader in = null;
-		try {
-		    process = Runtime.getRuntime().exec("ip addr show");
-		    in = new BufferedReader(new InputStreamReader(process.getInputStream()));
-			JSONObject iface = null;
-
-			String line = null;
-		    while ((line = in.readLine())!=null) {
-		    	line = line.trim();
-	    		String[] tmp = line.split(" ");
-		    	if (line.contains("mtu")) {
-		    		if (iface!=null)
-		    			ifaces.put(iface);
-		    		
-		    		iface = new JSONObject();
-		    		
-		    		String name = tmp[1].replace(":", "");
-		    		iface.put("name", name);
-					iface.put("stats", stats.get(name));
-					
-					String[] flags = tmp[2].replaceAll("[<>]", "").split(",");
-					JSONArray fo = new JSONArray();
-					for (String f : flags)
-						fo.put(f);
-					iface.put("flags", fo);
-					
-					iface.put("mtu", Integer.parseInt(tmp[4]));
-					iface.put("qdisc", tmp[6]);
-					iface.put("state", tmp[8]);
-					
-		    	} else if (line.contains("ether")) {
-					iface.put("mac", tmp[1]);
-		    	} else if (line.startsWith("inet6")) {
-		    		JSONObject ipv6 = new JSONObject();
-		    		
-		    		int idx = tmp[1].indexOf('/');
-		    		if (idx > 0) {
-		    			ipv6.put("ip", tmp[1].substring(0,idx));
-						ipv6.put("mask", tmp[1].substring(idx+1));
-		    		} else {
-		    			ipv6.put("ip", tmp[1]);
-		    		}
-					ipv6.put("scope", tmp[3]);
-					iface.put("ipv6",ipv6);
-					
-		    	} else if (line.startsWith("inet")) {
-		    		JSONObject ipv4 = new JSONObject();
-		    		int idx = tmp[1].indexOf('/');
-		    		if (idx > 0) {
-						ipv4.put("ip", tmp[1].substring(0,idx));
-						ipv4.put("mask", tmp[1].substring(idx+1));
-		    		} else {
-						ipv4.put("ip", tmp[1]);		    			
-		    		}
-					int i = 2;
-					while (i<tmp.length-1) {
-		    			ipv4.put(tmp[i], tmp[i+1]);
-		    			i = i+2;
-		    		}
-					
-					iface.put("ipv4",ipv4);
-		    	}
-		    }
-		    
-		    // last object
-    		if (iface!=null)
-    			ifaces.put(iface);
-			
-		} catch (IOException e) {
-			Log.d(Constants.LOGTAG, "failed to execute \"ip addr show\"",e);				
-		} finally {
-			if (process!=null)
-				process.destroy();
+		long t0 = System.nanoTime();
+		JSONArray ifaces = new IpAddrReader().read(stats);
+		long t1 = System.nanoTime();
+		if (ifaces != null) {
+			Log.d(Constants.LOGTAG, "ip_addr: in process " + (t1-t0)/1000 + "us");
+			if (Log.isLoggable(Constants.LOGTAG, Log.VERBOSE)) {
+				// compare with the command
+				JSONArray cmd = IpAddrReader.exec(stats, IP_EXEC_TIMEOUT);
+				Log.v(Constants.LOGTAG, "ip_addr: exec " + (System.nanoTime()-t1)/1000 + "us, " + 
+						cmd.length() + " vs " + ifaces.length() + " interfaces");
+			}
+			return ifaces;
 		}
-		
+
+		ifaces = IpAddrReader.exec(stats, IP_EXEC_TIMEOUT);
+		Log.d(Constants.LOGTAG, "ip_addr: no interface data, exec " + (System.nanoTime()-t1)/1000 + "us");
 		return ifaces;
 	}
 	
@@ -464,9 +422,6 @@ public class NetworkStateCollector extends BroadcastReceiver implements Collecto
 	private JSONArray getIfconfig(Map<String, JSONObject> stats) throws JSONException {
 		JSONArray ifaces = new JSONArray();
 		
-		// make sure the stats is read
-		networkStats();
-		
 		Enumeration<NetworkInterface> en = null;
 		try {
 			en = NetworkInterface.getNetworkInterfaces();
@@ -515,18 +470,37 @@ public class NetworkStateCollector extends BroadcastReceiver implements Collecto
 	}
 
 	/* Read network stats from proc file system. */
+	/**
+	 * Register the kernel counters of {@link #getNetstat()} with the sample, gauges
+	 * (tcp currestab, ip defaultttl, ...) excluded.
+	 * @param counters
+	 * @param netstat
+	 * @throws JSONException
+	 */
+	static void addNetstat(CounterDeltas.Sample counters, JSONObject netstat) throws JSONException {
+		Iterator<?> it = netstat.keys();
+		while (it.hasNext()) {
+			String key = (String)it.next();
+			counters.add("netstat/" + key, netstat.getJSONObject(key), NETSTAT_GAUGES.get(key));
+		}
+	}
+
 	private JSONObject getNetstat() throws JSONException {
 		JSONObject jnetstat = new JSONObject();
 		for (String s : Arrays.asList("netstat","snmp")) {
 			List<String> lines = Helpers.readProc("/proc/net/"+s);
 			for (int i = 0; i < lines.size(); i += 2) {
-				String[] headers = lines.get(i).split("\\s+");
-				String[] vals = lines.get(i+1).split("\\s+");
+				if (i+1 >= lines.size())
+					break;
+				String[] headers = lines.get(i).split(" ");
+				String vals = lines.get(i+1);
+				long[] v = new long[headers.length-1];
+				int n = Helpers.parseLongs(vals, vals.indexOf(':')+1, v);
 				JSONObject o = new JSONObject();
-				for (int j = 1; j < headers.length; j++) {
-					o.put(headers[j].toLowerCase(), Long.parseLong(vals[j]));
+				for (int j = 0; j < n; j++) {
+					o.put(headers[j+1].toLowerCase(Locale.US), v[j]);
 				}
-				jnetstat.put(headers[0].toLowerCase(), o);
+				jnetstat.put(headers[0].toLowerCase(Locale.US), o);
 			}
 		}
 		return jnetstat;
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn.collectors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import fr.inria.ucn.Constants;
+import fr.inria.ucn.Helpers;
+import fr.inria.ucn.PackageCache;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Packages per uid. The other collections refer to the apps by uid only, this
+ * dictionary is sent only when the set of installed packages changes.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class PackageDictionaryCollector implements Collector {
+
+	/* Package cache generation at the last check (-1 = not checked in this process). */
+	private static long checkedGeneration = -1;
+
+	/* (non-Javadoc)
+	 * @see fr.inria.ucn.collectors.Collector#run(android.content.Context, long)
+	 */
+	@Override
+	public void run(Context c, long ts) {
+		// nothing can have changed unless the package cache was invalidated
+		long gen = PackageCache.getGeneration();
+		synchronized (PackageDictionaryCollector.class) {
+			if (gen == checkedGeneration)
+				return;
+			checkedGeneration = gen;
+		}
+
+		List<PackageInfo> installed = c.getPackageManager().getInstalledPackages(0);
+		String signature = getSignature(installed);
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
+		if (signature.equals(prefs.getString(Constants.PREF_HIDDEN_PACKAGE_SIGNATURE, null))) {
+			Log.d(Constants.LOGTAG, "package_dictionary: no changes (" + signature + ")");
+			return;
+		}
+
+		try {
+			// uids of the installed packages
+			SparseArray<JSONArray> uids = new SparseArray<JSONArray>();
+			for (PackageInfo pi : installed) {
+				if (pi.applicationInfo != null && uids.indexOfKey(pi.applicationInfo.uid) < 0) {
+					int uid = pi.applicationInfo.uid;
+					uids.put(uid, PackageCache.getPackagesForUid(c, uid));
+				}
+			}
+
+			JSONArray dict = new JSONArray();
+			for (int i = 0; i < uids.size(); i++) {
+				JSONObject o = new JSONObject();
+				o.put("uid", uids.keyAt(i));
+				o.put("packages", uids.valueAt(i));
+				dict.put(o);
+			}
+
+			JSONObject data = new JSONObject();
+			data.put("signature", signature);
+			data.put("uids", dict);
+			Helpers.sendResultObj(c, "package_dictionary", ts, data);
+
+			SharedPreferences.Editor edit = prefs.edit();
+			edit.putString(Constants.PREF_HIDDEN_PACKAGE_SIGNATURE, signature);
+			edit.commit();
+
+		} catch (JSONException jex) {
+			Log.w(Constants.LOGTAG, "failed to create json object",jex);
+		}
+	}
+
+	/* Checksum of the installed packages (name, uid and version). */
+	private String getSignature(List<PackageInfo> installed) {
+		List<String> pkgs = new ArrayList<String>(installed.size());
+		for (PackageInfo pi : installed) {
+			pkgs.add(pi.packageName + ":" + (pi.applicationInfo != null ? pi.applicationInfo.uid : -1) +
+					":" + pi.versionCode);
+		}
+		Collections.sort(pkgs);
+
+		CRC32 crc = new CRC32();
+		for (String s : pkgs) {
+			crc.update(s.getBytes());
+			crc.update('\n');
+		}
+		return pkgs.size() + "-" + Long.toHexString(crc.getValue());
+	}
+}
@@ -0,0 +1,430 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn.collectors;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+
+/**
+ * Parser for the socket tables in /proc/net (tcp, udp, tcp6, udp6).
+ *
+ * The file is read into a reused byte buffer and the fields are decoded in place into
+ * reused primitive arrays, one entry per socket, so that a collection round does not
+ * allocate once the buffers have grown to the size of the tables. Addresses are kept as
+ * {@link #words} 32-bit words per address (1 for IPv4, 4 for IPv6) in network byte
+ * order: the kernel prints each word in host byte order, the words are swapped while
+ * parsing when the host is little endian.
+ *
+ * The parser is not thread safe, the arrays are overwritten by the next call to
+ * {@link #parse(String)}.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class ProcNetParser {
+
+	/** Default location of the tables. */
+	public static final String PROC_NET = "/proc/net";
+
+	/** Address words per entry in localAddr/remoteAddr (entry i starts at i*MAX_WORDS). */
+	public static final int MAX_WORDS = 4;
+
+	private static final int INITIAL_BUFFER = 16*1024;
+	private static final int INITIAL_ENTRIES = 64;
+	private static final boolean SWAP = (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+
+	private final String root;
+	private byte[] buf = new byte[INITIAL_BUFFER];
+	private int len = 0;
+	private int pos = 0;
+
+	/** Number of parsed entries. */
+	public int count = 0;
+	/** Address words of the last parsed table (1 = IPv4, 4 = IPv6). */
+	public int words = 1;
+
+	/** Parsed entries. */
+	public int[] idx = new int[INITIAL_ENTRIES];
+	public int[] localAddr = new int[INITIAL_ENTRIES*MAX_WORDS];
+	public int[] localPort = new int[INITIAL_ENTRIES];
+	public int[] remoteAddr = new int[INITIAL_ENTRIES*MAX_WORDS];
+	public int[] remotePort = new int[INITIAL_ENTRIES];
+	public int[] state = new int[INITIAL_ENTRIES];
+	public int[] txQueue = new int[INITIAL_ENTRIES];
+	public int[] rxQueue = new int[INITIAL_ENTRIES];
+	public int[] uid = new int[INITIAL_ENTRIES];
+	public long[] inode = new long[INITIAL_ENTRIES];
+
+	/**
+	 * Parser for the tables in {@link #PROC_NET}.
+	 */
+	public ProcNetParser() {
+		this(PROC_NET);
+	}
+
+	/**
+	 * @param root directory of the tables (for example a copy of /proc/net)
+	 */
+	public ProcNetParser(String root) {
+		this.root = root;
+	}
+
+	/**
+	 * Read and parse a table.
+	 * @param table file name (tcp, udp, tcp6 or udp6)
+	 * @return number of entries (also in {@link #count})
+	 * @throws IOException
+	 */
+	public int parse(String table) throws IOException {
+		read(root + "/" + table);
+		return parse();
+	}
+
+	/**
+	 * Parse a table from the given stream.
+	 * @param in
+	 * @return number of entries (also in {@link #count})
+	 * @throws IOException
+	 */
+	public int parse(InputStream in) throws IOException {
+		read(in);
+		return parse();
+	}
+
+	/**
+	 * Format address words as in the table.
+	 * @param addr localAddr or remoteAddr
+	 * @param i entry
+	 * @return the hex string
+	 */
+	public String rawAddr(int[] addr, int i) {
+		return rawAddr(addr, i, words);
+	}
+
+	/**
+	 * Format address words as in the table.
+	 * @param addr address words (MAX_WORDS per entry)
+	 * @param i entry
+	 * @param words address words (1 or 4)
+	 * @return the hex string
+	 */
+	public static String rawAddr(int[] addr, int i, int words) {
+		char[] s = new char[words*8];
+		int off = i*MAX_WORDS;
+		for (int w = 0; w < words; w++) {
+			int v = (SWAP ? Integer.reverseBytes(addr[off+w]) : addr[off+w]);
+			for (int j = 0; j < 8; j++) {
+				s[w*8+j] = Character.toUpperCase(Character.forDigit((v >>> (28 - 4*j)) & 0xf, 16));
+			}
+		}
+		return new String(s);
+	}
+
+	/**
+	 * @param addr localAddr or remoteAddr
+	 * @param i entry
+	 * @return <code>true</code> if the address is IPv4 (or an IPv4-mapped IPv6 address).
+	 */
+	public boolean isIpv4(int[] addr, int i) {
+		return isIpv4(addr, i, words);
+	}
+
+	/**
+	 * @param addr localAddr or remoteAddr
+	 * @param i entry
+	 * @return The IPv4 address (network byte order), see {@link #isIpv4(int[], int)}.
+	 */
+	public int ipv4(int[] addr, int i) {
+		return ipv4(addr, i, words);
+	}
+
+	/**
+	 * @param addr address words (MAX_WORDS per entry)
+	 * @param i entry
+	 * @param words address words (1 or 4)
+	 * @return <code>true</code> if the address is IPv4 (or an IPv4-mapped IPv6 address).
+	 */
+	public static boolean isIpv4(int[] addr, int i, int words) {
+		int off = i*MAX_WORDS;
+		return (words == 1 || (addr[off] == 0 && addr[off+1] == 0 && addr[off+2] == 0xffff));
+	}
+
+	/**
+	 * @param addr address words (MAX_WORDS per entry)
+	 * @param i entry
+	 * @param words address words (1 or 4)
+	 * @return The IPv4 address (network byte order).
+	 */
+	public static int ipv4(int[] addr, int i, int words) {
+		return addr[i*MAX_WORDS + words - 1];
+	}
+
+	/**
+	 * Format an IPv4 address in dotted notation.
+	 * @param ip network byte order
+	 * @return
+	 */
+	public static String formatIpv4(int ip) {
+		StringBuilder sb = new StringBuilder(15);
+		sb.append((ip >>> 24) & 0xff).append('.')
+			.append((ip >>> 16) & 0xff).append('.')
+			.append((ip >>> 8) & 0xff).append('.')
+			.append(ip & 0xff);
+		return sb.toString();
+	}
+
+	/**
+	 * Format an IPv6 address in the compressed text form (RFC 5952).
+	 * @param addr localAddr or remoteAddr
+	 * @param i entry
+	 * @return
+	 */
+	public static String formatIpv6(int[] addr, int i) {
+		int off = i*MAX_WORDS;
+
+		// longest run of zero groups (at least 2)
+		int best = -1, bestLen = 1;
+		int run = -1, runLen = 0;
+		for (int g = 0; g < 8; g++) {
+			if (group(addr, off, g) == 0) {
+				if (run < 0) {
+					run = g;
+					runLen = 0;
+				}
+				runLen += 1;
+				if (runLen > bestLen) {
+					best = run;
+					bestLen = runLen;
+				}
+			} else {
+				run = -1;
+			}
+		}
+
+		StringBuilder sb = new StringBuilder(39);
+		for (int g = 0; g < 8; g++) {
+			if (g == best) {
+				sb.append("::");
+				g += bestLen - 1;
+				continue;
+			}
+			if (sb.length() > 0 && sb.charAt(sb.length()-1) != ':')
+				sb.append(':');
+			sb.append(Integer.toHexString(group(addr, off, g)));
+		}
+		return sb.toString();
+	}
+
+	/* 16-bit group g of the address. */
+	private static int group(int[] addr, int off, int g) {
+		int w = addr[off + g/2];
+		return (g % 2 == 0 ? w >>> 16 : w & 0xffff);
+	}
+
+	private void read(String file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Read until EOF (proc files do not report their size). */
+	private void read(InputStream in) throws IOException {
+		len = 0;
+		int n;
+		while ((n = in.read(buf, len, buf.length - len)) > 0) {
+			len += n;
+			if (len == buf.length) {
+				byte[] tmp = new byte[buf.length*2];
+				System.arraycopy(buf, 0, tmp, 0, len);
+				buf = tmp;
+			}
+		}
+	}
+
+	private int parse() {
+		count = 0;
+		words = 1;
+		pos = 0;
+		skipLine(); // header
+
+		while (pos < len) {
+			int start = pos;
+			if (!parseEntry(count)) {
+				// not an entry, ignore
+				pos = start;
+				skipLine();
+				continue;
+			}
+			count += 1;
+			skipLine();
+		}
+		return count;
+	}
+
+	/* sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode ... */
+	private boolean parseEntry(int i) {
+		ensureCapacity(i+1);
+
+		// sl
+		skipSpaces();
+		if (!isDigit())
+			return false;
+		idx[i] = (int)parseNumber(10);
+		if (!expect(':'))
+			return false;
+
+		// addresses
+		skipSpaces();
+		int w = parseAddr(localAddr, i*MAX_WORDS);
+		if (w == 0 || !expect(':'))
+			return false;
+		words = w;
+		localPort[i] = (int)parseNumber(16);
+		skipSpaces();
+		if (parseAddr(remoteAddr, i*MAX_WORDS) != w || !expect(':'))
+			return false;
+		remotePort[i] = (int)parseNumber(16);
+
+		// st
+		skipSpaces();
+		state[i] = (int)parseNumber(16);
+
+		// tx_queue:rx_queue
+		skipSpaces();
+		txQueue[i] = (int)parseNumber(16);
+		if (!expect(':'))
+			return false;
+		rxQueue[i] = (int)parseNumber(16);
+
+		// tr:tm->when, retrnsmt
+		skipSpaces();
+		skipField();
+		skipSpaces();
+		skipField();
+
+		// uid
+		skipSpaces();
+		if (!isDigit())
+			return false;
+		uid[i] = (int)parseNumber(10);
+
+		// timeout, inode (0 = not owned by a process, e.g. TIME_WAIT)
+		skipSpaces();
+		skipField();
+		skipSpaces();
+		inode[i] = parseNumber(10);
+		return true;
+	}
+
+	/* Parse hex address words until ':', returns the number of words (0 on error). */
+	private int parseAddr(int[] addr, int off) {
+		int w = 0;
+		while (w < MAX_WORDS && pos + 8 <= len && buf[pos] != ':') {
+			int v = 0;
+			for (int j = 0; j < 8; j++) {
+				int d = hex(buf[pos++]);
+				if (d < 0)
+					return 0;
+				v = (v << 4) | d;
+			}
+			addr[off + w] = (SWAP ? Integer.reverseBytes(v) : v);
+			w += 1;
+		}
+		return (w == 1 || w == MAX_WORDS ? w : 0);
+	}
+
+	private long parseNumber(int radix) {
+		long v = 0;
+		while (pos < len) {
+			int d = (radix == 16 ? hex(buf[pos]) : buf[pos] - '0');
+			if (d < 0 || d >= radix)
+				break;
+			v = v*radix + d;
+			pos += 1;
+		}
+		return v;
+	}
+
+	private static int hex(byte b) {
+		if (b >= '0' && b <= '9')
+			return b - '0';
+		if (b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+		if (b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		return -1;
+	}
+
+	private boolean isDigit() {
+		return (pos < len && buf[pos] >= '0' && buf[pos] <= '9');
+	}
+
+	private boolean expect(char c) {
+		if (pos < len && buf[pos] == c) {
+			pos += 1;
+			return true;
+		}
+		return false;
+	}
+
+	private void skipSpaces() {
+		while (pos < len && buf[pos] == ' ')
+			pos += 1;
+	}
+
+	private void skipField() {
+		while (pos < len && buf[pos] != ' ' && buf[pos] != '\n')
+			pos += 1;
+	}
+
+	private void skipLine() {
+		while (pos < len && buf[pos] != '\n')
+			pos += 1;
+		pos += 1;
+	}
+
+	private void ensureCapacity(int n) {
+		if (n <= idx.length)
+			return;
+		int cap = Math.max(n, idx.length*2);
+		idx = grow(idx, cap);
+		localAddr = grow(localAddr, cap*MAX_WORDS);
+		localPort = grow(localPort, cap);
+		remoteAddr = grow(remoteAddr, cap*MAX_WORDS);
+		remotePort = grow(remotePort, cap);
+		state = grow(state, cap);
+		txQueue = grow(txQueue, cap);
+		rxQueue = grow(rxQueue, cap);
+		uid = grow(uid, cap);
+		long[] tmp = new long[cap];
+		System.arraycopy(inode, 0, tmp, 0, inode.length);
+		inode = tmp;
+	}
+
+	private static int[] grow(int[] a, int n) {
+		int[] tmp = new int[n];
+		System.arraycopy(a, 0, tmp, 0, a.length);
+		return tmp;
+	}
+}
@@ -26,12 +26,11 @@ import org.json.JSONObject;
 
 import fr.inria.ucn.Constants;
 import fr.inria.ucn.Helpers;
+import fr.inria.ucn.PackageCache;
 
 import android.annotation.SuppressLint;
 import android.app.ActivityManager;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.util.Log;
 
 /**
@@ -50,7 +49,6 @@ public class RunningAppsCollector implements Collector {
 	public void run(Context c, long ts) {
 		try {
 			ActivityManager am = (ActivityManager) c.getSystemService(Context.ACTIVITY_SERVICE);
-			PackageManager pm = c.getPackageManager();
 
 			JSONObject data = new JSONObject();
 						
@@ -73,16 +71,10 @@ public class RunningAppsCollector implements Collector {
 				if (info.topActivity!=null) {
 					jinfo.put("task_top_class_name", info.topActivity.getClassName());
 					jinfo.put("task_top_package_name", info.topActivity.getPackageName());
-					try {
-						// map package name to app label
-						CharSequence appLabel = 
-								pm.getApplicationLabel(
-										pm.getApplicationInfo(
-													info.topActivity.getPackageName(), 
-													PackageManager.GET_META_DATA));
-						jinfo.put("task_app_label", appLabel.toString());
-					} catch (NameNotFoundException e) {
-					}
+					// map package name to app label
+					String appLabel = PackageCache.getAppLabel(c, info.topActivity.getPackageName());
+					if (appLabel!=null)
+						jinfo.put("task_app_label", appLabel);
 				}
 				
 				runTaskArray.put(jinfo);
@@ -93,9 +85,8 @@ public class RunningAppsCollector implements Collector {
 			JSONArray runProcArray = new JSONArray();
 			for (ActivityManager.RunningAppProcessInfo pinfo : am.getRunningAppProcesses()) {
 				JSONObject jinfo = new JSONObject();
-				jinfo.put("proc_uid", pinfo.uid);
+				jinfo.put("proc_uid", pinfo.uid); // see package_dictionary
 				jinfo.put("proc_name", pinfo.processName);
-				jinfo.put("proc_packages", Helpers.getPackagesForUid(c,pinfo.uid));
 				runProcArray.put(jinfo);
 			}
 			data.put("runningAppProcesses", runProcArray);
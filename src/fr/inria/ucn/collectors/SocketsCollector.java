@@ -18,27 +18,36 @@
  ******************************************************************************/
 package fr.inria.ucn.collectors;
 
-import java.util.Arrays;
-import java.util.List;
+import java.io.IOException;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import fr.inria.ucn.Constants;
 import fr.inria.ucn.Helpers;
+import fr.inria.ucn.RecordWriter;
 
 import android.content.Context;
 import android.util.Log;
 
 /**
- * List of open sockets and apps.
+ * Socket flows: open, close and evict events of the sockets listed in /proc/net
+ * (see {@link FlowTracker}). The record is flagged restarted in the first round
+ * of the process, where the open events include the flows opened earlier.
  * 
  * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
  *
  */
 public class SocketsCollector implements Collector {
 	
+	private static final String[] TABLES = {"tcp", "udp", "tcp6", "udp6"};
+	
+	/* Flows and parser buffers, kept across service instances (guarded by the class). */
+	private static final FlowTracker tracker = new FlowTracker();
+	private static final ProcNetParser parser = new ProcNetParser();
+	
+	/* Active flows of the latest round, -1 if taken or unknown (guarded by the class). */
+	private static int lastActive = -1;
+	
 	/**
 	 * 
 	 * @param c
@@ -46,9 +55,9 @@ public class SocketsCollector implements Collector {
 	 */
 	public void run(Context c, long ts) {
 		try {			
-			JSONObject data = new JSONObject();
-			data.put("sockets", getSock(c));
-			Helpers.sendResultObj(c,"sockets",ts,data);
+			RecordWriter w = Helpers.beginResult(c);
+			writeFlows(w, ts);
+			Helpers.sendResult(c,"socket_flows",ts,w);
 		} catch (JSONException jex) {
 			Log.w(Constants.LOGTAG, "failed to create json object",jex);
 		}
@@ -80,60 +89,88 @@ public class SocketsCollector implements Collector {
 	    }
 	};
 	
-	private JSONObject parseAddr(String s)  throws JSONException {
-		String[] addr = s.split(":");
-		JSONObject o = new JSONObject();
-		o.put("port", Integer.parseInt(addr[1],16));
-		o.put("raw_ip", addr[0]);
-		
-		String ip = "";
-		for (int j = addr[0].length(); j > (addr[0].length()>8 ? 24 : 0); j-=2) {
-			String sub = addr[0].substring(j-2, j);
-			int num = Integer.parseInt(sub, 16);
-			ip += num+".";
-		}
-		if (ip.length()>0) {
-			ip = ip.substring(0, ip.length()-1);
-			o.put("ipv4", ip);
+	/* Write the address object of entry i. */
+	private void writeAddr(RecordWriter w, int[] addr, int port, int i, int words) {
+		w.beginObject();
+		w.key("port").value(port);
+		w.key("raw_ip").value(ProcNetParser.rawAddr(addr, i, words));
+		if (ProcNetParser.isIpv4(addr, i, words)) {
+			w.key("ipv4").value(ProcNetParser.formatIpv4(ProcNetParser.ipv4(addr, i, words)));
+		} else {
+			w.key("ipv6").value(ProcNetParser.formatIpv6(addr, i));
 		}
-		return o;
+		w.endObject();
 	}
 	
-	/* Read sockets info from proc file system. */
-	private JSONObject getSock(Context c) throws JSONException {
-		JSONObject jo = new JSONObject();
-		for (String s : Arrays.asList("tcp","udp","tcp6")) {
-			JSONArray a = new JSONArray();
-			
-			List<String> lines = Helpers.readProc("/proc/net/"+s);
-			for (int i = 1; i < lines.size(); i += 1) {
-				String[] vals = lines.get(i).split("\\s+");
-				if (vals.length < 7)
+	/* Write the flow event object. */
+	private void writeFlow(RecordWriter w, String event, FlowTracker t, int slot) {
+		w.beginObject();
+		w.key("event").value(event);
+		w.key("proto").value(TABLES[t.getTable(slot)]);
+		w.key("inode").value(t.inode[slot]);
+		w.key("uid").value(t.uid[slot]); // see package_dictionary
+		
+		w.key("local_addr");
+		writeAddr(w, t.localAddr, t.localPort[slot], slot, t.words[slot]);
+		w.key("remote_addr");
+		writeAddr(w, t.remoteAddr, t.remotePort[slot], slot, t.words[slot]);
+		
+		States st = States.fromInt(t.state[slot]);
+		w.key("status_code").value(st.ordinal());
+		w.key("status_text").value(st.name());
+		
+		w.key("first_seen").value(t.firstSeen[slot]);
+		w.key("last_seen").value(t.lastSeen[slot]);
+		w.key("max_tx_queue").value(t.maxTxQueue[slot]);
+		w.key("max_rx_queue").value(t.maxRxQueue[slot]);
+		w.endObject();
+	}
+	
+	/* Read sockets info from proc file system, update the flows and write the events. */
+	private void writeFlows(final RecordWriter w, long ts) throws JSONException {
+		final int[] events = {0};
+		FlowTracker.Listener l = new FlowTracker.Listener() {
+			@Override
+			public void onFlow(String event, FlowTracker t, int slot) {
+				writeFlow(w, event, t, slot);
+				events[0] += 1;
+			}
+		};
+		
+		synchronized (SocketsCollector.class) {
+			w.beginObject();
+			w.key("events").beginArray();
+			tracker.beginRound(ts);
+			for (int i = 0; i < TABLES.length; i++) {
+				long start = System.nanoTime();
+				try {
+					parser.parse(TABLES[i]);
+				} catch (IOException e) {
+					// the flows of the table are carried over
+					Log.w(Constants.LOGTAG, "could not read /proc/net/" + TABLES[i], e);
 					continue;
-				
-				JSONObject o = new JSONObject();
-				o.put("idx", Integer.parseInt(vals[0].replace(':', ' ').trim()));
-				
-				o.put("local_addr", parseAddr(vals[1].trim()));
-				o.put("remote_addr", parseAddr(vals[2].trim()));
-				
-				States st = States.fromInt(Integer.parseInt(vals[3].trim(),16));
-				o.put("status_code", st.ordinal());
-				o.put("status_text", st.name());
-
-				String[] q = vals[4].trim().split(":");
-				o.put("tx_queue", Integer.parseInt(q[0],16));
-				o.put("rx_queue", Integer.parseInt(q[1],16));
-				
-				int uid = Integer.parseInt(vals[7].replace(':', ' ').trim());
-				o.put("uid", uid);
-				o.put("packages", Helpers.getPackagesForUid(c, uid));
-				
-				a.put(o);
+				}
+				tracker.update(i, parser, l);
+				Log.d(Constants.LOGTAG, "sockets: parsed " + parser.count + " " + TABLES[i] + " sockets in " + 
+						(System.nanoTime() - start)/1000 + " us");
 			}
-			jo.put(s,a);
+			tracker.endRound(l);
+			w.endArray();
+			w.key("active").value(tracker.size());
+			w.key("restarted").value(tracker.isFirstRound());
+			w.endObject();
+			lastActive = tracker.size();
+			Log.d(Constants.LOGTAG, "sockets: " + events[0] + " flow events, " + tracker.size() + " active flows");
 		}
-		Log.d(Constants.LOGTAG, jo.toString(4));
-		return jo;
+	}
+	
+	/**
+	 * @return Number of active flows of the latest round, or -1 if not known or
+	 * already taken.
+	 */
+	public static synchronized int takeActiveFlows() {
+		int n = lastActive;
+		lastActive = -1;
+		return n;
 	}
 }
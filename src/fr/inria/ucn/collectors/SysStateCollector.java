@@ -25,6 +25,7 @@ import org.json.JSONObject;
 
 import fr.inria.ucn.Constants;
 import fr.inria.ucn.Helpers;
+import fr.inria.ucn.RoundContext;
 
 import android.annotation.SuppressLint;
 import android.app.ActivityManager;
@@ -32,9 +33,11 @@ import android.app.ActivityManager.MemoryInfo;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.media.AudioManager;
 import android.os.BatteryManager;
 import android.os.PowerManager;
+import android.preference.PreferenceManager;
 import android.text.format.Time;
 import android.util.Log;
 
@@ -46,9 +49,18 @@ import android.util.Log;
  */
 public class SysStateCollector implements Collector {
 
-	final static private String PROC_STAT_FILE = "/proc/stat";
 	final static private String PROC_UPTIME_FILE = "/proc/uptime";
 	final static private String PROC_LOADAVG_FILE = "/proc/loadavg";
+	
+	/* Short cpu window length (ms). */
+	final static private long CPU_WINDOW = 1000;
+	
+	/* Cpu sampler and the snapshot of the previous scheduled round (guarded by the class). */
+	final static private CpuSampler cpu = new CpuSampler();
+	static private CpuSampler.Snapshot previous = null;
+	
+	/* Total cpu usage (%) of the latest round, -1 if taken or unknown (guarded by the class). */
+	static private double lastUsage = -1;
 
 	/**
 	 * 
@@ -105,7 +117,7 @@ public class SysStateCollector implements Collector {
 			data.put("battery", batt);
 
 			// some proc stats
-			data.put("cpu", getCpuStat());
+			data.put("cpu", getCpuStat(c, !change && RoundContext.isScheduled()));
 			data.put("loadavg", getLoadStat());			
 			data.put("uptime", getUptimeStat());			
 
@@ -127,6 +139,16 @@ public class SysStateCollector implements Collector {
 		run(c,ts,false);
 	}
 	
+	/**
+	 * @return Total cpu usage (%) of the latest round since the previous one, or -1
+	 * if not known or already taken.
+	 */
+	public static synchronized double takeCpuUsage() {
+		double u = lastUsage;
+		lastUsage = -1;
+		return u;
+	}
+	
 	private JSONObject getLoadStat() throws JSONException {
 		List<String> s = Helpers.readProc(PROC_LOADAVG_FILE);
 		if (s.size()<=0)
@@ -156,47 +178,48 @@ public class SysStateCollector implements Collector {
 		return u;
 	}
 
-	private JSONObject getCpuStat() throws JSONException {
-		List<String> sf1 = Helpers.readProc(PROC_STAT_FILE);
-		// sleep 1s between two /proc/stat samples to count the instantaneous usage
-		try {
-			Thread.sleep(1000);
-		} catch (InterruptedException e) {
+	/* Cpu usage since the previous scheduled round (no waiting), plus the short window if 
+	 * enabled. Only the scheduled rounds start a new period, so that event triggered runs 
+	 * do not shorten the period of the next scheduled round. */
+	private JSONObject getCpuStat(Context c, boolean scheduled) throws JSONException {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
+		CpuSampler.Snapshot cur = cpu.read();
+		if (cur == null)
+			return null;
+		
+		String boot = Helpers.getBootId();
+		JSONObject res = null;
+		synchronized (SysStateCollector.class) {
+			if (previous == null && boot != null && 
+					boot.equals(prefs.getString(Constants.PREF_HIDDEN_CPU_SNAPSHOT_BOOT, null))) {
+				// first round in this process, the counters restart from 0 on reboot
+				previous = CpuSampler.parse(prefs.getString(Constants.PREF_HIDDEN_CPU_SNAPSHOT, null), 
+						prefs.getLong(Constants.PREF_HIDDEN_CPU_SNAPSHOT_TS, 0));
+			}
+			res = CpuSampler.usage(previous, cur);
+			if (!scheduled)
+				return res;
+			previous = cur;
+			lastUsage = (res != null ? res.optDouble("total", -1) : -1);
 		}
-		List<String> sf2 = Helpers.readProc(PROC_STAT_FILE);
-
-		String[] stat1 = (sf1.size()>0 && sf1.get(0).startsWith("cpu ") ? sf1.get(0).split("[ ]+") : null);
-		String[] stat2 = (sf2.size()>0 && sf2.get(0).startsWith("cpu ") ? sf2.get(0).split("[ ]+") : null);
-		if (stat1 == null || stat2==null)
-			return null; // unexpected format
 		
-		// user = user + nice
-		long u1 = Long.parseLong(stat1[1]) + Long.parseLong(stat1[2]);
-		// system = system + intr + soft_irq
-		long s1 = Long.parseLong(stat1[3]) + Long.parseLong(stat1[6]) + Long.parseLong(stat1[7]);
-		// total = user + system + idle + io_wait
-		long t1 = u1 + s1 + Long.parseLong(stat1[4]) + Long.parseLong(stat1[5]);
-
-		// user = user + nice
-		long u2 = Long.parseLong(stat2[1]) + Long.parseLong(stat2[2]);
-		// system = system + intr + soft_irq
-		long s2 = Long.parseLong(stat2[3]) + Long.parseLong(stat2[6]) + Long.parseLong(stat2[7]);
-		// total = user + system + idle + io_wait
-		long t2 = u1 + s1 + Long.parseLong(stat2[4]) + Long.parseLong(stat2[5]);
-
-		long dtotal = t2-t1;
-		long duser = u2-u1;
-		long dsys = s2-s1;
-
-		if (t2>=t1) {
-			JSONObject cpu = new JSONObject();
-			cpu.put("user", (double)duser*100.0/dtotal);
-			cpu.put("system", (double)dsys*100.0/dtotal);
-			cpu.put("total", (double)(dsys+duser)*100.0/dtotal);
-			return cpu;
-		} else {
-			return null;
+		SharedPreferences.Editor edit = prefs.edit();
+		edit.putString(Constants.PREF_HIDDEN_CPU_SNAPSHOT, cur.toString());
+		edit.putLong(Constants.PREF_HIDDEN_CPU_SNAPSHOT_TS, cur.ts);
+		edit.putString(Constants.PREF_HIDDEN_CPU_SNAPSHOT_BOOT, boot);
+		edit.commit();
+		
+		if (prefs.getBoolean(Constants.PREF_HIDDEN_CPU_WINDOW, false)) {
+			// result of the window started in the previous round, start a new one
+			JSONObject w = cpu.getWindow();
+			if (w != null) {
+				if (res == null)
+					res = new JSONObject();
+				res.put("window", w);
+			}
+			cpu.startWindow(CPU_WINDOW);
 		}
+		return res;
 	}
 	
 	@SuppressWarnings("deprecation")
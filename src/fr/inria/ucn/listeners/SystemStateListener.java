@@ -23,6 +23,7 @@ import java.util.Random;
 import fr.inria.ucn.CollectorService;
 import fr.inria.ucn.Constants;
 import fr.inria.ucn.Helpers;
+import fr.inria.ucn.Scheduler;
 import fr.inria.ucn.collectors.NetworkStateCollector;
 import fr.inria.ucn.collectors.SysStateCollector;
 import android.annotation.SuppressLint;
@@ -50,10 +51,12 @@ public class SystemStateListener extends BroadcastReceiver {
 		if (intent.getAction().equals(ConnectivityManager.CONNECTIVITY_ACTION)) {
 			// collect current network state as connectivity has changed
 			new NetworkStateCollector().run(context, ts, true);
+			Scheduler.onActivity(context);
 		
 		} else if (intent.getAction().equals(Intent.ACTION_USER_PRESENT)) {
 			// log sys state with changed flag to report screen on
 			new SysStateCollector().run(context, ts, true);
+			Scheduler.onActivity(context);
 			
 			// screen just turned on, collect a full sample after some random back-off: 2+[0,2) seconds
 			Helpers.acquireLock(context);
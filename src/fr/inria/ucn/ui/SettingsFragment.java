@@ -78,6 +78,10 @@ public class SettingsFragment extends PreferenceFragment implements OnSharedPref
 		pref.setSummary(prefs.getString(Constants.PREF_INTERVAL, 
 				Long.toString(Scheduler.DEFAULT_IV)));
 		
+		pref = findPreference(Constants.PREF_MAX_INTERVAL);
+		pref.setSummary(prefs.getString(Constants.PREF_MAX_INTERVAL, 
+				Long.toString(Scheduler.DEFAULT_MAX_IV)));
+		
 		String country = prefs.getString(Constants.PREF_COUNTRY, "");
 		pref = findPreference(Constants.PREF_COUNTRY);
 		pref.setSummary(country);		
@@ -118,7 +122,7 @@ public class SettingsFragment extends PreferenceFragment implements OnSharedPref
 	@Override
 	public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
 		Preference pref = findPreference(key);
-		if (key.equals(Constants.PREF_INTERVAL)) {
+		if (key.equals(Constants.PREF_INTERVAL) || key.equals(Constants.PREF_MAX_INTERVAL)) {
 			pref.setSummary(prefs.getString(key, ""));
 			
 		} else if (key.equals(Constants.PREF_COUNTRY)) {
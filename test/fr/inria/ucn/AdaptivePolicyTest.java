@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link AdaptivePolicy}.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class AdaptivePolicyTest {
+
+	private static final long MIN = 60*1000;
+	private static final long MAX = 8*MIN;
+
+	@Test
+	public void startsAtMin() {
+		AdaptivePolicy p = new AdaptivePolicy(MIN, MAX);
+		assertEquals(MIN, p.getInterval());
+	}
+
+	@Test
+	public void fixedIntervalIfMaxBelowMin() {
+		AdaptivePolicy p = new AdaptivePolicy(MIN, MIN/2);
+		for (int i = 0; i < 10; i++)
+			assertEquals(MIN, p.observe(i*MIN, 0, 0, 0));
+	}
+
+	@Test
+	public void stretchesAfterQuietRounds() {
+		AdaptivePolicy p = new AdaptivePolicy(MIN, MAX);
+		long ts = 0;
+		assertEquals(MIN, p.observe(ts, 0, 5, 1000));
+		ts += p.getInterval();
+		assertEquals(2*MIN, p.observe(ts, 0, 5, 1000));
+		ts += p.getInterval();
+		assertEquals(4*MIN, p.observe(ts, 0, 5, 1000));
+		ts += p.getInterval();
+		assertEquals(8*MIN, p.observe(ts, 0, 5, 1000));
+		ts += p.getInterval();
+		assertEquals(MAX, p.observe(ts, 0, 5, 1000));
+	}
+
+	@Test
+	public void activeHalvesBusyDropsToMin() {
+		AdaptivePolicy p = parsed(MAX);
+
+		// moderate cpu
+		assertEquals(MAX/2, p.observe(MIN, AdaptivePolicy.CPU_IDLE, 5, 1000));
+		// a few new sockets
+		assertEquals(MAX/4, p.observe(2*MIN, 0, 5 + AdaptivePolicy.SOCKETS_IDLE + 1, 1000));
+		// busy network
+		long bytes = 1000 + AdaptivePolicy.BYTES_BUSY*60;
+		assertEquals(MIN, p.observe(3*MIN, 0, 5 + AdaptivePolicy.SOCKETS_IDLE + 1, bytes));
+	}
+
+	@Test
+	public void levels() {
+		AdaptivePolicy p = new AdaptivePolicy(MIN, MAX);
+		// nothing known
+		assertEquals(AdaptivePolicy.IDLE, p.getLevel(0, -1, -1, -1));
+		assertEquals(AdaptivePolicy.BUSY, p.getLevel(0, AdaptivePolicy.CPU_BUSY, -1, -1));
+
+		p.observe(0, 0, 10, 0);
+		long s = MIN/1000;
+		assertEquals(AdaptivePolicy.IDLE, p.getLevel(MIN, 0, 10 + AdaptivePolicy.SOCKETS_IDLE, (AdaptivePolicy.BYTES_IDLE - 1)*s));
+		assertEquals(AdaptivePolicy.ACTIVE, p.getLevel(MIN, 0, 10, AdaptivePolicy.BYTES_IDLE*s));
+		assertEquals(AdaptivePolicy.ACTIVE, p.getLevel(MIN, 0, 10 - AdaptivePolicy.SOCKETS_IDLE - 1, 0));
+		assertEquals(AdaptivePolicy.BUSY, p.getLevel(MIN, 0, 10, AdaptivePolicy.BYTES_BUSY*s));
+		assertEquals(AdaptivePolicy.BUSY, p.getLevel(MIN, 0, 10 + AdaptivePolicy.SOCKETS_BUSY, 0));
+
+		// counters reset (reboot), no rate
+		p.observe(MIN, 0, 10, 1000000);
+		assertEquals(AdaptivePolicy.IDLE, p.getLevel(2*MIN, 0, 10, 10));
+	}
+
+	@Test
+	public void eventDropsToMin() {
+		AdaptivePolicy p = parsed(MAX);
+		assertEquals(MIN, p.onEvent());
+		assertEquals(MIN, p.getInterval());
+		// the quiet rounds count again from 0
+		assertEquals(MIN, p.observe(MIN, 0, 5, 1000));
+	}
+
+	@Test
+	public void stateRoundtrip() {
+		AdaptivePolicy p = new AdaptivePolicy(MIN, MAX);
+		p.observe(0, 0, 5, 1000);
+		p.observe(MIN, 0, 5, 1000);
+		AdaptivePolicy q = AdaptivePolicy.parse(p.toString(), MIN, MAX);
+		assertEquals(p.toString(), q.toString());
+		assertEquals(p.observe(3*MIN, 0, 5, 1000), q.observe(3*MIN, 0, 5, 1000));
+	}
+
+	@Test
+	public void parseInvalidState() {
+		String fresh = new AdaptivePolicy(MIN, MAX).toString();
+		assertEquals(fresh, AdaptivePolicy.parse(null, MIN, MAX).toString());
+		assertEquals(fresh, AdaptivePolicy.parse("", MIN, MAX).toString());
+		assertEquals(fresh, AdaptivePolicy.parse("1,2,3", MIN, MAX).toString());
+		assertEquals(fresh, AdaptivePolicy.parse("60000,x,0,1,2", MIN, MAX).toString());
+	}
+
+	@Test
+	public void parseClampsTheInterval() {
+		// the limits changed in the settings
+		assertEquals(MAX, AdaptivePolicy.parse((10*MAX) + ",0,-1,-1,-1", MIN, MAX).getInterval());
+		assertEquals(MIN, AdaptivePolicy.parse("1,0,-1,-1,-1", MIN, MAX).getInterval());
+	}
+
+	@Test
+	public void evaluateIdleTrace() {
+		int n = 60;
+		long[] ts = new long[n];
+		double[] cpu = new double[n];
+		int[] sockets = new int[n];
+		long[] bytes = new long[n];
+		for (int i = 0; i < n; i++) {
+			ts[i] = i*MIN;
+			sockets[i] = 5;
+			bytes[i] = 1000;
+		}
+
+		AdaptivePolicy.Evaluation e = AdaptivePolicy.evaluate(MIN, MAX, ts, cpu, sockets, bytes);
+		assertEquals(n, e.samples);
+		assertEquals(0, e.busy);
+		assertEquals(0, e.busySeen);
+		// 0, 1, 3, 7, 15 then every 8 samples
+		assertEquals(10, e.rounds);
+		assertEquals(MIN, e.intervals[0]);
+		assertEquals(-1, e.intervals[2]);
+		assertEquals(MAX, e.intervals[n - 5]);
+	}
+
+	@Test
+	public void evaluateBusyTrace() {
+		int n = 60;
+		long[] ts = new long[n];
+		double[] cpu = new double[n];
+		int[] sockets = new int[n];
+		long[] bytes = new long[n];
+		for (int i = 0; i < n; i++) {
+			ts[i] = i*MIN;
+			sockets[i] = 5;
+			bytes[i] = 1000;
+			if (i >= 40 && i < 50)
+				cpu[i] = 90;
+		}
+
+		AdaptivePolicy.Evaluation e = AdaptivePolicy.evaluate(MIN, MAX, ts, cpu, sockets, bytes);
+		assertEquals(10, e.busy);
+		// the first busy samples may fall between two rounds, the rest are seen
+		assertTrue(e.toString(), e.busySeen >= e.busy - (int)(MAX/MIN) + 1);
+		assertTrue(e.toString(), e.busySeen <= e.busy);
+		assertEquals(MIN, e.intervals[49]);
+	}
+
+	/* Policy at the given interval. */
+	private static AdaptivePolicy parsed(long interval) {
+		return AdaptivePolicy.parse(interval + ",0,0,5,1000", MIN, MAX);
+	}
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Timing loop of the micro-benchmarks in test/ (ant -f test.xml bench). A task
+ * is run a number of times to warm up the JIT, then timed. The bytes allocated
+ * by the calling thread are counted too, when the JVM supports it.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class Benchmark {
+
+	/**
+	 * Benchmarked operation.
+	 */
+	public interface Task {
+		/**
+		 * @return Any value derived from the result, so that the work is not optimized away.
+		 * @throws Exception
+		 */
+		public long run() throws Exception;
+	}
+
+	private Benchmark() {
+	}
+
+	/**
+	 * Run and print the time and allocated bytes per run of the task.
+	 * @param name
+	 * @param warmup untimed runs
+	 * @param runs timed runs
+	 * @param t
+	 * @return Time per run (ns).
+	 * @throws Exception
+	 */
+	public static long run(String name, int warmup, int runs, Task t) throws Exception {
+		long sink = 0;
+		for (int i = 0; i < warmup; i++)
+			sink += t.run();
+
+		long alloc = allocatedBytes();
+		long t0 = System.nanoTime();
+		for (int i = 0; i < runs; i++)
+			sink += t.run();
+		long ns = (System.nanoTime() - t0)/runs;
+		alloc = (alloc < 0 ? -1 : (allocatedBytes() - alloc)/runs);
+
+		System.out.println(String.format("%-24s %10d ns/op %12d bytes allocated/op (%d)",
+				name, ns, alloc, sink));
+		return ns;
+	}
+
+	/**
+	 * @return Bytes allocated by the current thread, or -1 if not supported by the JVM.
+	 */
+	public static long allocatedBytes() {
+		ThreadMXBean b = ManagementFactory.getThreadMXBean();
+		if (b instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)b).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+}
@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link BinaryRecordCodec}.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class BinaryRecordCodecTest {
+
+	private final BinaryRecordCodec codec = new BinaryRecordCodec();
+
+	@Test
+	public void roundtrip() throws JSONException {
+		JSONObject data = new JSONObject();
+		data.put("ssid", "h\u00e9llo \u20ac \ud83d\ude00");
+		data.put("rssi", -71);
+		data.put("not_a_known_key", 2.5);
+		JSONArray a = new JSONArray();
+		a.put(1);
+		a.put("s");
+		a.put(true);
+		a.put(false);
+		a.put(JSONObject.NULL);
+		a.put(new JSONObject().put("not_a_known_key", 1));
+		a.put(new JSONArray());
+		data.put("list", a);
+		data.put("empty", new JSONObject());
+
+		JSONObject r = new JSONObject();
+		r.put("collection", "wifi_neigh");
+		r.put("ts", 1398175708736L);
+		r.put("data", data);
+
+		byte[] b = codec.encode(r);
+		assertTrue(BinaryRecordCodec.isBinary(b));
+		assertSameJson(r, codec.decode(b));
+	}
+
+	@Test
+	public void longs() throws JSONException {
+		long[] values = {0, 1, -1, 63, -64, 64, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+		for (long v : values) {
+			JSONObject r = codec.decode(codec.encode(new JSONObject().put("ts", v)));
+			assertEquals(v, r.getLong("ts"));
+		}
+	}
+
+	@Test
+	public void integralDoublesAreInts() throws JSONException {
+		JSONObject r = codec.decode(codec.encode(new JSONObject().put("ts", 3.0)));
+		assertTrue(r.get("ts") instanceof Long);
+		assertEquals(3, r.getLong("ts"));
+
+		// not exact as a long
+		r = codec.decode(codec.encode(new JSONObject().put("ts", 1e20)));
+		assertTrue(r.get("ts") instanceof Double);
+		assertEquals(1e20, ((Double)r.get("ts")).doubleValue(), 0);
+	}
+
+	@Test
+	public void negativeZero() throws JSONException {
+		assertFalse(BinaryRecordCodec.isIntegral(-0.0));
+		assertTrue(BinaryRecordCodec.isIntegral(0.0));
+
+		JSONObject r = codec.decode(codec.encode(new JSONObject().put("ts", -0.0)));
+		assertTrue(r.get("ts") instanceof Double);
+		assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits((Double)r.get("ts")));
+	}
+
+	@Test
+	public void dictionaryKeys() throws JSONException {
+		byte[] b = codec.encode(new JSONObject().put("collection", "a"));
+		assertArrayEquals(bytes(BinaryRecordCodec.MAGIC, BinaryRecordCodec.SCHEMA,
+				BinaryRecordCodec.T_OBJECT, 1,
+				1, BinaryRecordCodec.T_STRING, 1, 'a'), b);
+	}
+
+	@Test
+	public void recordKeys() throws JSONException {
+		JSONObject r = new JSONObject().put("foo", new JSONObject().put("foo", 1));
+		byte[] b = codec.encode(r);
+		assertArrayEquals(bytes(BinaryRecordCodec.MAGIC, BinaryRecordCodec.SCHEMA,
+				BinaryRecordCodec.T_OBJECT, 1,
+				0, 3, 'f', 'o', 'o',
+				BinaryRecordCodec.T_OBJECT, 1,
+				0x80, BinaryRecordCodec.LOCAL_KEYS >> 7, // varint LOCAL_KEYS
+				BinaryRecordCodec.T_INT, 2), b);
+		assertSameJson(r, codec.decode(b));
+	}
+
+	@Test
+	public void decodeSchema1() throws JSONException {
+		// {"foo":1,"data":{"foo":2}}, the record keys follow the schema 1 dictionary
+		int ref = BinaryRecordCodec.SCHEMA_1_KEYS + 1;
+		byte[] b = bytes(BinaryRecordCodec.MAGIC, 1,
+				BinaryRecordCodec.T_OBJECT, 2,
+				0, 3, 'f', 'o', 'o', BinaryRecordCodec.T_INT, 2,
+				BinaryRecordCodec.KEY_INDEX.get("data"),
+				BinaryRecordCodec.T_OBJECT, 1,
+				0x80 | (ref & 0x7f), ref >> 7,
+				BinaryRecordCodec.T_INT, 4);
+		JSONObject r = codec.decode(b);
+		assertEquals(1, r.getLong("foo"));
+		assertEquals(2, r.getJSONObject("data").getLong("foo"));
+	}
+
+	@Test
+	public void invalidRecords() throws JSONException {
+		assertFalse(BinaryRecordCodec.isBinary(null));
+		assertFalse(BinaryRecordCodec.isBinary("{}".getBytes()));
+
+		assertInvalid("{}".getBytes());
+		// unknown schema
+		assertInvalid(bytes(BinaryRecordCodec.MAGIC, BinaryRecordCodec.SCHEMA + 1, BinaryRecordCodec.T_OBJECT, 0));
+		// not an object
+		assertInvalid(bytes(BinaryRecordCodec.MAGIC, BinaryRecordCodec.SCHEMA, BinaryRecordCodec.T_INT, 2));
+		// unknown tag
+		assertInvalid(bytes(BinaryRecordCodec.MAGIC, BinaryRecordCodec.SCHEMA, 42));
+		// unknown record key
+		assertInvalid(bytes(BinaryRecordCodec.MAGIC, BinaryRecordCodec.SCHEMA,
+				BinaryRecordCodec.T_OBJECT, 1, 0x80, BinaryRecordCodec.LOCAL_KEYS >> 7, BinaryRecordCodec.T_NULL));
+		// dictionary key of a later version
+		assertInvalid(bytes(BinaryRecordCodec.MAGIC, BinaryRecordCodec.SCHEMA,
+				BinaryRecordCodec.T_OBJECT, 1, 0xff, 0x07, BinaryRecordCodec.T_NULL));
+
+		// truncated anywhere
+		JSONObject r = new JSONObject().put("collection", "a").put("foo", new JSONArray().put(1.5).put("bar"));
+		byte[] b = codec.encode(r);
+		for (int n = 2; n < b.length; n++) {
+			byte[] t = new byte[n];
+			System.arraycopy(b, 0, t, 0, n);
+			assertInvalid(t);
+		}
+	}
+
+	private void assertInvalid(byte[] b) {
+		try {
+			codec.decode(b);
+			fail("decoded an invalid record");
+		} catch (JSONException e) {
+		}
+	}
+
+	private static byte[] bytes(int... v) {
+		byte[] b = new byte[v.length];
+		for (int i = 0; i < v.length; i++)
+			b[i] = (byte)v[i];
+		return b;
+	}
+
+	/**
+	 * Compare two JSON values, integral numbers by value and the other numbers by
+	 * their bits (so that -0.0 differs from 0).
+	 * @param expected
+	 * @param actual
+	 */
+	static void assertSameJson(Object expected, Object actual) {
+		if (expected instanceof JSONObject) {
+			assertTrue("not an object: " + actual, actual instanceof JSONObject);
+			JSONObject e = (JSONObject)expected;
+			JSONObject a = (JSONObject)actual;
+			assertEquals(e.length(), a.length());
+			Iterator<?> it = e.keys();
+			while (it.hasNext()) {
+				String k = (String)it.next();
+				assertTrue("missing key " + k, a.opt(k) != null);
+				assertSameJson(e.opt(k), a.opt(k));
+			}
+		} else if (expected instanceof JSONArray) {
+			assertTrue("not an array: " + actual, actual instanceof JSONArray);
+			JSONArray e = (JSONArray)expected;
+			JSONArray a = (JSONArray)actual;
+			assertEquals(e.length(), a.length());
+			for (int i = 0; i < e.length(); i++)
+				assertSameJson(e.opt(i), a.opt(i));
+		} else if (expected instanceof Number) {
+			assertTrue("not a number: " + actual, actual instanceof Number);
+			if (isIntegral((Number)expected) || isIntegral((Number)actual))
+				assertEquals(((Number)expected).longValue(), ((Number)actual).longValue());
+			else
+				assertEquals(Double.doubleToRawLongBits(((Number)expected).doubleValue()),
+						Double.doubleToRawLongBits(((Number)actual).doubleValue()));
+		} else {
+			assertEquals(expected, actual);
+		}
+	}
+
+	private static boolean isIntegral(Number n) {
+		return (n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte);
+	}
+}
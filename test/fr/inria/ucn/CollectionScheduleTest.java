@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link CollectionSchedule}, on a simulated clock.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class CollectionScheduleTest {
+
+	private static final long MIN = 60*1000;
+
+	private static CollectionSchedule schedule(long slack, long... periods) {
+		String[] names = new String[periods.length];
+		for (int i = 0; i < names.length; i++)
+			names[i] = "c" + i;
+		return new CollectionSchedule(names, periods, slack);
+	}
+
+	@Test
+	public void allDueAtFirst() {
+		CollectionSchedule s = schedule(0, 5*MIN, 15*MIN);
+		assertTrue(s.isDue(0, 0));
+		assertTrue(s.isDue(1, 0));
+		assertEquals(Long.MIN_VALUE, s.getNext(0));
+		assertEquals(1000, s.nextWakeup(1000));
+	}
+
+	@Test
+	public void runDueAdvancesEachPeriod() {
+		CollectionSchedule s = schedule(0, 5*MIN, 15*MIN);
+		assertArrayEquals(new boolean[] {true, true}, s.runDue(0));
+		assertEquals(5*MIN, s.getNext(0));
+		assertEquals(15*MIN, s.getNext(1));
+		assertEquals(5*MIN, s.nextWakeup(0));
+
+		assertArrayEquals(new boolean[] {false, false}, s.runDue(5*MIN - 1));
+		assertArrayEquals(new boolean[] {true, false}, s.runDue(5*MIN));
+		assertArrayEquals(new boolean[] {true, false}, s.runDue(10*MIN));
+		assertArrayEquals(new boolean[] {true, true}, s.runDue(15*MIN));
+	}
+
+	@Test
+	public void runsAheadWithinSlack() {
+		CollectionSchedule s = schedule(MIN, 5*MIN);
+		s.runDue(0);
+		assertFalse(s.isDue(0, 4*MIN - 1));
+		assertTrue(s.isDue(0, 4*MIN));
+	}
+
+	@Test
+	public void ranWithinSlackKeepsThePhase() {
+		CollectionSchedule s = schedule(MIN, 5*MIN);
+		s.runDue(0);
+
+		// ahead of time
+		s.ran(0, 4*MIN);
+		assertEquals(10*MIN, s.getNext(0));
+
+		// late, but within the slack
+		s.ran(0, 10*MIN + MIN);
+		assertEquals(15*MIN, s.getNext(0));
+	}
+
+	@Test
+	public void ranOutsideSlackRestartsThePeriod() {
+		CollectionSchedule s = schedule(MIN, 5*MIN);
+		s.runDue(0);
+
+		// late round
+		s.ran(0, 7*MIN);
+		assertEquals(12*MIN, s.getNext(0));
+
+		// event triggered round, well ahead of time
+		s.ran(0, 8*MIN);
+		assertEquals(13*MIN, s.getNext(0));
+	}
+
+	@Test
+	public void setNextAfterReboot() {
+		CollectionSchedule s = schedule(0, 5*MIN);
+		long now = 100*MIN;
+
+		s.setNext(0, now + 3*MIN, now);
+		assertEquals(now + 3*MIN, s.getNext(0));
+		assertFalse(s.isDue(0, now));
+
+		// the elapsed realtime clock was reset
+		s.setNext(0, now + 6*MIN, now);
+		assertEquals(now, s.getNext(0));
+		assertTrue(s.isDue(0, now));
+	}
+
+	@Test
+	public void nextWakeupIsTheEarliestDueTime() {
+		CollectionSchedule s = schedule(0, 5*MIN, 3*MIN);
+		s.runDue(0);
+		assertEquals(3*MIN, s.nextWakeup(0));
+		// never in the past
+		assertEquals(4*MIN, s.nextWakeup(4*MIN));
+	}
+
+	@Test
+	public void simulateWithoutSlack() {
+		CollectionSchedule s = schedule(0, 5*MIN, 15*MIN);
+		int[] runs = new int[2];
+		assertEquals(12, s.simulate(0, 60*MIN, runs));
+		assertEquals(12, runs[0]);
+		assertEquals(4, runs[1]);
+	}
+
+	@Test
+	public void simulateCoalescesWakeups() {
+		int[] runs = new int[2];
+		int wakeups = schedule(0, 3*MIN, 5*MIN).simulate(0, 60*MIN, runs);
+		assertEquals(20, runs[0]);
+		assertEquals(12, runs[1]);
+
+		int[] coalesced = new int[2];
+		int fewer = schedule(MIN + MIN/2, 3*MIN, 5*MIN).simulate(0, 60*MIN, coalesced);
+		assertTrue("wakeups " + fewer + " vs " + wakeups, fewer < wakeups);
+		// the collectors do not run more often than their period
+		assertTrue(coalesced[0] <= runs[0]);
+		assertTrue(coalesced[1] <= runs[1]);
+	}
+
+	@Test
+	public void simulateLeavesTheScheduleUnchanged() {
+		CollectionSchedule s = schedule(0, 5*MIN);
+		s.runDue(0);
+		s.simulate(0, 60*MIN, null);
+		assertEquals(5*MIN, s.getNext(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidPeriod() {
+		schedule(0, 5*MIN, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void namesAndPeriodsDiffer() {
+		new CollectionSchedule(new String[] {"a"}, new long[] {MIN, MIN}, 0);
+	}
+}
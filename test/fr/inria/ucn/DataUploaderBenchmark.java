@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+/**
+ * Benchmark of the uploads to a local stand-in server: plain versus gzip
+ * bodies, pipelined (default window) versus serial. The store holds 2000
+ * app_data_usage records (about 17 MB), an upload sends them all. The wire
+ * bytes are the request bodies received by the server, the allocated bytes
+ * are those of the sending thread only (not of the pipelined preparer).
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class DataUploaderBenchmark {
+
+	private static final int RECORDS = 2000;
+	private static final int WARMUP = 3;
+	private static final int RUNS = 10;
+
+	public static void main(String[] args) throws Exception {
+		final byte[][] records = new byte[RECORDS][];
+		long bytes = 0;
+		for (int i = 0; i < RECORDS; i++) {
+			records[i] = RecordCodecs.JSON.encode(SampleRecords.appDataUsage(1398175708736L + i*60000L, i));
+			bytes += records[i].length;
+		}
+		System.out.println("store: " + RECORDS + " records, " + bytes + " bytes");
+
+		DataUploaderTest.UploadServer server = new DataUploaderTest.UploadServer();
+		try {
+			for (int window : new int[] {DataUploader.DEFAULT_UPLOAD_WINDOW, 0}) {
+				for (boolean gzip : new boolean[] {false, true}) {
+					run(server, records, gzip, window);
+				}
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static void run(final DataUploaderTest.UploadServer server, final byte[][] records,
+			final boolean gzip, final int window) throws Exception {
+		long received = server.received.get();
+		long ns = Benchmark.run("window " + window + (gzip ? " gzip" : " identity"), WARMUP, RUNS, new Benchmark.Task() {
+			@Override
+			public long run() {
+				DataUploaderTest.GeneratedStore ds = new DataUploaderTest.GeneratedStore(RECORDS) {
+					@Override
+					byte[] record(int id) {
+						return records[id-1].clone(); // new array per read, as from the database
+					}
+				};
+				DataUploader.UploadStats st = new DataUploader.UploadStats();
+				if (!DataUploader.upload(ds, server.url, gzip, RecordCodecs.JSON, window, st))
+					throw new IllegalStateException("upload failed");
+				return st.count;
+			}
+		});
+		long wire = (server.received.get() - received)/(WARMUP + RUNS);
+		System.out.println(String.format("%-24s %10d ms/upload %12d wire bytes/upload", "", ns/1000000, wire));
+	}
+}
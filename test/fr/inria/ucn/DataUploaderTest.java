@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.database.Cursor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Memory use of {@link DataUploader} uploads: 50 MB of records are uploaded to
+ * a local stand-in server from a heap smaller than the upload, and the peak
+ * heap in use is checked.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class DataUploaderTest {
+
+	private static final int RECORD_BYTES = 1024;
+	private static final int RECORDS = 50*1024;
+	private static final long UPLOAD_BYTES = (long)RECORDS*RECORD_BYTES; // 50 MB
+
+	/* Max heap of the test JVM (-Xmx32m in test.xml). */
+	private static final long MAX_HEAP = 32*1024*1024;
+
+	private UploadServer server;
+
+	/* Local stand-in of the upload server, accepts all requests. */
+	static class UploadServer {
+		final HttpServer server;
+		final URL url;
+		final AtomicInteger requests = new AtomicInteger();
+		final AtomicLong received = new AtomicLong();
+		final AtomicInteger fixedLength = new AtomicInteger();
+
+		UploadServer() throws IOException {
+			server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+			server.createContext("/", new HttpHandler() {
+				@Override
+				public void handle(HttpExchange ex) throws IOException {
+					if (ex.getRequestHeaders().getFirst("Content-Length") != null)
+						fixedLength.incrementAndGet();
+					byte[] b = new byte[8*1024];
+					InputStream in = ex.getRequestBody();
+					int n;
+					while ((n = in.read(b)) > 0)
+						received.addAndGet(n);
+					in.close();
+					requests.incrementAndGet();
+					ex.sendResponseHeaders(200, -1);
+					ex.close();
+				}
+			});
+			server.start();
+			url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/upload");
+		}
+
+		void stop() {
+			server.stop(0);
+		}
+	}
+
+	/* Generated records 1..count, removed ones are not returned again. */
+	static class GeneratedStore extends DataStore {
+		final int count;
+		int removed = 0;
+		int nextId = 1;
+
+		GeneratedStore(int count) {
+			this.count = count;
+		}
+
+		/* JSON record of RECORD_BYTES bytes. */
+		byte[] record(int id) {
+			byte[] b = new byte[RECORD_BYTES];
+			Arrays.fill(b, (byte)'a');
+			byte[] head = ("{\"id\":" + id + ",\"pad\":\"").getBytes();
+			System.arraycopy(head, 0, b, 0, head.length);
+			b[RECORD_BYTES-2] = '"';
+			b[RECORD_BYTES-1] = '}';
+			return b;
+		}
+
+		@Override
+		public Cursor getDataCursor(final int fromId, final int limit) {
+			return (Cursor)Proxy.newProxyInstance(Cursor.class.getClassLoader(), new Class<?>[] {Cursor.class},
+					new InvocationHandler() {
+				int id = Math.max(fromId, nextId) - 1;
+				final int last = Math.min(count, id + limit);
+
+				@Override
+				public Object invoke(Object proxy, Method m, Object[] args) {
+					String name = m.getName();
+					if (name.equals("moveToFirst")) {
+						id = Math.max(fromId, nextId);
+						return id <= last;
+					} else if (name.equals("moveToNext")) {
+						id += 1;
+						return id <= last;
+					} else if (name.equals("getInt")) {
+						return id;
+					} else if (name.equals("getType")) {
+						return Cursor.FIELD_TYPE_BLOB;
+					} else if (name.equals("getBlob")) {
+						return record(id);
+					} else if (name.equals("close")) {
+						return null;
+					}
+					throw new UnsupportedOperationException(name);
+				}
+			});
+		}
+
+		@Override
+		public synchronized int removeDataRange(int from, int to) {
+			nextId = to + 1;
+			removed += to - from + 1;
+			return to - from + 1;
+		}
+
+		@Override
+		public synchronized int removeData(Collection<Integer> ids) {
+			for (Integer id : ids)
+				nextId = Math.max(nextId, id + 1);
+			removed += ids.size();
+			return ids.size();
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = new UploadServer();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	/* Upload all records, returns the peak heap in use during the upload. */
+	private long upload(boolean gzip, int window) {
+		// a heap smaller than the upload, so that an upload that holds the data fails
+		assertTrue("test heap too large: " + Runtime.getRuntime().maxMemory(),
+				Runtime.getRuntime().maxMemory() <= MAX_HEAP);
+
+		GeneratedStore ds = new GeneratedStore(RECORDS);
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (p.getType() == MemoryType.HEAP) {
+				p.resetPeakUsage();
+				pools.add(p);
+			}
+		}
+
+		DataUploader.UploadStats st = new DataUploader.UploadStats();
+		assertTrue(DataUploader.upload(ds, server.url, gzip, RecordCodecs.JSON, window, st));
+		assertEquals(RECORDS, ds.removed);
+		assertEquals(RECORDS, st.count);
+		assertEquals(UPLOAD_BYTES, st.bytes);
+
+		long peak = 0;
+		for (MemoryPoolMXBean p : pools)
+			peak += p.getPeakUsage().getUsed();
+		System.out.println("window " + window + (gzip ? " gzip" : "") + ": " + server.requests.get() + " requests, " +
+				server.received.get() + " bytes received, peak heap " + peak/1024 + " KB");
+		return peak;
+	}
+
+	@Test
+	public void defaultWindowHeap() {
+		long peak = upload(false, DataUploader.DEFAULT_UPLOAD_WINDOW);
+		assertTrue("peak heap " + peak, peak < UPLOAD_BYTES);
+
+		// pipelined bodies are sent with their length, about 256 KB per request
+		assertEquals(server.requests.get(), server.fixedLength.get());
+		assertTrue(server.requests.get() >= 200);
+		assertTrue(server.received.get() > UPLOAD_BYTES);
+	}
+
+	@Test
+	public void defaultWindowHeapGzip() {
+		long peak = upload(true, DataUploader.DEFAULT_UPLOAD_WINDOW);
+		assertTrue("peak heap " + peak, peak < UPLOAD_BYTES);
+		assertEquals(server.requests.get(), server.fixedLength.get());
+	}
+
+	@Test
+	public void serialHeap() {
+		long peak = upload(false, 0);
+		assertTrue("peak heap " + peak, peak < UPLOAD_BYTES);
+
+		// streamed bodies are chunked, about 512 KB per request
+		assertEquals(0, server.fixedLength.get());
+		assertTrue(server.received.get() > UPLOAD_BYTES);
+	}
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONObject;
+
+/**
+ * Benchmark of the record codecs: encoded size (plain and gzip), encode and
+ * decode time of an app_data_usage record with the JSON and the binary codec.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class RecordCodecBenchmark {
+
+	private static final int WARMUP = 5000;
+	private static final int RUNS = 20000;
+
+	public static void main(String[] args) throws Exception {
+		final JSONObject record = SampleRecords.appDataUsage(1398175708736L, 1);
+
+		for (final RecordCodec codec : new RecordCodec[] {RecordCodecs.JSON, RecordCodecs.BINARY}) {
+			final byte[] b = codec.encode(record);
+			System.out.println(codec.getName() + ": " + b.length + " bytes, " + gzip(b) + " bytes gzip");
+
+			Benchmark.run(codec.getName() + " encode", WARMUP, RUNS, new Benchmark.Task() {
+				@Override
+				public long run() throws Exception {
+					return codec.encode(record).length;
+				}
+			});
+			Benchmark.run(codec.getName() + " decode", WARMUP, RUNS, new Benchmark.Task() {
+				@Override
+				public long run() throws Exception {
+					return codec.decode(b).length();
+				}
+			});
+		}
+	}
+
+	private static int gzip(byte[] b) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream z = new GZIPOutputStream(out);
+		z.write(b);
+		z.close();
+		return out.size();
+	}
+}
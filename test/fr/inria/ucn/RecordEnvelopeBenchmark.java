@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.lang.reflect.Field;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.json.JSONObject;
+
+/**
+ * Benchmark of the record envelope: {@link RecordEnvelope#write} with both
+ * codecs against the previous envelope (JSONObject with two SimpleDateFormat
+ * timestamps, encoded as JSON). The data object is small, so that the
+ * envelope dominates. The per record getPackageInfo call of the previous
+ * envelope needs a device and is not included.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class RecordEnvelopeBenchmark {
+
+	private static final int WARMUP = 20000;
+	private static final int RUNS = 100000;
+
+	private static final String UID = "d9ffb08c-3e6b-3767-8602-3a5b27ad66ef";
+	private static final long TS = 1398175708736L;
+
+	public static void main(String[] args) throws Exception {
+		// the device uid is loaded from a Context on first use, set it here instead
+		Field f = RecordEnvelope.class.getDeclaredField("uid");
+		f.setAccessible(true);
+		f.set(null, UID);
+
+		final JSONObject data = new JSONObject();
+		data.put("state", 0);
+		data.put("network_type", 10);
+		data.put("network_type_str", "HSPA");
+
+		Benchmark.run("previous envelope", WARMUP, RUNS, new Benchmark.Task() {
+			@Override
+			public long run() throws Exception {
+				JSONObject res = new JSONObject();
+				res.put("collection", "data_conn_state");
+				res.put("uid", UID);
+				res.put("app_version_name", "0.4");
+				res.put("app_version_code", 4);
+				SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.S'Z'");
+				sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+				res.put("ts_event", sdf.format(new Date(TS)));
+				res.put("ts", sdf.format(new Date()));
+				res.put("tz", TimeZone.getDefault().getID());
+				res.put("tz_offset", TimeZone.getDefault().getOffset(TS));
+				res.put("data", data);
+				return RecordCodecs.JSON.encode(res).length;
+			}
+		});
+
+		for (final RecordCodec codec : new RecordCodec[] {RecordCodecs.JSON, RecordCodecs.BINARY}) {
+			final RecordWriter d = codec.newWriter();
+			final RecordWriter out = codec.newWriter();
+			Benchmark.run("RecordEnvelope " + codec.getName(), WARMUP, RUNS, new Benchmark.Task() {
+				@Override
+				public long run() throws Exception {
+					d.reset();
+					d.beginObject();
+					d.key("state").value(0);
+					d.key("network_type").value(10);
+					d.key("network_type_str").value("HSPA");
+					d.endObject();
+					RecordEnvelope.write(out, null, "data_conn_state", TS, d);
+					return out.toByteArray().length;
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link RecordEnvelope#formatUtc(long)}, against SimpleDateFormat.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class RecordEnvelopeTest {
+
+	private static final long MS_PER_DAY = 24L*3600*1000;
+
+	@Test
+	public void formatUtc() {
+		assertEquals("1970-01-01T00:00:00.0Z", RecordEnvelope.formatUtc(0));
+		assertEquals("1970-01-01T00:00:00.7Z", RecordEnvelope.formatUtc(7));
+		assertEquals("2014-04-22T14:08:28.736Z", RecordEnvelope.formatUtc(1398175708736L));
+		assertEquals("1969-12-31T23:59:59.999Z", RecordEnvelope.formatUtc(-1));
+	}
+
+	@Test
+	public void leapDays() {
+		assertEquals(reference(951782400000L), RecordEnvelope.formatUtc(951782400000L)); // 2000-02-29
+		assertEquals("2000-02-29T00:00:00.0Z", RecordEnvelope.formatUtc(951782400000L));
+		assertEquals("2100-03-01T00:00:00.0Z", RecordEnvelope.formatUtc(4107542400000L));
+		assertEquals("2016-12-31T23:59:59.999Z", RecordEnvelope.formatUtc(1483228799999L));
+	}
+
+	@Test
+	public void sameAsSimpleDateFormat() {
+		// every day of a few leap cycles around the epoch, at some time of the day
+		for (long d = -3*366; d < 3*366; d++) {
+			long ms = d*MS_PER_DAY + (d*7919*1000 + d) % MS_PER_DAY;
+			assertEquals(reference(ms), RecordEnvelope.formatUtc(ms));
+		}
+
+		// Gregorian years 1600..9999
+		Random r = new Random(42);
+		long from = -11676096000000L;
+		long to = 253402300799999L;
+		for (int i = 0; i < 100000; i++) {
+			long ms = from + (long)(r.nextDouble()*(to - from));
+			assertEquals(reference(ms), RecordEnvelope.formatUtc(ms));
+		}
+	}
+
+	private static String reference(long ms) {
+		SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.S'Z'", Locale.US);
+		f.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return f.format(new Date(ms));
+	}
+}
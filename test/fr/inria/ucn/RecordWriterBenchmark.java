@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+/**
+ * Benchmark of the record writers: an app_data_usage record written with
+ * {@link RecordWriter} against the same record built as a JSONObject and
+ * encoded with the codec (the collectors before the writers), for both codecs.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class RecordWriterBenchmark {
+
+	private static final int WARMUP = 5000;
+	private static final int RUNS = 20000;
+
+	private static final long TS = 1398175708736L;
+
+	public static void main(String[] args) throws Exception {
+		for (final RecordCodec codec : new RecordCodec[] {RecordCodecs.JSON, RecordCodecs.BINARY}) {
+			final RecordWriter w = codec.newWriter();
+			SampleRecords.writeAppDataUsage(w, TS, 1);
+			BinaryRecordCodecTest.assertSameJson(SampleRecords.appDataUsage(TS, 1), codec.decode(w.toByteArray()));
+			System.out.println(codec.getName() + ": " + w.size() + " bytes");
+
+			Benchmark.run(codec.getName() + " JSONObject", WARMUP, RUNS, new Benchmark.Task() {
+				@Override
+				public long run() throws Exception {
+					return codec.encode(SampleRecords.appDataUsage(TS, 1)).length;
+				}
+			});
+			Benchmark.run(codec.getName() + " RecordWriter", WARMUP, RUNS, new Benchmark.Task() {
+				@Override
+				public long run() throws Exception {
+					SampleRecords.writeAppDataUsage(w, TS, 1);
+					return w.toByteArray().length;
+				}
+			});
+		}
+	}
+}
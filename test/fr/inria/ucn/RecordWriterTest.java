@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import static fr.inria.ucn.BinaryRecordCodecTest.assertSameJson;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.UnsupportedEncodingException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Unit tests of the {@link RecordWriter} implementations.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class RecordWriterTest {
+
+	private final BinaryRecordCodec codec = new BinaryRecordCodec();
+
+	@Test
+	public void binarySameAsEncode() throws JSONException {
+		JSONArray a = new JSONArray();
+		for (int i = 0; i < 200; i++)
+			a.put(i - 100); // the count takes two bytes
+		JSONObject data = new JSONObject();
+		data.put("rssi", -71);
+		data.put("not_a_known_key", 2.5);
+		data.put("zero", -0.0);
+		data.put("list", a);
+		data.put("other", new JSONObject().put("not_a_known_key", JSONObject.NULL).put("ssid", "h\u00e9llo"));
+		JSONObject r = new JSONObject();
+		r.put("collection", "wifi_neigh");
+		r.put("data", data);
+
+		RecordWriter w = codec.newWriter();
+		w.beginRecord();
+		w.value(r);
+		assertArrayEquals(codec.encode(r), w.toByteArray());
+	}
+
+	@Test
+	public void binaryStreamed() throws JSONException {
+		RecordWriter w = codec.newWriter();
+		w.beginRecord();
+		w.beginObject();
+		w.key("collection").value("sockets");
+		w.key("data").beginObject();
+		w.key("flows").beginArray();
+		for (int i = 0; i < 3; i++) {
+			w.beginObject();
+			w.key("inode").value(1000 + i);
+			w.key("not_a_known_key").value(i % 2 == 0);
+			w.endObject();
+		}
+		w.endArray();
+		w.key("load").value(0.25);
+		w.key("tz").value((String)null);
+		w.endObject();
+		w.endObject();
+
+		JSONArray flows = new JSONArray();
+		for (int i = 0; i < 3; i++)
+			flows.put(new JSONObject().put("inode", 1000 + i).put("not_a_known_key", i % 2 == 0));
+		JSONObject expected = new JSONObject()
+			.put("collection", "sockets")
+			.put("data", new JSONObject().put("flows", flows).put("load", 0.25).put("tz", JSONObject.NULL));
+		assertSameJson(expected, codec.decode(w.toByteArray()));
+	}
+
+	@Test
+	public void binaryAppend() throws JSONException {
+		RecordWriter data = codec.newWriter();
+		data.reset();
+		data.beginObject().key("foo").value(1).key("bar").beginObject().key("foo").value(2).endObject().endObject();
+
+		RecordWriter w = codec.newWriter();
+		w.beginRecord();
+		w.beginObject().key("collection").value("c").key("data").value(data).endObject();
+
+		JSONObject r = codec.decode(w.toByteArray());
+		assertEquals(1, r.getJSONObject("data").getLong("foo"));
+		assertEquals(2, r.getJSONObject("data").getJSONObject("bar").getLong("foo"));
+
+		// the appended record keys would be shifted
+		w.beginRecord();
+		w.beginObject().key("baz").value(0).key("data");
+		try {
+			w.value(data);
+			fail("appended after a record key");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void json() throws JSONException {
+		RecordWriter w = new JsonRecordWriter();
+		w.beginRecord();
+		w.beginObject();
+		w.key("s").value("x\"y\\z/\n\t\u0001\u00e9");
+		w.key("l").beginArray()
+			.value(0).value(-12).value(Long.MIN_VALUE)
+			.value(3.0).value(2.5).value(-0.0).value(1e20)
+			.value((String)null).value(true).value(false)
+			.beginArray().endArray().beginObject().endObject()
+			.endArray();
+		w.endObject();
+		assertEquals("{\"s\":\"x\\\"y\\\\z\\/\\n\\t\\u0001\u00e9\"," +
+				"\"l\":[0,-12,-9223372036854775808,3,2.5,-0,1.0E20,null,true,false,[],{}]}",
+				utf8(w.toByteArray()));
+	}
+
+	@Test
+	public void jsonAppend() throws JSONException {
+		RecordWriter data = new JsonRecordWriter();
+		data.reset();
+		data.beginObject().key("a").value(1).endObject();
+
+		RecordWriter w = new JsonRecordWriter();
+		w.beginRecord();
+		w.beginObject().key("data").value(data).key("b").value(2).endObject();
+		assertEquals("{\"data\":{\"a\":1},\"b\":2}", utf8(w.toByteArray()));
+
+		// the buffer is reused
+		w.beginRecord();
+		w.beginArray().value(data).value(data).endArray();
+		assertEquals("[{\"a\":1},{\"a\":1}]", utf8(w.toByteArray()));
+	}
+
+	@Test
+	public void misuse() throws JSONException {
+		RecordWriter w = new JsonRecordWriter();
+
+		w.beginRecord();
+		w.beginObject();
+		try {
+			w.value(1);
+			fail("value without a key");
+		} catch (IllegalStateException e) {
+		}
+		try {
+			w.toByteArray();
+			fail("unterminated object");
+		} catch (IllegalStateException e) {
+		}
+		try {
+			w.endArray();
+			fail("unbalanced array");
+		} catch (IllegalStateException e) {
+		}
+
+		w.beginRecord();
+		w.beginArray();
+		try {
+			w.key("a");
+			fail("key in an array");
+		} catch (IllegalStateException e) {
+		}
+		try {
+			w.value(Double.NaN);
+			fail("NaN");
+		} catch (JSONException e) {
+		}
+
+		try {
+			w.value(codec.newWriter());
+			fail("appended a binary writer");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private static String utf8(byte[] b) {
+		try {
+			return new String(b, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
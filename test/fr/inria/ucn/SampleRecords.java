@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn;
+
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Records shaped like the collected data (README), with pseudo random values,
+ * for the benchmarks.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public final class SampleRecords {
+
+	private static final String[] PACKAGES = {
+		"com.android.chrome", "com.google.android.gms", "com.android.vending", "com.whatsapp",
+		"com.facebook.katana", "com.spotify.music", "com.google.android.youtube", "fr.inria.ucn"
+	};
+
+	private static final String[] TRAFFIC_STATS = {
+		"uid_rx_bytes", "uid_tx_bytes", "uid_rx_pkts", "uid_tx_pkts",
+		"uid_tcp_rx_bytes", "uid_tcp_tx_bytes", "uid_tcp_rx_pkts", "uid_tcp_tx_pkts",
+		"uid_udp_rx_bytes", "uid_udp_tx_bytes", "uid_udp_rx_pkts", "uid_udp_tx_pkts"
+	};
+
+	private SampleRecords() {
+	}
+
+	/**
+	 * @param ts
+	 * @param seed
+	 * @return app_data_usage data of 20 uids (about 6 KB of JSON with the envelope).
+	 * @throws JSONException
+	 */
+	public static JSONObject appDataUsage(long ts, long seed) throws JSONException {
+		Random r = new Random(seed);
+		JSONArray list = new JSONArray();
+		for (int i = 0; i < 20; i++) {
+			JSONObject p = new JSONObject();
+			p.put("uid", 10000 + r.nextInt(200));
+			JSONArray pkgs = new JSONArray();
+			pkgs.put(PACKAGES[r.nextInt(PACKAGES.length)]);
+			p.put("packages", pkgs);
+			JSONObject uidStat = new JSONObject();
+			uidStat.put("recv", (long)r.nextInt(1 << 24));
+			uidStat.put("send", (long)r.nextInt(1 << 20));
+			p.put("proc_uid_stat_tcp", uidStat);
+			JSONObject stats = new JSONObject();
+			for (String k : TRAFFIC_STATS)
+				stats.put(k, (r.nextInt(4) == 0 ? -1 : (long)r.nextInt(1 << 22)));
+			p.put("android_traffic_stats", stats);
+			list.put(p);
+		}
+		JSONObject data = new JSONObject();
+		data.put("process_list", list);
+		data.put("changed_only", true);
+		JSONObject counters = new JSONObject();
+		counters.put("mode", "delta");
+		counters.put("keyframe_ts", ts - 600000);
+		data.put("counters", counters);
+		return envelope("app_data_usage", ts, data);
+	}
+
+	/**
+	 * Write the record of {@link #appDataUsage(long, long)} (same content, the
+	 * keys are in insertion order).
+	 * @param w
+	 * @param ts
+	 * @param seed
+	 */
+	public static void writeAppDataUsage(RecordWriter w, long ts, long seed) {
+		Random r = new Random(seed);
+		w.beginRecord();
+		w.beginObject();
+		w.key("data").beginObject();
+		w.key("process_list").beginArray();
+		for (int i = 0; i < 20; i++) {
+			w.beginObject();
+			w.key("uid").value(10000 + r.nextInt(200));
+			w.key("packages").beginArray().value(PACKAGES[r.nextInt(PACKAGES.length)]).endArray();
+			w.key("proc_uid_stat_tcp").beginObject();
+			w.key("recv").value((long)r.nextInt(1 << 24));
+			w.key("send").value((long)r.nextInt(1 << 20));
+			w.endObject();
+			w.key("android_traffic_stats").beginObject();
+			for (String k : TRAFFIC_STATS)
+				w.key(k).value(r.nextInt(4) == 0 ? -1 : (long)r.nextInt(1 << 22));
+			w.endObject();
+			w.endObject();
+		}
+		w.endArray();
+		w.key("changed_only").value(true);
+		w.key("counters").beginObject();
+		w.key("mode").value("delta");
+		w.key("keyframe_ts").value(ts - 600000);
+		w.endObject();
+		w.endObject();
+		w.key("app_version_code").value(4);
+		w.key("app_version_name").value("0.4");
+		w.key("userlabel").value("unknown");
+		w.key("hostname").value("android-e2e3a3bc2b0eb41d");
+		w.key("uid").value("d9ffb08c-3e6b-3767-8602-3a5b27ad66ef");
+		w.key("ts_event").value(ts);
+		w.key("ts_utc").value(ts + 1238);
+		w.key("ts_local").value(ts + 1238 + 3600000);
+		w.key("tz").value("Europe/Paris");
+		w.key("collection").value("app_data_usage");
+		w.endObject();
+	}
+
+	/**
+	 * @param cid
+	 * @param ts
+	 * @param data
+	 * @return The data with the common fields of the records.
+	 * @throws JSONException
+	 */
+	public static JSONObject envelope(String cid, long ts, JSONObject data) throws JSONException {
+		JSONObject o = new JSONObject();
+		o.put("data", data);
+		o.put("app_version_code", 4);
+		o.put("app_version_name", "0.4");
+		o.put("userlabel", "unknown");
+		o.put("hostname", "android-e2e3a3bc2b0eb41d");
+		o.put("uid", "d9ffb08c-3e6b-3767-8602-3a5b27ad66ef");
+		o.put("ts_event", ts);
+		o.put("ts_utc", ts + 1238);
+		o.put("ts_local", ts + 1238 + 3600000);
+		o.put("tz", "Europe/Paris");
+		o.put("collection", cid);
+		return o;
+	}
+}
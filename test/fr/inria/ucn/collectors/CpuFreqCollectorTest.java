@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn.collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests of {@link CpuFreqCollector} on a fixture sysfs tree.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class CpuFreqCollectorTest {
+
+	private static final String TIS = "cpu%d/cpufreq/stats/time_in_state";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private CpuFreqCollector c;
+
+	@Before
+	public void setUp() {
+		c = new CpuFreqCollector(tmp.getRoot().getPath());
+	}
+
+	private void write(String path, String content) throws IOException {
+		File f = new File(tmp.getRoot(), path);
+		f.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(content.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static JSONArray state(long freq, long time) {
+		JSONArray s = new JSONArray();
+		s.put(freq);
+		s.put(time);
+		return s;
+	}
+
+	private static void assertTimeInState(JSONObject core, boolean delta, long... freqTime) throws JSONException {
+		assertEquals(delta, core.getBoolean("time_in_state_delta"));
+		JSONArray a = core.getJSONArray("time_in_state");
+		assertEquals(freqTime.length/2, a.length());
+		for (int i = 0; i < a.length(); i++)
+			assertEquals(state(freqTime[2*i], freqTime[2*i+1]).toString(), a.getJSONArray(i).toString());
+	}
+
+	@Test
+	public void coreWithoutOnlineFileIsOnline() throws Exception {
+		write("cpu0/cpufreq/scaling_cur_freq", "1190400\n");
+		JSONArray cores = c.getCores();
+		assertEquals(1, cores.length());
+		JSONObject core = cores.getJSONObject(0);
+		assertEquals(0, core.getInt("cpu"));
+		assertTrue(core.getBoolean("online"));
+		assertEquals(1190400, core.getLong("cur_freq"));
+		assertFalse(core.has("time_in_state"));
+	}
+
+	@Test
+	public void offlineCoreWithoutFreq() throws Exception {
+		write("cpu0/online", "1\n");
+		write("cpu0/cpufreq/scaling_cur_freq", "300000\n");
+		write("cpu1/online", "0\n");
+		write("cpu10/online", "0\n");
+		write("cpu2/online", "1\n");
+		JSONArray cores = c.getCores();
+		assertEquals(4, cores.length());
+
+		// sorted by core number
+		assertEquals(0, cores.getJSONObject(0).getInt("cpu"));
+		assertEquals(1, cores.getJSONObject(1).getInt("cpu"));
+		assertEquals(2, cores.getJSONObject(2).getInt("cpu"));
+		assertEquals(10, cores.getJSONObject(3).getInt("cpu"));
+
+		JSONObject core = cores.getJSONObject(1);
+		assertFalse(core.getBoolean("online"));
+		assertFalse(core.has("cur_freq"));
+		assertFalse(core.has("time_in_state"));
+		assertTrue(cores.getJSONObject(2).getBoolean("online"));
+		assertFalse(cores.getJSONObject(2).has("cur_freq"));
+	}
+
+	@Test
+	public void timeInStateDelta() throws Exception {
+		write(String.format(TIS, 0), "300000 100\n960000 20\n1190400 5\n");
+		assertTimeInState(c.getCores().getJSONObject(0), false, 300000, 100, 960000, 20, 1190400, 5);
+
+		// new collector instance, as in the next round
+		write(String.format(TIS, 0), "300000 150\n960000 20\n1190400 12\n");
+		c = new CpuFreqCollector(tmp.getRoot().getPath());
+		assertTimeInState(c.getCores().getJSONObject(0), true, 300000, 50, 960000, 0, 1190400, 7);
+
+		write(String.format(TIS, 0), "300000 151\n960000 20\n1190400 12\n");
+		assertTimeInState(c.getCores().getJSONObject(0), true, 300000, 1, 960000, 0, 1190400, 0);
+	}
+
+	@Test
+	public void totalsWhenTableChanges() throws Exception {
+		write(String.format(TIS, 0), "300000 100\n960000 20\n");
+		c.getCores();
+
+		// frequency added
+		write(String.format(TIS, 0), "300000 110\n960000 20\n1190400 5\n");
+		assertTimeInState(c.getCores().getJSONObject(0), false, 300000, 110, 960000, 20, 1190400, 5);
+
+		// same size, other frequency
+		write(String.format(TIS, 0), "300000 120\n960000 20\n1497600 1\n");
+		assertTimeInState(c.getCores().getJSONObject(0), false, 300000, 120, 960000, 20, 1497600, 1);
+	}
+
+	@Test
+	public void totalsWhenCounterGoesDown() throws Exception {
+		write(String.format(TIS, 1), "300000 100\n960000 20\n");
+		write("cpu1/online", "1\n");
+		c.getCores();
+
+		// stats reset (core went offline and back)
+		write(String.format(TIS, 1), "300000 3\n960000 25\n");
+		assertTimeInState(c.getCores().getJSONObject(0), false, 300000, 3, 960000, 25);
+
+		write(String.format(TIS, 1), "300000 4\n960000 25\n");
+		assertTimeInState(c.getCores().getJSONObject(0), true, 300000, 1, 960000, 0);
+	}
+}
@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn.collectors;
+
+import static fr.inria.ucn.collectors.ProcNetParserTest.HEADER;
+import static fr.inria.ucn.collectors.ProcNetParserTest.IP1;
+import static fr.inria.ucn.collectors.ProcNetParserTest.IP2;
+import static fr.inria.ucn.collectors.ProcNetParserTest.addr;
+import static fr.inria.ucn.collectors.ProcNetParserTest.line;
+import static fr.inria.ucn.collectors.ProcNetParserTest.stream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link FlowTracker}.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class FlowTrackerTest {
+
+	private static final int TCP = 0;
+	private static final int UDP = 1;
+
+	private FlowTracker t;
+	private ProcNetParser p;
+
+	/* Events of the round as "event:inode". */
+	private final List<String> events = new ArrayList<String>();
+
+	private final FlowTracker.Listener listener = new FlowTracker.Listener() {
+		@Override
+		public void onFlow(String event, FlowTracker t, int slot) throws JSONException {
+			events.add(event + ":" + t.inode[slot]);
+		}
+	};
+
+	@Before
+	public void setUp() {
+		t = new FlowTracker();
+		p = new ProcNetParser();
+	}
+
+	/* A flow from port 10000 + inode. */
+	private static String flow(long inode, int tx) {
+		return line(0, addr(IP1), (int)(10000 + inode), addr(IP2), 443, 1, tx, 0, 10001, inode);
+	}
+
+	private void update(int table, String... flows) throws IOException, JSONException {
+		StringBuilder sb = new StringBuilder(HEADER);
+		for (String f : flows)
+			sb.append(f);
+		p.parse(stream(sb.toString()));
+		t.update(table, p, listener);
+	}
+
+	private void round(long ts, String... flows) throws IOException, JSONException {
+		events.clear();
+		t.beginRound(ts);
+		update(TCP, flows);
+		t.endRound(listener);
+	}
+
+	@Test
+	public void openAndClose() throws IOException, JSONException {
+		round(1, flow(1, 0), flow(2, 0));
+		assertTrue(t.isFirstRound());
+		assertEquals(list("open:1", "open:2"), events);
+		assertEquals(2, t.size());
+
+		// still open, no event
+		round(2, flow(1, 0), flow(2, 0));
+		assertFalse(t.isFirstRound());
+		assertEquals(list(), events);
+
+		round(3, flow(2, 0), flow(3, 0));
+		assertTrue(events.contains("open:3"));
+		assertTrue(events.contains("close:1"));
+		assertEquals(2, events.size());
+		assertEquals(2, t.size());
+
+		round(4);
+		assertEquals(2, events.size());
+		assertEquals(0, t.size());
+	}
+
+	@Test
+	public void flowFields() throws IOException, JSONException {
+		round(1, flow(1, 10));
+		round(2, flow(1, 50));
+		events.clear();
+		t.beginRound(3);
+		update(TCP, flow(1, 20));
+
+		int slot = find(1);
+		assertEquals(TCP, t.getTable(slot));
+		assertEquals(10001, t.localPort[slot]);
+		assertEquals(443, t.remotePort[slot]);
+		assertEquals(IP1, t.localAddr[slot*ProcNetParser.MAX_WORDS]);
+		assertEquals(10001, t.uid[slot]);
+		assertEquals(1, t.firstSeen[slot]);
+		assertEquals(3, t.lastSeen[slot]);
+		assertEquals(50, t.maxTxQueue[slot]);
+	}
+
+	@Test
+	public void ignoresFlowsWithoutInode() throws IOException, JSONException {
+		round(1, flow(0, 0), flow(1, 0));
+		assertEquals(list("open:1"), events);
+		assertEquals(1, t.size());
+	}
+
+	@Test
+	public void tablesAreDistinct() throws IOException, JSONException {
+		events.clear();
+		t.beginRound(1);
+		update(TCP, flow(1, 0));
+		update(UDP, flow(1, 0));
+		t.endRound(listener);
+		assertEquals(list("open:1", "open:1"), events);
+		assertEquals(2, t.size());
+
+		// the udp flow closes
+		events.clear();
+		t.beginRound(2);
+		update(TCP, flow(1, 0));
+		update(UDP);
+		t.endRound(listener);
+		assertEquals(list("close:1"), events);
+		assertEquals(1, t.size());
+		assertEquals(TCP, t.getTable(find(1)));
+	}
+
+	@Test
+	public void carriesOverUnreadTables() throws IOException, JSONException {
+		events.clear();
+		t.beginRound(1);
+		update(TCP, flow(1, 0));
+		update(UDP, flow(2, 0));
+		t.endRound(listener);
+
+		// udp could not be read
+		round(2, flow(1, 0));
+		assertEquals(list(), events);
+		assertEquals(2, t.size());
+
+		// and again in the next round
+		events.clear();
+		t.beginRound(3);
+		update(TCP, flow(1, 0));
+		update(UDP);
+		t.endRound(listener);
+		assertEquals(list("close:2"), events);
+	}
+
+	@Test
+	public void evictsTheOldestFlows() throws IOException, JSONException {
+		int n = FlowTracker.MAX_FLOWS;
+		String[] old = new String[n];
+		for (int i = 0; i < n; i++)
+			old[i] = flow(i + 1, 0);
+
+		events.clear();
+		t.beginRound(1);
+		update(TCP, old);
+		t.endRound(listener);
+		assertEquals(n, t.size());
+
+		// 10 new flows, the old ones are seen in an unread table
+		String[] added = new String[10];
+		for (int i = 0; i < added.length; i++)
+			added[i] = flow(n + i + 1, 0);
+		events.clear();
+		t.beginRound(2);
+		update(UDP, added);
+		t.endRound(listener);
+
+		assertEquals(n, t.size());
+		assertEquals(added.length, count("open:"));
+		assertEquals(added.length, count("evict:"));
+		// the least recently seen go first
+		for (String e : events)
+			if (e.startsWith("evict:"))
+				assertTrue(e, Long.parseLong(e.substring(6)) <= n);
+		for (int i = 0; i < added.length; i++)
+			find(n + i + 1);
+	}
+
+	@Test
+	public void evictsDuringTheRound() throws IOException, JSONException {
+		int n = FlowTracker.MAX_ROUND_FLOWS + 10;
+		String[] flows = new String[n];
+		for (int i = 0; i < n; i++)
+			flows[i] = flow(i + 1, 0);
+		round(1, flows);
+
+		assertEquals(FlowTracker.MAX_FLOWS, t.size());
+		assertEquals(n, count("open:"));
+		assertEquals(n - FlowTracker.MAX_FLOWS, count("evict:"));
+	}
+
+	@Test
+	public void removeKeepsTheProbeSequences() throws IOException, JSONException {
+		// many flows, every other one closed, the rest must still be found
+		int n = FlowTracker.MAX_FLOWS;
+		String[] all = new String[n];
+		String[] half = new String[n/2];
+		for (int i = 0; i < n; i++) {
+			all[i] = flow(i + 1, 0);
+			if (i % 2 == 1)
+				half[i/2] = all[i];
+		}
+		round(1, all);
+		round(2, half);
+		assertEquals(n/2, count("close:"));
+		assertEquals(n/2, t.size());
+
+		round(3, half);
+		assertEquals(list(), events);
+	}
+
+	private int find(long inode) {
+		for (int slot = 0; slot < t.table.length; slot++)
+			if (t.table[slot] != 0 && t.inode[slot] == inode)
+				return slot;
+		throw new AssertionError("flow not found: " + inode);
+	}
+
+	private int count(String prefix) {
+		int n = 0;
+		for (String e : events)
+			if (e.startsWith(prefix))
+				n += 1;
+		return n;
+	}
+
+	private static List<String> list(String... s) {
+		List<String> l = new ArrayList<String>();
+		for (String e : s)
+			l.add(e);
+		return l;
+	}
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn.collectors;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import fr.inria.ucn.Benchmark;
+
+/**
+ * Benchmark of the ip_addr_show view of the host: {@link IpAddrReader#read(Map)}
+ * in process against {@link IpAddrReader#exec(Map, long)} ("ip addr show"). The
+ * exec part is skipped if the host has no ip command.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class IpAddrReaderBenchmark {
+
+	private static final int WARMUP = 200;
+	private static final int RUNS = 1000;
+	private static final int EXEC_RUNS = 50;
+
+	public static void main(String[] args) throws Exception {
+		final Map<String, JSONObject> stats = new HashMap<String, JSONObject>();
+		final IpAddrReader reader = new IpAddrReader();
+		JSONArray ifaces = reader.read(stats);
+		System.out.println("in process: " + (ifaces == null ? "no interface data" : ifaces.length() + " interfaces"));
+		if (ifaces != null) {
+			Benchmark.run("IpAddrReader.read", WARMUP, RUNS, new Benchmark.Task() {
+				@Override
+				public long run() throws Exception {
+					return reader.read(stats).length();
+				}
+			});
+		}
+
+		JSONArray cmd = IpAddrReader.exec(stats, NetworkStateCollector.IP_EXEC_TIMEOUT);
+		if (cmd.length() == 0) {
+			System.out.println("exec: no ip command, skipped");
+			return;
+		}
+		System.out.println("exec: " + cmd.length() + " interfaces");
+		Benchmark.run("IpAddrReader.exec", EXEC_RUNS/10, EXEC_RUNS, new Benchmark.Task() {
+			@Override
+			public long run() throws Exception {
+				return IpAddrReader.exec(stats, NetworkStateCollector.IP_EXEC_TIMEOUT).length();
+			}
+		});
+	}
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn.collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.inria.ucn.CounterDeltas;
+import fr.inria.ucn.DataStore;
+import fr.inria.ucn.Helpers;
+
+/**
+ * Unit tests of the kernel counters of {@link NetworkStateCollector}: the
+ * /proc/net/snmp gauges must not start a new keyframe when they go down.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class NetworkStateCollectorTest {
+
+	private static final long TS = 1400000000000L;
+
+	/* Key-values in memory. */
+	private static class MemoryStore extends DataStore {
+		final Map<String, String> kv = new HashMap<String, String>();
+
+		@Override
+		public void addKeyValue(String key, String value) {
+			kv.put(key, value);
+		}
+
+		@Override
+		public String getKeyValue(String key) {
+			return kv.get(key);
+		}
+	}
+
+	@Before
+	public void setUp() throws JSONException {
+		// keyframe of the previous run, as stored by a version that took currestab for a counter
+		JSONObject base = new JSONObject();
+		base.put("netstat/tcp:/activeopens", 100);
+		base.put("netstat/tcp:/currestab", 12);
+		base.put("netstat/tcp:/insegs", 5000);
+		base.put("netstat/ip:/inreceives", 8000);
+		JSONObject k = new JSONObject();
+		k.put("ts", TS);
+		k.put("boot", Helpers.getBootId());
+		k.put("base", base);
+
+		MemoryStore ds = new MemoryStore();
+		ds.kv.put("counters_network_state", k.toString());
+		CounterDeltas.attach(ds);
+	}
+
+	@After
+	public void tearDown() {
+		CounterDeltas.detach();
+	}
+
+	private static JSONObject netstat(long activeopens, long currestab) throws JSONException {
+		JSONObject tcp = new JSONObject();
+		tcp.put("rtoalgorithm", 1);
+		tcp.put("rtomin", 200);
+		tcp.put("rtomax", 120000);
+		tcp.put("maxconn", -1);
+		tcp.put("activeopens", activeopens);
+		tcp.put("currestab", currestab);
+		tcp.put("insegs", 5100);
+		JSONObject ip = new JSONObject();
+		ip.put("forwarding", 2);
+		ip.put("defaultttl", 64);
+		ip.put("inreceives", 8200);
+		JSONObject o = new JSONObject();
+		o.put("tcp:", tcp);
+		o.put("ip:", ip);
+		return o;
+	}
+
+	@Test
+	public void currEstabDropIsNotReset() throws JSONException {
+		JSONObject n = netstat(110, 2);
+		CounterDeltas.Sample s = CounterDeltas.begin("network_state", TS + 60000);
+		NetworkStateCollector.addNetstat(s, n);
+		assertNull(s.getKeyframeReason());
+
+		JSONObject marker = s.commit();
+		assertEquals(CounterDeltas.MODE_DELTA, marker.getString("mode"));
+		assertEquals(TS, marker.getLong("keyframe_ts"));
+
+		// counters are deltas, gauges are sent as is
+		JSONObject tcp = n.getJSONObject("tcp:");
+		assertEquals(10, tcp.getLong("activeopens"));
+		assertEquals(100, tcp.getLong("insegs"));
+		assertEquals(2, tcp.getLong("currestab"));
+		assertEquals(200, tcp.getLong("rtomin"));
+		assertEquals(-1, tcp.getLong("maxconn"));
+		JSONObject ip = n.getJSONObject("ip:");
+		assertEquals(200, ip.getLong("inreceives"));
+		assertEquals(64, ip.getLong("defaultttl"));
+	}
+
+	@Test
+	public void counterDropIsReset() throws JSONException {
+		CounterDeltas.Sample s = CounterDeltas.begin("network_state", TS + 60000);
+		NetworkStateCollector.addNetstat(s, netstat(90, 20));
+		assertEquals("reset", s.getKeyframeReason());
+	}
+}
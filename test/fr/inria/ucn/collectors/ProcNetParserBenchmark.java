@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn.collectors;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import fr.inria.ucn.Benchmark;
+
+/**
+ * Micro-benchmark of {@link ProcNetParser} against the previous parser of the
+ * sockets collector (lines split with a regex, fields decoded with parseInt into
+ * a JSONObject per socket). Both parse the same table from memory, so the file
+ * system is not measured.
+ *
+ * The table is a synthetic tcp table of 300 sockets, or a captured one given
+ * as argument (for example a copy of /proc/net/tcp6 pulled from a phone):
+ * <pre>
+ * ant -f test.xml bench -Dbench.table=tcp6.txt
+ * </pre>
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class ProcNetParserBenchmark {
+
+	private static final int WARMUP = 2000;
+	private static final int RUNS = 5000;
+
+	public static void main(String[] args) throws Exception {
+		final byte[] table = (args.length > 0 && args[0].length() > 0 ? read(args[0]) : synthetic(300));
+
+		final ProcNetParser parser = new ProcNetParser();
+		int n = parser.parse(new ByteArrayInputStream(table));
+		int m = legacy(new ByteArrayInputStream(table)).length();
+		System.out.println("table: " + table.length + " bytes, " + n + " sockets (previous parser: " + m + ")");
+
+		Benchmark.run("ProcNetParser", WARMUP, RUNS, new Benchmark.Task() {
+			@Override
+			public long run() throws IOException {
+				return parser.parse(new ByteArrayInputStream(table));
+			}
+		});
+		Benchmark.run("previous parser", WARMUP, RUNS, new Benchmark.Task() {
+			@Override
+			public long run() throws IOException, JSONException {
+				return legacy(new ByteArrayInputStream(table)).length();
+			}
+		});
+	}
+
+	/* The previous parser: Helpers.readProc and SocketsCollector.getSock for one table. */
+	private static JSONArray legacy(InputStream is) throws IOException, JSONException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(is), 500);
+		String line;
+		while ((line = in.readLine()) != null)
+			lines.add(line.trim());
+
+		JSONArray a = new JSONArray();
+		for (int i = 1; i < lines.size(); i += 1) {
+			String[] vals = lines.get(i).split("\\s+");
+			if (vals.length < 7)
+				continue;
+
+			JSONObject o = new JSONObject();
+			o.put("idx", Integer.parseInt(vals[0].replace(':', ' ').trim()));
+			o.put("local_addr", legacyAddr(vals[1].trim()));
+			o.put("remote_addr", legacyAddr(vals[2].trim()));
+			o.put("status_code", Integer.parseInt(vals[3].trim(), 16));
+			String[] q = vals[4].trim().split(":");
+			o.put("tx_queue", Integer.parseInt(q[0], 16));
+			o.put("rx_queue", Integer.parseInt(q[1], 16));
+			o.put("uid", Integer.parseInt(vals[7].replace(':', ' ').trim()));
+			a.put(o);
+		}
+		return a;
+	}
+
+	private static JSONObject legacyAddr(String s) throws JSONException {
+		String[] addr = s.split(":");
+		JSONObject o = new JSONObject();
+		o.put("port", Integer.parseInt(addr[1], 16));
+		o.put("raw_ip", addr[0]);
+
+		String ip = "";
+		for (int j = addr[0].length(); j > (addr[0].length() > 8 ? 24 : 0); j -= 2) {
+			String sub = addr[0].substring(j-2, j);
+			int num = Integer.parseInt(sub, 16);
+			ip += num + ".";
+		}
+		if (ip.length() > 0) {
+			ip = ip.substring(0, ip.length()-1);
+			o.put("ipv4", ip);
+		}
+		return o;
+	}
+
+	/* tcp table of n established and listening sockets. */
+	private static byte[] synthetic(int n) {
+		StringBuilder sb = new StringBuilder(ProcNetParserTest.HEADER);
+		for (int i = 0; i < n; i++) {
+			int remote = (i % 10 == 0 ? 0 : ProcNetParserTest.IP2 + i);
+			sb.append(ProcNetParserTest.line(i, ProcNetParserTest.addr(ProcNetParserTest.IP1), 30000 + i,
+					ProcNetParserTest.addr(remote), (i % 10 == 0 ? 0 : 443), (i % 10 == 0 ? 0x0a : 0x01),
+					i % 3, 0, 10000 + i % 50, 100000 + i));
+		}
+		return sb.toString().getBytes();
+	}
+
+	private static byte[] read(String file) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] b = new byte[4096];
+			int n;
+			while ((n = in.read(b)) > 0)
+				out.write(b, 0, n);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (C) 2014 MUSE team Inria Paris - Rocquencourt
+ * 
+ * This file is part of UCNDataCollector.
+ * 
+ * UCNDataCollector is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * UCNDataCollector is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero Public License
+ * along with UCNDataCollector.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package fr.inria.ucn.collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/**
+ * Unit tests of {@link ProcNetParser}. The tables are built with the address
+ * words in host byte order, as the kernel prints them.
+ *
+ * @author Anna-Kaisa Pietilainen <anna-kaisa.pietilainen@inria.fr>
+ *
+ */
+public class ProcNetParserTest {
+
+	static final String HEADER = "  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode\n";
+	static final String HEADER6 = "  sl  local_address                         remote_address                        st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode\n";
+
+	/* 127.0.0.1, 10.0.0.2 and 192.168.1.20 in network byte order */
+	static final int LOCALHOST = 0x7f000001;
+	static final int IP1 = 0x0a000002;
+	static final int IP2 = 0xc0a80114;
+
+	/**
+	 * @param w address word in network byte order
+	 * @return The word as printed by the kernel.
+	 */
+	static String hex(int w) {
+		if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+			w = Integer.reverseBytes(w);
+		return String.format("%08X", w);
+	}
+
+	/**
+	 * @param words address words in network byte order
+	 * @return The address as printed by the kernel.
+	 */
+	static String addr(int... words) {
+		StringBuilder sb = new StringBuilder();
+		for (int w : words)
+			sb.append(hex(w));
+		return sb.toString();
+	}
+
+	/**
+	 * @return A table line.
+	 */
+	static String line(int sl, String local, int lport, String remote, int rport, int state, int tx, int rx, int uid, long inode) {
+		return String.format("%4d: %s:%04X %s:%04X %02X %08X:%08X 00:00000000 00000000 %5d        0 %d 1 0000000000000000 20 4 30 10 -1\n",
+				sl, local, lport, remote, rport, state, tx, rx, uid, inode);
+	}
+
+	static InputStream stream(String s) {
+		return new ByteArrayInputStream(s.getBytes());
+	}
+
+	@Test
+	public void parseIpv4() throws IOException {
+		ProcNetParser p = new ProcNetParser();
+		String table = HEADER +
+				line(0, addr(LOCALHOST), 631, addr(0), 0, 0x0a, 0, 0, 0, 7717) +
+				line(1, addr(IP1), 45678, addr(IP2), 443, 0x01, 0x20, 0x10, 10057, 123456);
+		assertEquals(2, p.parse(stream(table)));
+		assertEquals(2, p.count);
+		assertEquals(1, p.words);
+
+		assertEquals(0, p.idx[0]);
+		assertTrue(p.isIpv4(p.localAddr, 0));
+		assertEquals(LOCALHOST, p.ipv4(p.localAddr, 0));
+		assertEquals("127.0.0.1", ProcNetParser.formatIpv4(p.ipv4(p.localAddr, 0)));
+		assertEquals(631, p.localPort[0]);
+		assertEquals("0.0.0.0", ProcNetParser.formatIpv4(p.ipv4(p.remoteAddr, 0)));
+		assertEquals(0x0a, p.state[0]);
+		assertEquals(7717, p.inode[0]);
+
+		assertEquals(1, p.idx[1]);
+		assertEquals("10.0.0.2", ProcNetParser.formatIpv4(p.ipv4(p.localAddr, 1)));
+		assertEquals(45678, p.localPort[1]);
+		assertEquals("192.168.1.20", ProcNetParser.formatIpv4(p.ipv4(p.remoteAddr, 1)));
+		assertEquals(443, p.remotePort[1]);
+		assertEquals(1, p.state[1]);
+		assertEquals(0x20, p.txQueue[1]);
+		assertEquals(0x10, p.rxQueue[1]);
+		assertEquals(10057, p.uid[1]);
+		assertEquals(123456, p.inode[1]);
+
+		// as in the table
+		assertEquals(addr(IP2), p.rawAddr(p.remoteAddr, 1));
+	}
+
+	@Test
+	public void parseIpv6() throws IOException {
+		ProcNetParser p = new ProcNetParser();
+		String table = HEADER6 +
+				line(0, addr(0, 0, 0, 1), 8080, addr(0, 0, 0, 0), 0, 0x0a, 0, 0, 1000, 42) +
+				line(1, addr(0, 0, 0xffff, IP1), 5555, addr(0, 0, 0xffff, IP2), 80, 0x01, 0, 0, 10001, 43) +
+				line(2, addr(0x20010db8, 0, 0, 1), 40000, addr(0x2a001450, 0x40070810, 0, 0x200e), 443, 0x01, 0, 0, 10001, 44);
+		assertEquals(3, p.parse(stream(table)));
+		assertEquals(ProcNetParser.MAX_WORDS, p.words);
+
+		assertFalse(p.isIpv4(p.localAddr, 0));
+		assertEquals("::1", ProcNetParser.formatIpv6(p.localAddr, 0));
+		assertEquals("::", ProcNetParser.formatIpv6(p.remoteAddr, 0));
+		assertEquals(8080, p.localPort[0]);
+
+		// IPv4-mapped
+		assertTrue(p.isIpv4(p.localAddr, 1));
+		assertEquals("10.0.0.2", ProcNetParser.formatIpv4(p.ipv4(p.localAddr, 1)));
+		assertEquals("192.168.1.20", ProcNetParser.formatIpv4(p.ipv4(p.remoteAddr, 1)));
+
+		assertEquals("2001:db8::1", ProcNetParser.formatIpv6(p.localAddr, 2));
+		assertEquals("2a00:1450:4007:810::200e", ProcNetParser.formatIpv6(p.remoteAddr, 2));
+		assertEquals(addr(0x2a001450, 0x40070810, 0, 0x200e), p.rawAddr(p.remoteAddr, 2));
+	}
+
+	@Test
+	public void formatIpv6() {
+		// the first of equal runs is compressed
+		assertEquals("1::2:0:0:3:4", format6(0x00010000, 0x00000002, 0x00000000, 0x00030004));
+		assertEquals("2001:db8:0:1:1:1:1:1", format6(0x20010db8, 0x00000001, 0x00010001, 0x00010001));
+		assertEquals("fe80::1:0:0:1", format6(0xfe800000, 0x00000000, 0x00010000, 0x00000001));
+		// the longest run is compressed
+		assertEquals("fe80:0:0:1::1", format6(0xfe800000, 0x00000001, 0x00000000, 0x00000001));
+		assertEquals("1::", format6(0x00010000, 0, 0, 0));
+	}
+
+	@Test
+	public void skipsInvalidLines() throws IOException {
+		ProcNetParser p = new ProcNetParser();
+		String table = HEADER +
+				"garbage\n" +
+				line(0, addr(IP1), 1, addr(IP2), 2, 1, 0, 0, 0, 1) +
+				"   1: 0100007F:0277\n" +              // truncated
+				"   2: 0100:0277 00000000:0000 0A\n" + // bad address
+				"\n" +
+				line(3, addr(IP1), 3, addr(IP2), 4, 1, 0, 0, 0, 2);
+		assertEquals(2, p.parse(stream(table)));
+		assertEquals(0, p.idx[0]);
+		assertEquals(3, p.idx[1]);
+		assertEquals(2, p.inode[1]);
+	}
+
+	@Test
+	public void emptyTable() throws IOException {
+		ProcNetParser p = new ProcNetParser();
+		assertEquals(0, p.parse(stream("")));
+		assertEquals(0, p.parse(stream(HEADER)));
+	}
+
+	@Test
+	public void largeTable() throws IOException {
+		// more than the initial buffer and entries
+		int n = 1000;
+		StringBuilder sb = new StringBuilder(HEADER);
+		for (int i = 0; i < n; i++)
+			sb.append(line(i, addr(IP1), 10000 + i, addr(IP2), 443, 1, 0, 0, 10001, 1000 + i));
+
+		ProcNetParser p = new ProcNetParser();
+		assertEquals(n, p.parse(stream(sb.toString())));
+		for (int i = 0; i < n; i++) {
+			assertEquals(i, p.idx[i]);
+			assertEquals(10000 + i, p.localPort[i]);
+			assertEquals(1000 + i, p.inode[i]);
+		}
+
+		// the buffers are reused by a smaller table
+		assertEquals(1, p.parse(stream(HEADER + line(0, addr(IP2), 1, addr(IP1), 2, 1, 0, 0, 0, 5))));
+		assertEquals(IP2, p.ipv4(p.localAddr, 0));
+	}
+
+	private static String format6(int... words) {
+		return ProcNetParser.formatIpv6(words, 0);
+	}
+}